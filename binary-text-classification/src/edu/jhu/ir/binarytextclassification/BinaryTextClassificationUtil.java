@@ -5,7 +5,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -33,6 +32,7 @@ public class BinaryTextClassificationUtil {
 	private Map<String, Integer> termIdMap = new HashMap<>(); //Map of term string to termID
 	private int termIdCounter = 1;
 	private boolean attributed;
+	private Tokenizer tokenizer = new Tokenizer();
 
 	public BinaryTextClassificationUtil(boolean attributed) {
 		this.attributed = attributed;
@@ -66,7 +66,9 @@ public class BinaryTextClassificationUtil {
 
 			for (int index : columnIndices) {
 				if (columns.length > index) {
-					for (String token: IRUtil.tokenize(columns[index])) {
+					tokenizer.reset(columns[index]);
+					while (tokenizer.next()) {
+						String token = tokenizer.getToken();
 						if (attributed) {
 							token = index + token;
 						}
@@ -114,9 +116,10 @@ public class BinaryTextClassificationUtil {
 
 			Map<String, Integer> termIds = new HashMap<>();
 			for (int index : columnIndices) {
-				List<String> tokens = IRUtil.tokenize(columns[index]);
+				tokenizer.reset(columns[index]);
 
-				for (String token: tokens) {
+				while (tokenizer.next()) {
+					String token = tokenizer.getToken();
 					if (attributed) {
 						token = index + token;
 					}
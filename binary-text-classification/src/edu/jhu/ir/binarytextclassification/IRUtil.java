@@ -25,18 +25,11 @@ public class IRUtil {
 	 * @return list of tokens
 	 */
 	public static List<String> tokenize(String line) {
-		String[] tokens = line.split("\\s+"); // Split string on whitespace
+		Tokenizer tokenizer = new Tokenizer();
+		tokenizer.reset(line);
 		List<String> normalizedTokens = new ArrayList<>();
-		for (String token : tokens) {
-			String normalizedToken = token.toLowerCase();
-
-			//Remove external punctuation
-			normalizedToken = normalizedToken.replaceFirst("^[^a-zA-Z]+", "");
-			normalizedToken = normalizedToken.replaceAll("[^a-zA-Z]+$", "");
-
-			if (!normalizedToken.equals("")) {
-				normalizedTokens.add(normalizedToken);
-			}
+		while (tokenizer.next()) {
+			normalizedTokens.add(tokenizer.getToken());
 		}
 
 		return normalizedTokens;
@@ -0,0 +1,174 @@
+package edu.jhu.ir.binarytextclassification;
+
+/**
+ * This class splits lines of text into tokens in a single pass over their characters
+ * It produces exactly the tokens of the original regular expression tokenizer:
+ * 	Split on whitespace (space, tab, newline, vertical tab, form feed, carriage return)
+ * 	Lower case
+ * 	Remove leading and trailing characters that are not letters a-z from each token
+ * 	Drop tokens that are left empty
+ *
+ * A tokenizer is reused across lines, each token is written into a reusable character buffer,
+ * 		so no objects are allocated per token unless the caller asks for the token as a String
+ * Implementation details:
+ * 	Tokens made only of ASCII characters are lower cased and trimmed in place
+ * 	Tokens containing other characters fall back to String.toLowerCase, since lower casing
+ * 		them may change their length or turn them into ASCII letters
+ *
+ * Usage:
+ * 	tokenizer.reset(line);
+ * 	while (tokenizer.next()) {
+ * 		use tokenizer.getBuffer() from 0 to tokenizer.getLength()
+ * 	}
+ *
+ * @author Miranda Myers
+ *
+ */
+public class Tokenizer {
+	private String line = ""; // Line being tokenized
+	private int position = 0; // Position in the line just past the last token read
+	private char[] buffer = new char[64]; // Characters of the current token
+	private int length = 0; // Number of characters of the current token
+
+
+	/**
+	 * Start tokenizing a new line
+	 * @param line
+	 */
+	public void reset(String line) {
+		this.line = line;
+		this.position = 0;
+		this.length = 0;
+	}
+
+
+	/**
+	 * Advance to the next token of the line
+	 * @return false if there are no more tokens in the line
+	 */
+	public boolean next() {
+		int lineLength = line.length();
+		while (position < lineLength) {
+			while (position < lineLength && isWhitespace(line.charAt(position))) {
+				position++;
+			}
+			int start = position;
+			boolean ascii = true;
+			while (position < lineLength && !isWhitespace(line.charAt(position))) {
+				ascii &= line.charAt(position) < 128;
+				position++;
+			}
+
+			if (start < position && (ascii ? setAsciiToken(start, position) : setToken(line.substring(start, position).toLowerCase()))) {
+				return true;
+			}
+		}
+		length = 0;
+		return false;
+	}
+
+
+	/**
+	 * Get the buffer holding the characters of the current token
+	 * The buffer is reused for later tokens
+	 * @return
+	 */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+
+	/**
+	 * Get the number of characters of the current token
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+
+	/**
+	 * Get the current token as a String
+	 * @return
+	 */
+	public String getToken() {
+		return new String(buffer, 0, length);
+	}
+
+
+	/**
+	 * Trim and lower case an ASCII token into the buffer
+	 * @param start
+	 * @param end
+	 * @return false if the token has no letters
+	 */
+	private boolean setAsciiToken(int start, int end) {
+		while (start < end && !isLetter(line.charAt(start))) {
+			start++;
+		}
+		while (end > start && !isLetter(line.charAt(end - 1))) {
+			end--;
+		}
+
+		length = end - start;
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = line.charAt(start + i);
+			buffer[i] = c <= 'Z' && c >= 'A' ? (char) (c + ('a' - 'A')) : c;
+		}
+		return length > 0;
+	}
+
+
+	/**
+	 * Trim an already lower cased token into the buffer
+	 * @param token
+	 * @return false if the token has no letters
+	 */
+	private boolean setToken(String token) {
+		int start = 0;
+		int end = token.length();
+		while (start < end && !isLetter(token.charAt(start))) {
+			start++;
+		}
+		while (end > start && !isLetter(token.charAt(end - 1))) {
+			end--;
+		}
+
+		length = end - start;
+		ensureCapacity(length);
+		token.getChars(start, end, buffer, 0);
+		return length > 0;
+	}
+
+
+	/**
+	 * Grow the buffer to hold at least the given number of characters
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = new char[Math.max(capacity, 2 * buffer.length)];
+		}
+	}
+
+
+	/**
+	 * Whether a character is matched by \s in a regular expression
+	 * @param c
+	 * @return
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || (c >= '\t' && c <= '\r');
+	}
+
+
+	/**
+	 * Whether a character is matched by [a-zA-Z] in a regular expression
+	 * @param c
+	 * @return
+	 */
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
@@ -1,9 +1,5 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -26,13 +22,15 @@ import java.util.Set;
  */
 public class CorpusStatistics {
 
+	private final int NUM_RANKED_TERMS = 1000; // Number of most frequent terms ranked, the last one printed is the 1000th
 	private String fileName; // Name of file on which to calculate corpus statistics
 	private int numDocuments = 0; // Number of paragraphs processed
 	private int vocabularySize = 0; // Number of unique words observed
 	private int collectionSize = 0; // Total number of words encountered
 	private int numWordsInOneDocument = 0; // Number of words that occur in exactly one document
 	private Map<String, Term> lexicon = new HashMap<>();  // Lexicon that will hold all terms
-	private List<Term> terms; // List of terms that will contain all terms sorted by collection frequency
+	private List<Term> terms; // List of the most frequent terms sorted by collection frequency
+	private Tokenizer tokenizer = new Tokenizer(); // Splits lines into lower cased tokens without punctuation
 
 
 	public CorpusStatistics(String fileName) {
@@ -59,13 +57,11 @@ public class CorpusStatistics {
 	 * Calculate statistics
 	 */
 	public void computeStatistics() {
-		FileReader fileReader = null;
-		BufferedReader bufferedReader = null;
+		DocumentSource documentSource = null;
 		try {
-			fileReader = new FileReader(fileName);
-			bufferedReader = new BufferedReader(fileReader);
+			documentSource = new DocumentSource(fileName);
 
-			buildLexicon(bufferedReader);
+			buildLexicon(documentSource);
 			getSortedTermList();
 			calculateNumWordsInOneDocument();
 
@@ -73,11 +69,8 @@ public class CorpusStatistics {
 			e.printStackTrace();
 		} finally {
 			try {
-				if (bufferedReader != null) {
-					bufferedReader.close();
-				}
-				if (fileReader != null) {
-					fileReader.close();
+				if (documentSource != null) {
+					documentSource.close();
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -87,88 +80,64 @@ public class CorpusStatistics {
 
 	/**
 	 * Build the lexicon of terms
-	 * @param bufferedReader
+	 * @param documentSource
 	 * @throws IOException
 	 */
-	private void buildLexicon(BufferedReader bufferedReader) throws IOException {
-		String currentLine;
-		while ((currentLine = bufferedReader.readLine()) != null) {
-			if (currentLine.startsWith("<P ID=")) { // The start of a new document (paragraph)
-				numDocuments++;
-				currentLine = bufferedReader.readLine();
-				Set<String> tokensInDocument = new HashSet<>();
-
-				while (currentLine != null && !currentLine.startsWith("</P>")) {
-					String[] tokens = tokenize(currentLine);
-
-					for (String token : tokens) {
-						collectionSize++;
-
-						tokensInDocument.add(token);
-						if (lexicon.containsKey(token)) {
-							lexicon.get(token).collectionFrequency++; // Increment number of times term is seen
-						}
-						else {
-							Term term = new Term();
-							term.text = token;
-							term.collectionFrequency++;
-							lexicon.put(token, term);
-						}
-					}
-
-					currentLine = bufferedReader.readLine();
+	private void buildLexicon(DocumentSource documentSource) throws IOException {
+		while (documentSource.nextDocument()) { // The start of a new document (paragraph)
+			numDocuments++;
+			Set<String> tokensInDocument = new HashSet<>();
+
+			tokenizer.reset(documentSource.getBuffer(), documentSource.getTextStart(), documentSource.getTextEnd());
+			while (tokenizer.next()) {
+				String token = tokenizer.getToken();
+				collectionSize++;
+
+				tokensInDocument.add(token);
+				if (lexicon.containsKey(token)) {
+					lexicon.get(token).collectionFrequency++; // Increment number of times term is seen
 				}
-
-				for (String token : tokensInDocument) {
-					lexicon.get(token).documentFrequency++; // Increment number of documents each token occurs in
+				else {
+					Term term = new Term();
+					term.text = token;
+					term.collectionFrequency++;
+					lexicon.put(token, term);
 				}
 			}
-		}
 
-		vocabularySize = lexicon.keySet().size();
-	}
-
-	/**
-	 * Split on spaces
-	 * Lower case only if not all upper case
-	 * Remove leading and trailing punctuation from each token
-	 *
-	 * @param line
-	 * @return list of tokens
-	 */
-	private String[] tokenize(String line) {
-		String[] tokens = line.split("\\s+"); // Split string on whitespace
-		for (int i = 0; i < tokens.length; i++) {
-			tokens[i] = tokens[i].toLowerCase();
-
-			//Remove internal punctuation
-			tokens[i] = tokens[i].replaceFirst("^[^a-zA-Z]+", "");
-			tokens[i] = tokens[i].replaceAll("[^a-zA-Z]+$", "");
+			for (String token : tokensInDocument) {
+				lexicon.get(token).documentFrequency++; // Increment number of documents each token occurs in
+			}
 		}
 
-		return tokens;
+		vocabularySize = lexicon.keySet().size();
 	}
 
 	/**
-	 * Using the lexicon, creates a list of terms sorted by collection frequency in descending order
+	 * Using the lexicon, creates a list of the NUM_RANKED_TERMS most frequent terms sorted by
+	 * 		collection frequency in descending order
+	 * Terms are selected with a bounded heap rather than sorting the whole lexicon
+	 * Terms with equal collection frequencies keep their lexicon iteration order
 	 */
 	private void getSortedTermList() {
-		terms = new ArrayList<Term>(lexicon.values());
+		Term[] lexiconTerms = lexicon.values().toArray(new Term[lexicon.size()]);
+		TopKHeap topTerms = new TopKHeap(Math.min(NUM_RANKED_TERMS, lexiconTerms.length));
+		for (int i = 0; i < lexiconTerms.length; i++) {
+			topTerms.offer(i, lexiconTerms[i].collectionFrequency);
+		}
 
-		Collections.sort(terms, new Comparator<Term>() {
-			@Override
-			public int compare(Term term1, Term term2) {
-				return term1.collectionFrequency > term2.collectionFrequency ? -1:
-					(term1.collectionFrequency < term2.collectionFrequency ? 1 : 0);
-			}
-		});
+		topTerms.sort();
+		terms = new ArrayList<Term>(topTerms.size());
+		for (int rank = 0; rank < topTerms.size(); rank++) {
+			terms.add(lexiconTerms[topTerms.getId(rank)]);
+		}
 	}
 
 	/**
 	 * Calculate the number of terms that occur in exactly one document
 	 */
 	private void calculateNumWordsInOneDocument() {
-		for (Term term : terms) {
+		for (Term term : lexicon.values()) {
 			if (term.documentFrequency == 1) {
 				numWordsInOneDocument++;
 			}
@@ -0,0 +1,261 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * This class splits the lines of a range of bytes into tokens in a single pass over the bytes
+ * Each line produces exactly the tokens of the original regular expression tokenizer:
+ * 	Split on whitespace (space, tab, vertical tab, form feed)
+ * 	Lower case
+ * 	Remove leading and trailing characters that are not letters a-z from each token
+ * Like String.split, an empty line is a single empty token and a line starting with whitespace
+ * 		begins with an empty token, and tokens left empty by removing punctuation are kept
+ * Lines end at \n, \r or \r\n like in BufferedReader.readLine
+ *
+ * A tokenizer is reused across ranges, each token is written into a reusable character buffer,
+ * 		so no objects are allocated per token unless the caller asks for the token as a String
+ * Bytes are read as characters in the default charset, like FileReader does
+ * Implementation details:
+ * 	Tokens made only of ASCII characters are lower cased and trimmed in place
+ * 	Tokens containing other characters fall back to String.toLowerCase, since lower casing
+ * 		them may change their length or turn them into ASCII letters
+ *
+ * Usage:
+ * 	tokenizer.reset(bytes, start, end);
+ * 	while (tokenizer.next()) {
+ * 		use tokenizer.getBuffer() from 0 to tokenizer.getLength()
+ * 	}
+ *
+ * @author Miranda Myers
+ *
+ */
+public class Tokenizer {
+	private ByteBuffer bytes; // Bytes being tokenized
+	private int position = 0; // Position in the bytes just past the last token read
+	private int end = 0; // Position just past the last byte to tokenize
+	private char[] buffer = new char[64]; // Characters of the current token
+	private int length = 0; // Number of characters of the current token
+	private boolean atLineStart = true; // Whether position is at the start of a line
+
+
+	/**
+	 * Start tokenizing a range of bytes
+	 * @param bytes
+	 * @param start position of the first byte to tokenize
+	 * @param end position just past the last byte to tokenize
+	 */
+	public void reset(ByteBuffer bytes, int start, int end) {
+		this.bytes = bytes;
+		this.position = start;
+		this.end = end;
+		this.length = 0;
+		this.atLineStart = true;
+	}
+
+
+	/**
+	 * Advance to the next token of the range
+	 * @return false if there are no more tokens in the range
+	 */
+	public boolean next() {
+		length = 0;
+		while (position < end) {
+			if (atLineStart) {
+				atLineStart = false;
+				char c = charAt(position);
+				if (isLineTerminator(c)) {
+					skipLineTerminator();
+					return true; // An empty line is a single empty token
+				}
+				if (isWhitespace(c)) {
+					skipWhitespace();
+					if (position < end && !isLineTerminator(charAt(position))) {
+						return true; // Leading empty token, unless the line is all whitespace
+					}
+				}
+			}
+
+			skipWhitespace();
+			if (position == end) {
+				break;
+			}
+			if (isLineTerminator(charAt(position))) {
+				skipLineTerminator();
+				continue;
+			}
+
+			int start = position;
+			boolean ascii = true;
+			while (position < end && !isWhitespace(charAt(position)) && !isLineTerminator(charAt(position))) {
+				ascii &= charAt(position) < 128;
+				position++;
+			}
+
+			if (ascii) {
+				setAsciiToken(start, position);
+			}
+			else {
+				setToken(substring(start, position).toLowerCase());
+			}
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Get the buffer holding the characters of the current token
+	 * The buffer is reused for later tokens
+	 * @return
+	 */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+
+	/**
+	 * Get the number of characters of the current token
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+
+	/**
+	 * Get the current token as a String
+	 * @return
+	 */
+	public String getToken() {
+		return new String(buffer, 0, length);
+	}
+
+
+	/**
+	 * Trim and lower case an ASCII token into the buffer
+	 * @param start
+	 * @param end
+	 */
+	private void setAsciiToken(int start, int end) {
+		while (start < end && !isLetter(charAt(start))) {
+			start++;
+		}
+		while (end > start && !isLetter(charAt(end - 1))) {
+			end--;
+		}
+
+		length = end - start;
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = charAt(start + i);
+			buffer[i] = c <= 'Z' && c >= 'A' ? (char) (c + ('a' - 'A')) : c;
+		}
+	}
+
+
+	/**
+	 * Trim an already lower cased token into the buffer
+	 * @param token
+	 */
+	private void setToken(String token) {
+		int start = 0;
+		int end = token.length();
+		while (start < end && !isLetter(token.charAt(start))) {
+			start++;
+		}
+		while (end > start && !isLetter(token.charAt(end - 1))) {
+			end--;
+		}
+
+		length = end - start;
+		ensureCapacity(length);
+		token.getChars(start, end, buffer, 0);
+	}
+
+
+	/**
+	 * Skip whitespace up to the next token or line terminator
+	 */
+	private void skipWhitespace() {
+		while (position < end && isWhitespace(charAt(position)) && !isLineTerminator(charAt(position))) {
+			position++;
+		}
+	}
+
+
+	/**
+	 * Skip the line terminator at position and move to the start of the next line
+	 */
+	private void skipLineTerminator() {
+		if (charAt(position) == '\r' && position + 1 < end && charAt(position + 1) == '\n') {
+			position++;
+		}
+		position++;
+		atLineStart = true;
+	}
+
+
+	/**
+	 * Get the character at the given position
+	 * @param index
+	 * @return
+	 */
+	private char charAt(int index) {
+		return (char) (bytes.get(index) & 0xFF);
+	}
+
+
+	/**
+	 * Get the characters between two positions, decoded with the default charset
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private String substring(int start, int end) {
+		byte[] tokenBytes = new byte[end - start];
+		for (int i = 0; i < tokenBytes.length; i++) {
+			tokenBytes[i] = bytes.get(start + i);
+		}
+		return new String(tokenBytes, Charset.defaultCharset());
+	}
+
+
+	/**
+	 * Grow the buffer to hold at least the given number of characters
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = new char[Math.max(capacity, 2 * buffer.length)];
+		}
+	}
+
+
+	/**
+	 * Whether a character is matched by \s in a regular expression
+	 * @param c
+	 * @return
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || (c >= '\t' && c <= '\r');
+	}
+
+
+	/**
+	 * Whether a character ends a line
+	 * @param c
+	 * @return
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r';
+	}
+
+
+	/**
+	 * Whether a character is matched by [a-zA-Z] in a regular expression
+	 * @param c
+	 * @return
+	 */
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
@@ -0,0 +1,465 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.ir.documentsimilarity.IRUtil.Term;
+
+/**
+ * This class reads and writes the on-disk dictionary, which maps each term to its statistics
+ * 		and the location of its postings in the inverted file
+ *
+ * Terms are sorted by their UTF-8 bytes and numbered in that order, a term's number is its term id
+ * The dictionary file is laid out as follows, all numbers big-endian:
+ * 	Header: magic number, version, number of terms, terms per block, number of blocks,
+ * 		length of the longest term, then the file offset of each section below
+ * 	Block index: file offset of the first term of every block
+ * 	Term data: terms front coded in blocks of BLOCK_SIZE terms
+ * 		The first term of a block is stored whole, as its length followed by its bytes
+ * 		Every other term is stored as the number of leading bytes it shares with the previous term,
+ * 			the number of remaining bytes, then the remaining bytes
+ * 		Lengths are written with 7 bits per byte, the high bit marking a continuation byte
+ * 	Parallel arrays indexed by term id: document frequency (int), collection frequency (long),
+ * 		postings segment (int), postings offset (long), postings length in bytes (int)
+ *
+ * The file is memory-mapped and read in place, so opening it does no deserialization
+ * A lookup binary searches the first terms of the blocks, then scans a single block
+ * The mapping is never repositioned, so a dictionary can be shared by any number of threads
+ *
+ * @author Miranda Myers
+ *
+ */
+public class Dictionary {
+	private static final int MAGIC_NUMBER = 0x49524443;  // Marks a file as a dictionary
+	private static final int VERSION = 1;
+	private static final int BLOCK_SIZE = 16;  // Number of terms front coded together
+	private static final int HEADER_SIZE = 13 * 4;
+	private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;  // Largest file a single mapping can address, and an int offset can hold
+
+	private final MappedByteBuffer buffer;
+	private final int numTerms;
+	private final int blockSize;
+	private final int numBlocks;
+	private final int maxTermLength;
+	private final int blockIndexOffset;
+	private final int documentFrequencyOffset;
+	private final int collectionFrequencyOffset;
+	private final int postingsSegmentOffset;
+	private final int postingsLocationOffset;
+	private final int postingsLengthOffset;
+
+
+	/**
+	 * Map a dictionary file into memory
+	 * A single mapping is used, so the dictionary file must be smaller than 2 GB
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public Dictionary(String fileName) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+		finally {
+			randomAccessFile.close();  // The mapping stays valid after the file is closed
+		}
+
+		if (buffer.getInt(0) != MAGIC_NUMBER || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " dictionary file: " + fileName);
+		}
+		numTerms = buffer.getInt(8);
+		blockSize = buffer.getInt(12);
+		numBlocks = buffer.getInt(16);
+		maxTermLength = buffer.getInt(20);
+		blockIndexOffset = buffer.getInt(24);
+		documentFrequencyOffset = buffer.getInt(32);
+		collectionFrequencyOffset = buffer.getInt(36);
+		postingsSegmentOffset = buffer.getInt(40);
+		postingsLocationOffset = buffer.getInt(44);
+		postingsLengthOffset = buffer.getInt(48);
+	}
+
+
+	/**
+	 * Class pairing a lexicon term with its UTF-8 bytes, used to sort the lexicon when writing
+	 */
+	private static class DictionaryEntry {
+		private byte[] text;
+		private Term term;
+
+		public DictionaryEntry(byte[] text, Term term) {
+			this.text = text;
+			this.term = term;
+		}
+	}
+
+
+	/**
+	 * Write a lexicon to a dictionary file
+	 * Section offsets are computed as longs, and nothing is written if the file would be too large to be mapped
+	 * @param fileName
+	 * @param lexicon
+	 * @throws IOException if the dictionary would be larger than MAX_FILE_SIZE, or it cannot be written
+	 */
+	public static void write(String fileName, Map<String, Term> lexicon) throws IOException {
+		List<DictionaryEntry> entries = new ArrayList<>();
+		for (Map.Entry<String, Term> lexiconEntry : lexicon.entrySet()) {
+			entries.add(new DictionaryEntry(lexiconEntry.getKey().getBytes(StandardCharsets.UTF_8), lexiconEntry.getValue()));
+		}
+		Collections.sort(entries, new Comparator<DictionaryEntry>() {
+			@Override
+			public int compare(DictionaryEntry entry1, DictionaryEntry entry2) {
+				return compareBytes(entry1.text, entry1.text.length, entry2.text, entry2.text.length);
+			}
+		});
+
+		int numTerms = entries.size();
+		int numBlocks = (numTerms + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		long blockIndexOffset = HEADER_SIZE;
+		long termDataOffset = blockIndexOffset + 4L * numBlocks;
+
+		//Front code the terms, remembering where each block starts
+		ByteArrayOutputStream termData = new ByteArrayOutputStream();
+		long[] blockOffsets = new long[numBlocks];
+		int maxTermLength = 0;
+		byte[] previous = null;
+		for (int termId = 0; termId < numTerms; termId++) {
+			byte[] term = entries.get(termId).text;
+			maxTermLength = Math.max(maxTermLength, term.length);
+
+			if (termId % BLOCK_SIZE == 0) {
+				blockOffsets[termId / BLOCK_SIZE] = termDataOffset + termData.size();
+				writeVariableByte(term.length, termData);
+				termData.write(term, 0, term.length);
+			}
+			else {
+				int prefixLength = 0;
+				while (prefixLength < previous.length && prefixLength < term.length && previous[prefixLength] == term[prefixLength]) {
+					prefixLength++;
+				}
+				writeVariableByte(prefixLength, termData);
+				writeVariableByte(term.length - prefixLength, termData);
+				termData.write(term, prefixLength, term.length - prefixLength);
+			}
+			previous = term;
+		}
+
+		long documentFrequencyOffset = termDataOffset + termData.size();
+		long collectionFrequencyOffset = documentFrequencyOffset + 4L * numTerms;
+		long postingsSegmentOffset = collectionFrequencyOffset + 8L * numTerms;
+		long postingsLocationOffset = postingsSegmentOffset + 4L * numTerms;
+		long postingsLengthOffset = postingsLocationOffset + 8L * numTerms;
+		long fileSize = postingsLengthOffset + 4L * numTerms;
+		if (fileSize > MAX_FILE_SIZE) {
+			throw new IOException("Dictionary of " + numTerms + " terms needs " + fileSize + " bytes, more than the "
+					+ MAX_FILE_SIZE + " bytes that can be mapped: " + fileName);
+		}
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		try {
+			output.writeInt(MAGIC_NUMBER);
+			output.writeInt(VERSION);
+			output.writeInt(numTerms);
+			output.writeInt(BLOCK_SIZE);
+			output.writeInt(numBlocks);
+			output.writeInt(maxTermLength);
+			output.writeInt((int) blockIndexOffset);
+			output.writeInt((int) termDataOffset);
+			output.writeInt((int) documentFrequencyOffset);
+			output.writeInt((int) collectionFrequencyOffset);
+			output.writeInt((int) postingsSegmentOffset);
+			output.writeInt((int) postingsLocationOffset);
+			output.writeInt((int) postingsLengthOffset);
+
+			for (long blockOffset : blockOffsets) {
+				output.writeInt((int) blockOffset);
+			}
+			termData.writeTo(output);
+
+			for (DictionaryEntry entry : entries) {
+				output.writeInt(entry.term.getDocumentFrequency());
+			}
+			for (DictionaryEntry entry : entries) {
+				output.writeLong(entry.term.getCollectionFrequency());
+			}
+			for (DictionaryEntry entry : entries) {
+				output.writeInt(entry.term.getInvertedFileSegment());
+			}
+			for (DictionaryEntry entry : entries) {
+				output.writeLong(entry.term.getInvertedFileLocation());
+			}
+			for (DictionaryEntry entry : entries) {
+				output.writeInt(entry.term.getInvertedFileLength());
+			}
+		}
+		finally {
+			output.close();
+		}
+	}
+
+
+	/**
+	 * Get the number of terms in the dictionary
+	 * @return
+	 */
+	public int size() {
+		return numTerms;
+	}
+
+
+	/**
+	 * Look up the term id of a term
+	 * Implementation details:
+	 * 	Binary search the block index for the last block whose first term is not greater than the term
+	 * 	Decode that block one term at a time until the term is found or passed
+	 * @param text
+	 * @return term id, or -1 if the term is not in the dictionary
+	 */
+	public int getTermId(String text) {
+		byte[] key = text.getBytes(StandardCharsets.UTF_8);
+		if (numTerms == 0 || key.length > maxTermLength) {
+			return -1;
+		}
+
+		int low = 0;
+		int high = numBlocks - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (compareFirstTerm(key, middle) >= 0) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+
+		byte[] term = new byte[maxTermLength];
+		ByteBuffer block = buffer.duplicate();
+		block.position(buffer.getInt(blockIndexOffset + 4 * low));
+		int lastTermId = Math.min(numTerms, (low + 1) * blockSize);
+		for (int termId = low * blockSize; termId < lastTermId; termId++) {
+			int termLength = readNextTerm(block, term, termId % blockSize == 0);
+
+			int comparison = compareBytes(key, key.length, term, termLength);
+			if (comparison == 0) {
+				return termId;
+			}
+			if (comparison < 0) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Find the first term that is not less than the given text, in the dictionary's byte order
+	 * The terms starting with a prefix are contiguous, and the first of them is the first term
+	 * 		not less than the prefix
+	 * Implementation details:
+	 * 	Binary search the block index like getTermId, then scan that block for the first term not less than the text
+	 * 	If every term of the block is less, the answer is the first term of the next block
+	 * @param text
+	 * @return term id, or the number of terms if every term is less than the text
+	 */
+	public int getFirstTermId(String text) {
+		byte[] key = text.getBytes(StandardCharsets.UTF_8);
+		if (numTerms == 0) {
+			return 0;
+		}
+
+		int low = 0;
+		int high = numBlocks - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (compareFirstTerm(key, middle) >= 0) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+
+		byte[] term = new byte[maxTermLength];
+		ByteBuffer block = buffer.duplicate();
+		block.position(buffer.getInt(blockIndexOffset + 4 * low));
+		int lastTermId = Math.min(numTerms, (low + 1) * blockSize);
+		for (int termId = low * blockSize; termId < lastTermId; termId++) {
+			int termLength = readNextTerm(block, term, termId % blockSize == 0);
+			if (compareBytes(key, key.length, term, termLength) <= 0) {
+				return termId;
+			}
+		}
+		return lastTermId;
+	}
+
+
+	/**
+	 * Get the text of a term
+	 * @param termId
+	 * @return
+	 */
+	public String getTerm(int termId) {
+		byte[] term = new byte[maxTermLength];
+		ByteBuffer block = buffer.duplicate();
+		block.position(buffer.getInt(blockIndexOffset + 4 * (termId / blockSize)));
+		int termLength = 0;
+		for (int i = termId - termId % blockSize; i <= termId; i++) {
+			termLength = readNextTerm(block, term, i % blockSize == 0);
+		}
+		return new String(term, 0, termLength, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Get the number of documents a term occurs in
+	 * @param termId
+	 * @return
+	 */
+	public int getDocumentFrequency(int termId) {
+		return buffer.getInt(documentFrequencyOffset + 4 * termId);
+	}
+
+
+	/**
+	 * Get the number of times a term occurs in the collection
+	 * @param termId
+	 * @return
+	 */
+	public long getCollectionFrequency(int termId) {
+		return buffer.getLong(collectionFrequencyOffset + 8 * termId);
+	}
+
+
+	/**
+	 * Get the inverted file segment holding the postings of a term
+	 * @param termId
+	 * @return
+	 */
+	public int getPostingsSegment(int termId) {
+		return buffer.getInt(postingsSegmentOffset + 4 * termId);
+	}
+
+
+	/**
+	 * Get the offset of the postings of a term within their segment
+	 * @param termId
+	 * @return
+	 */
+	public long getPostingsLocation(int termId) {
+		return buffer.getLong(postingsLocationOffset + 8 * termId);
+	}
+
+
+	/**
+	 * Get the number of bytes of encoded postings of a term
+	 * @param termId
+	 * @return
+	 */
+	public int getPostingsLength(int termId) {
+		return buffer.getInt(postingsLengthOffset + 4 * termId);
+	}
+
+
+	/**
+	 * Decode the next front coded term of a block into term
+	 * @param block buffer positioned at the next term
+	 * @param term holds the previous term on entry and the next term on return
+	 * @param firstInBlock whether the next term is stored whole
+	 * @return length of the next term
+	 */
+	private static int readNextTerm(ByteBuffer block, byte[] term, boolean firstInBlock) {
+		int prefixLength = firstInBlock ? 0 : readVariableByte(block);
+		int suffixLength = readVariableByte(block);
+		block.get(term, prefixLength, suffixLength);
+		return prefixLength + suffixLength;
+	}
+
+
+	/**
+	 * Compare a key with the first term of a block, in place in the mapped file
+	 * @param key
+	 * @param block
+	 * @return negative, zero or positive as the key sorts before, equal to or after the first term
+	 */
+	private int compareFirstTerm(byte[] key, int block) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(buffer.getInt(blockIndexOffset + 4 * block));
+		int length = readVariableByte(view);
+		int position = view.position();
+
+		for (int i = 0; i < key.length && i < length; i++) {
+			int comparison = (key[i] & 0xFF) - (buffer.get(position + i) & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return key.length - length;
+	}
+
+
+	/**
+	 * Compare the first length1 bytes of term1 with the first length2 bytes of term2 as unsigned bytes
+	 * @param term1
+	 * @param length1
+	 * @param term2
+	 * @param length2
+	 * @return
+	 */
+	private static int compareBytes(byte[] term1, int length1, byte[] term2, int length2) {
+		for (int i = 0; i < length1 && i < length2; i++) {
+			int comparison = (term1[i] & 0xFF) - (term2[i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return length1 - length2;
+	}
+
+
+	/**
+	 * Write an int using 7 bits per byte, lowest bits first
+	 * @param value
+	 * @param output
+	 */
+	private static void writeVariableByte(int value, ByteArrayOutputStream output) {
+		while ((value & ~0x7F) != 0) {
+			output.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+
+	/**
+	 * Read an int written by writeVariableByte
+	 * @param input
+	 * @return
+	 */
+	private static int readVariableByte(ByteBuffer input) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = input.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+}
@@ -4,14 +4,26 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
-import edu.jhu.ir.documentsimilarity.IRUtil.InvertedFileRecord;
-import edu.jhu.ir.documentsimilarity.IRUtil.Term;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -21,36 +33,237 @@ import edu.jhu.ir.documentsimilarity.IRUtil.Term;
  * Scores and ranks documents in order of their presumed relevance to queries
  * Builds an index and dictionary on disk, loads the dictionary and retrieves postings as
  *    needed from the inverted file to rank documents for given set of queries
+ * An index left by an earlier run over the same collection is opened instead of being rebuilt
+ * Queries that repeat, with the same bag of words, are answered from a cache of ranked results
  * Implements cosine scoring using TF-IDF term weighting for both documents and the queries
  * Computes the cosine similarity measure for documents in the collection containing at
  *    least one of the query terms
+ * By default queries are evaluated document at a time with WAND dynamic pruning, which skips
+ *    documents that cannot enter the top ranked documents using per-term score upper bounds
+ *    stored in the index
+ *    The rankings are identical to those of exhaustive term at a time evaluation, which is kept
+ *    for comparison
+ *    Documents with equal scores are ranked by ascending document ID in both cases
+ * Queries can also be evaluated score at a time over an impact-ordered copy of the index, which
+ *    processes the postings that add the most to the scores first and can stop after a budget of
+ *    postings, returning the best ranking found so far
+ *    Its scores are approximate, since the term weights of the impact-ordered index are quantized
+ * Exhaustive evaluation can limit the number of accumulators of each query, processing terms in
+ *    decreasing IDF order and then quitting, or continuing with only the documents already scored
+ *
+ * Queries can also be given one at a time or in batches to search, which a QueryServer calls for each
+ *    request, so the index stays loaded between queries
+ * Every query scored records its latency, the time spent in each stage of scoring, and the postings and
+ *    accumulators it used in a MetricsRegistry, reported with the run statistics
  *
  * Creates a second, separate index of the collection that uses different tokenization rules,
  *    specifically, truncates any term longer than 5 characters
  * Produces a second ranking of documents using this index
+ * Both indexes can be built together by buildIndexes, which reads and tokenizes the collection once,
+ *    and each ranking then picks its index by name
+ * The unstemmed index can also serve stemmed rankings on its own, through a PrefixIndex that merges
+ *    the postings of all terms sharing a truncated prefix at query time
+ *    The rankings are identical to those of the stemmed index
  *
  * @author Miranda Myers
  *
  */
 public class DocumentSimilarity {
+	public static final String UNSTEMMED_INDEX_DIRECTORY = "index-unstemmed";  // The two indexes live apart, so each is reused by later runs
+	public static final String STEMMED_INDEX_DIRECTORY = "index-stemmed";
+	private final int NUM_RANKED_DOCUMENTS = 50;  // Number of ranked documents output for each query
+	private final int STEM_LENGTH = 5;  // Terms are truncated to this many characters when stemming
+	private final double UPPER_BOUND_TOLERANCE = 1e-9;  // Relative slack on score upper bounds, covers rounding in the bounds
 
-	private Map<Integer, Double> documentVectorLengths = new HashMap<>();
-	private Map<String, Term> lexicon = new HashMap<>();  // Lexicon that will hold all terms
+	private Dictionary dictionary;  // Dictionary of all terms, mapped from disk
+	private PrefixIndex prefixIndex; // Truncated view of an unstemmed index, only opened to stem against an unstemmed index
 	private Map<Integer, Query> querySet = new LinkedHashMap<>(); //Map of query id to query object that preserves original ordering of queries
 	private boolean useStemming;
-	private int numDocuments;
+	private long numDocuments;
+	private Evaluation evaluation;
+	private ImpactIndex impactIndex; // Impact-ordered postings, only opened for score at a time evaluation
+	private long impactWorkBudget = Long.MAX_VALUE; // Postings processed at most by each score at a time query
+	private int maxAccumulators = Integer.MAX_VALUE; // Documents scored at most by each exhaustive query
+	private AccumulatorPruning accumulatorPruning = AccumulatorPruning.CONTINUE;
+	private AtomicLong numLimitedQueries = new AtomicLong(); // Exhaustive queries that reached the accumulator limit
+	private AtomicLong numSkippedPostings = new AtomicLong(); // Postings left unscored by the accumulator limit
 	private String queryFileName;
 	private String outputFileName;
 	private InvertedFileAccessor invertedFileAccessor;
 	private double cosineSimilarityRuntime;
+	private int numQueryThreads;
+	private QueryResultCache resultCache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_ENTRIES, QueryResultCache.DEFAULT_CAPACITY); // Ranked documents of queries already scored
+	private Queue<QueryScorer> idleScorers = new ConcurrentLinkedQueue<>(); // Scorers kept between calls to search, so their buffers are reused
+	private MetricsRegistry metrics = new MetricsRegistry(); // Per-query latencies and counts
+
+	public DocumentSimilarity(String inputFileName, String queryFileName, String outputFileName, boolean useStemming) throws IOException {
+		this(inputFileName, queryFileName, outputFileName, useStemming, Evaluation.WAND);
+	}
+
+
+	/**
+	 * @param inputFileName
+	 * @param queryFileName
+	 * @param outputFileName
+	 * @param useStemming
+	 * @param evaluation how queries are evaluated
+	 * @throws IOException if the index cannot be built
+	 */
+	public DocumentSimilarity(String inputFileName, String queryFileName, String outputFileName, boolean useStemming,
+			Evaluation evaluation) throws IOException {
+		this(inputFileName, queryFileName, outputFileName, useStemming, evaluation, 1);
+	}
+
+
+	/**
+	 * @param inputFileName
+	 * @param queryFileName
+	 * @param outputFileName
+	 * @param useStemming
+	 * @param evaluation how queries are evaluated
+	 * @param numQueryThreads number of threads that score the queries of the query file in parallel
+	 * @throws IOException if the index cannot be built
+	 */
+	public DocumentSimilarity(String inputFileName, String queryFileName, String outputFileName, boolean useStemming,
+			Evaluation evaluation, int numQueryThreads) throws IOException {
+		this(new InvertedFileAccessor(useStemming ? STEMMED_INDEX_DIRECTORY : UNSTEMMED_INDEX_DIRECTORY, inputFileName, useStemming, 0,
+				PostingsCodec.PFOR_DELTA, InvertedFileAccessor.DEFAULT_MAX_SEGMENT_SIZE, 1),
+				queryFileName, outputFileName, evaluation, numQueryThreads);
+	}
+
+
+	/**
+	 * Rank documents against an index that was already built, such as one of those returned by buildIndexes
+	 * Queries are analyzed the same way as the index, stemmed or not
+	 * @param invertedFileAccessor
+	 * @param queryFileName may be null when queries are only given to search
+	 * @param outputFileName may be null when queries are only given to search
+	 * @param evaluation how queries are evaluated
+	 * @param numQueryThreads number of threads that score the queries of the query file in parallel
+	 */
+	public DocumentSimilarity(InvertedFileAccessor invertedFileAccessor, String queryFileName, String outputFileName,
+			Evaluation evaluation, int numQueryThreads) {
+		this(invertedFileAccessor, invertedFileAccessor.getUseStemming(), queryFileName, outputFileName, evaluation, numQueryThreads);
+	}
+
+
+	/**
+	 * Rank documents against an index that was already built, choosing whether queries are stemmed
+	 * Stemming against an unstemmed index matches each truncated query term against every term of the index
+	 * 		starting with it, through a PrefixIndex, which is built the first time it is needed
+	 * 		Score at a time evaluation reads the impacts of the index's own terms, so it cannot be used this way
+	 * @param invertedFileAccessor
+	 * @param useStemming
+	 * @param queryFileName
+	 * @param outputFileName
+	 * @param evaluation how queries are evaluated
+	 * @param numQueryThreads number of threads that score the queries of the query file in parallel
+	 * @throws IllegalArgumentException if the index is stemmed and useStemming is not set, or if score at a time
+	 * 		evaluation is asked to stem against an unstemmed index
+	 */
+	public DocumentSimilarity(InvertedFileAccessor invertedFileAccessor, boolean useStemming, String queryFileName, String outputFileName,
+			Evaluation evaluation, int numQueryThreads) {
+		boolean usePrefixIndex = useStemming && !invertedFileAccessor.getUseStemming();
+		if (invertedFileAccessor.getUseStemming() && !useStemming) {
+			throw new IllegalArgumentException("A stemmed index cannot rank unstemmed queries");
+		}
+		if (usePrefixIndex && evaluation == Evaluation.SCORE_AT_A_TIME) {
+			throw new IllegalArgumentException("Score at a time evaluation cannot stem against an unstemmed index");
+		}
 
-	public DocumentSimilarity(String inputFileName, String queryFileName, String outputFileName, boolean useStemming) {
 		this.outputFileName = outputFileName;
 		this.queryFileName = queryFileName;
 		this.useStemming = useStemming;
-		invertedFileAccessor = new InvertedFileAccessor(inputFileName, useStemming);
-		lexicon = invertedFileAccessor.getLexiconFromDisk();
+		this.evaluation = evaluation;
+		this.numQueryThreads = numQueryThreads;
+		this.invertedFileAccessor = invertedFileAccessor;
+		dictionary = invertedFileAccessor.getDictionary();
 		numDocuments = invertedFileAccessor.getNumDocuments();
+
+		if (usePrefixIndex) {
+			try {
+				prefixIndex = PrefixIndex.open(invertedFileAccessor, STEM_LENGTH);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (evaluation == Evaluation.SCORE_AT_A_TIME) {
+			try {
+				impactIndex = ImpactIndex.open(invertedFileAccessor);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Build the unstemmed and stemmed indexes of a collection in a single pass over the collection
+	 * An index that is already current in its directory is opened instead of being rebuilt
+	 * @param inputFileName
+	 * @return the indexes by name, UNSTEMMED_INDEX_DIRECTORY and STEMMED_INDEX_DIRECTORY
+	 * @throws IOException if an index cannot be built
+	 */
+	public static Map<String, InvertedFileAccessor> buildIndexes(String inputFileName) throws IOException {
+		Map<String, Boolean> indexStemming = new LinkedHashMap<>();
+		indexStemming.put(UNSTEMMED_INDEX_DIRECTORY, false);
+		indexStemming.put(STEMMED_INDEX_DIRECTORY, true);
+		return InvertedFileAccessor.build(inputFileName, indexStemming, 0, PostingsCodec.PFOR_DELTA,
+				InvertedFileAccessor.DEFAULT_MAX_SEGMENT_SIZE, 1);
+	}
+
+
+	/**
+	 * Ways of evaluating queries
+	 */
+	public enum Evaluation {
+		EXHAUSTIVE, // Term at a time over every posting of the query terms
+		WAND, // Document at a time with WAND dynamic pruning, same rankings as EXHAUSTIVE
+		SCORE_AT_A_TIME // Over impact-ordered postings, highest impacts first, within the impact work budget
+	}
+
+
+	/**
+	 * What exhaustive evaluation does once a query reaches the accumulator limit
+	 */
+	public enum AccumulatorPruning {
+		QUIT, // Stop processing postings, rank the documents scored so far
+		CONTINUE // Keep adding to the scores of documents already scored, but score no new documents
+	}
+
+
+	/**
+	 * Limit the number of documents scored by each query under exhaustive evaluation
+	 * While a limit is set, query terms are processed in decreasing IDF order, so the rare terms that
+	 * 		weigh most in the scores pick the documents that get accumulators
+	 * @param maxAccumulators Integer.MAX_VALUE removes the limit
+	 * @param accumulatorPruning what to do once the limit is reached
+	 */
+	public void setAccumulatorLimit(int maxAccumulators, AccumulatorPruning accumulatorPruning) {
+		this.maxAccumulators = maxAccumulators;
+		this.accumulatorPruning = accumulatorPruning;
+	}
+
+
+	/**
+	 * Set the number of postings processed at most by each query under score at a time evaluation
+	 * The budget is checked between segments of equal impact, so a query may go over it by one segment
+	 * @param maxPostings Long.MAX_VALUE processes every posting of the query terms
+	 */
+	public void setImpactWorkBudget(long maxPostings) {
+		impactWorkBudget = maxPostings;
+	}
+
+
+	/**
+	 * Set the bounds of the query result cache, replacing the cache and its counters
+	 * Call it before queries are scored, results cached until then are dropped
+	 * @param maxEntries 0 disables caching, so every query is scored
+	 * @param capacity byte budget of the cache
+	 */
+	public void setResultCacheSize(int maxEntries, long capacity) {
+		resultCache = new QueryResultCache(maxEntries, capacity);
 	}
 
 
@@ -71,6 +284,59 @@ public class DocumentSimilarity {
 	}
 
 
+	/**
+	 * Cursor over the decoded postings of one query term, used for document at a time evaluation
+	 */
+	private class PostingsCursor {
+		private int[] documentIds;
+		private int[] termFrequencies;
+		private int numPostings;
+		private int position = 0;
+		private double queryTfIdf; // Query term weight
+		private double idf;
+		private double upperBound; // Largest contribution of the term to the cosine score of any document
+
+		/**
+		 * Get the document ID at the cursor
+		 * @return Integer.MAX_VALUE once the postings are exhausted
+		 */
+		private int getDocumentId() {
+			return position < numPostings ? documentIds[position] : Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Move the cursor to the first posting whose document ID is at least the target
+		 * Gallops forward from the cursor, then binary searches the last step
+		 * @param targetDocumentId
+		 */
+		private void advanceTo(int targetDocumentId) {
+			if (position >= numPostings || documentIds[position] >= targetDocumentId) {
+				return;
+			}
+			int low = position; // Last position known to be below the target
+			int step = 1;
+			int high = position + step;
+			while (high < numPostings && documentIds[high] < targetDocumentId) {
+				low = high;
+				step *= 2;
+				high = position + step;
+			}
+			high = Math.min(high, numPostings);
+
+			while (high - low > 1) {
+				int middle = (low + high) >>> 1;
+				if (documentIds[middle] < targetDocumentId) {
+					low = middle;
+				}
+				else {
+					high = middle;
+				}
+			}
+			position = high;
+		}
+	}
+
+
 	/**
 	 * Get the inverse document frequency (IDF) for a given term
 	 * IDF = log2(numberDocuments / termFrequency)
@@ -78,20 +344,98 @@ public class DocumentSimilarity {
 	 * @return
 	 */
 	private double getIdf(String term) {
-		int documentFrequency = 0;
-		if (lexicon.containsKey(term)) {
-			documentFrequency = lexicon.get(term).getDocumentFrequency();
-		}
+		int termId = getTermId(term);
+		int documentFrequency = termId >= 0 ? getDocumentFrequency(termId) : 0;
+		return IRUtil.getIdf(numDocuments, documentFrequency);
+	}
+
 
-		double idf;
-		if (documentFrequency > 0) {
-			idf = Math.log(numDocuments / documentFrequency) / Math.log(2);	//Log base 2
+	/**
+	 * Look up the term ID of a query term
+	 * When stemming against an unstemmed index, this is the ID of the prefix term in the prefix index
+	 * @param term
+	 * @return term ID, or -1 if the term is not in the index
+	 */
+	private int getTermId(String term) {
+		return prefixIndex != null ? prefixIndex.getPrefixTermId(term) : dictionary.getTermId(term);
+	}
+
+
+	/**
+	 * Get the number of documents a term, from getTermId, occurs in
+	 * @param termId
+	 * @return
+	 */
+	private int getDocumentFrequency(int termId) {
+		return prefixIndex != null ? prefixIndex.getDocumentFrequency(termId) : dictionary.getDocumentFrequency(termId);
+	}
+
+
+	/**
+	 * Decode the postings of a term, from getTermId, into the given arrays
+	 * @param termId
+	 * @param documentIds array of at least the term's document frequency entries
+	 * @param termFrequencies array of at least the term's document frequency entries
+	 * @param queryMetrics metrics of the query reading the postings
+	 * @return number of postings decoded
+	 * @throws IOException
+	 */
+	private int readPostings(int termId, int[] documentIds, int[] termFrequencies, QueryMetrics queryMetrics) throws IOException {
+		int numPostings;
+		if (prefixIndex != null) {
+			numPostings = prefixIndex.readPostings(termId, documentIds, termFrequencies, queryMetrics);
 		}
 		else {
-			idf = 0;
+			numPostings = invertedFileAccessor.readPostings(termId, documentIds, termFrequencies, queryMetrics);
 		}
+		queryMetrics.addPostingsEntries(numPostings);
+		return numPostings;
+	}
+
+
+	/**
+	 * Get the largest normalized TF-IDF weight of a term, from getTermId
+	 * @param termId
+	 * @return
+	 */
+	private double getTermMaxWeight(int termId) {
+		return prefixIndex != null ? prefixIndex.getTermMaxWeight(termId) : invertedFileAccessor.getTermMaxWeight(termId);
+	}
+
+
+	/**
+	 * Get the TF-IDF vector length of a document
+	 * @param documentId
+	 * @return
+	 */
+	private double getDocumentNorm(int documentId) {
+		return prefixIndex != null ? prefixIndex.getDocumentNorm(documentId) : invertedFileAccessor.getDocumentNorm(documentId);
+	}
+
 
-		return idf;
+	/**
+	 * Get the normalized form of a query that keys the result cache
+	 * The terms of the bag of words are sorted, so queries with the same terms and counts share a key
+	 * 		whatever their word order, and the stemming mode is included
+	 * Exhaustive and WAND evaluation rank the same documents, so they share keys, while score at a time
+	 * 		results are approximate and also keyed by the work budget
+	 * 		Exhaustive results under an accumulator limit are keyed by the limit
+	 * Tokens never contain whitespace, so spaces and newlines separate the parts unambiguously
+	 * @param query
+	 * @return
+	 */
+	private String getResultCacheKey(Query query) {
+		StringBuilder key = new StringBuilder(useStemming ? "stemmed" : "unstemmed");
+		if (evaluation == Evaluation.SCORE_AT_A_TIME) {
+			key.append(" impacts ").append(impactWorkBudget);
+		}
+		else if (evaluation == Evaluation.EXHAUSTIVE && maxAccumulators != Integer.MAX_VALUE) {
+			key.append(' ').append(accumulatorPruning).append(' ').append(maxAccumulators);
+		}
+		for (Map.Entry<String, Integer> entry : new TreeMap<>(query.bagOfWords).entrySet()) {
+			key.append('\n').append(entry.getKey()).append(' ').append(entry.getValue());
+		}
+		return key.toString();
 	}
 
 
@@ -118,107 +462,497 @@ public class DocumentSimilarity {
 
 
 	/**
-	 * Compute document scores for a given query based on cosine similarity using vector space models
-	 * Implementation details:
-	 * 	Keep an accumulator of docId -> scores
-	 *  Cosine scores are computed one term at a time
-	 *	Take each query term, seek into the inverted file to find docIds and term counts
-	 *		compute the tf-idf weight, multiply that by the appropriate query term tf-idf,
-	 *		add that product (partial dot product) into an accumulator where document scores are stored
-	 *	Only consider terms both in the document and query
-	 *  After all query terms are processed, divide partial dot product by query length * document length
-	 *  Then, sort the documents by score
-	 *
-	 * @param query
-	 * @throws IOException
+	 * Scores queries on one thread, with its own accumulator and postings buffers
+	 * Everything a query needs while it is scored is kept by the scorer and reused by its next queries,
+	 * 		only the ranked scores handed back with the query are allocated per query
+	 * Scorers share the index, whose dictionary and postings reader are safe to read from any number of threads
+	 * Each scorer takes the next unscored query of the batch until none are left, so threads that draw
+	 * 		cheap queries go on to score more of them
 	 */
-	private void computeQueryScores(Query query) throws IOException {
-		//For the dot product part of cosine metric, we can use only the terms that are in the query
-		Map<Integer, Double> scoreAccumulator = new HashMap<>(); //Document ID to dot product
+	private class QueryScorer implements Callable<Void> {
+		private List<Query> queries; // Queries of the batch, shared by all scorers
+		private AtomicInteger nextQuery; // Index of the next query to score, shared by all scorers
+		private ScoreAccumulator scoreAccumulator; // Dot product of each document, reused across queries
+		private int[] postingsDocumentIds = new int[1024]; // Reusable buffers for the decoded postings of a term
+		private int[] postingsTermFrequencies = new int[1024];
+		private int[] segmentImpacts = new int[1024]; // Reusable buffers for the impact segments of the query terms
+		private int[] segmentCounts = new int[1024];
+		private int[] segmentPositions = new int[1024];
+		private double[] segmentContributions = new double[1024];
+		private QueryMetrics queryMetrics = new QueryMetrics(); // Work and time of the query being scored
+		private List<String> terms = new ArrayList<>(); // Reusable list of the query terms, in the order they are scored
+		private Map<String, Double> idfs = new HashMap<>(); // Reusable IDFs of the query terms, under an accumulator limit
+		private Comparator<String> decreasingIdfOrder = new Comparator<String>() {
+			@Override
+			public int compare(String term1, String term2) {
+				return Double.compare(idfs.get(term2), idfs.get(term1));
+			}
+		};
+		private TopKHeap topDocuments = new TopKHeap(NUM_RANKED_DOCUMENTS); // Reusable selection of the top ranked documents
+		private PostingsCursor[] queryOrderCursors = new PostingsCursor[0]; // Reusable WAND cursors, in query term order
+		private PostingsCursor[] cursors = new PostingsCursor[0]; // The same cursors, in document ID order
 
-		double queryVectorLength = computeQueryVectorLength(query);
+		public QueryScorer(List<Query> queries, AtomicInteger nextQuery) {
+			this.queries = queries;
+			this.nextQuery = nextQuery;
+			this.scoreAccumulator = new ScoreAccumulator(invertedFileAccessor.getMinDocumentId(), invertedFileAccessor.getNumDocumentIds());
+		}
 
-		for (String term : query.bagOfWords.keySet()) {
 
-			double queryTfIdf = query.bagOfWords.get(term) * getIdf(term);
+		/**
+		 * Score a whole batch of queries on the calling thread, reusing the scorer's buffers
+		 * @param queries
+		 * @throws IOException
+		 */
+		private void scoreAll(List<Query> queries) throws IOException {
+			this.queries = queries;
+			this.nextQuery = new AtomicInteger();
+			call();
+		}
 
-			//Get the files that have the query term
-			List<InvertedFileRecord> invertedFileRecords = invertedFileAccessor.readInvertedIndex(term);
 
-			for (InvertedFileRecord invertedFileRecord : invertedFileRecords) {
-				int documentId = invertedFileRecord.getDocumentId();
-				double documentTfIdf = invertedFileRecord.getTermFrequency() * getIdf(term);
-				double partialDotProduct = queryTfIdf * documentTfIdf;
+		/**
+		 * Score queries of the batch until all have been taken
+		 * A query whose bag of words was already scored against the current index generation
+		 * 		is answered from the result cache
+		 * The metrics of each query are added to the registry once it is scored
+		 */
+		@Override
+		public Void call() throws IOException {
+			int queryIndex;
+			while ((queryIndex = nextQuery.getAndIncrement()) < queries.size()) {
+				Query query = queries.get(queryIndex);
+				queryMetrics.start();
+				String key = getResultCacheKey(query);
+				long generation = invertedFileAccessor.getGeneration();
 
-				if (scoreAccumulator.containsKey(documentId)) {
-					double dotProductAccumulator = scoreAccumulator.get(documentId);
-					partialDotProduct += dotProductAccumulator;
+				QueryResultCache.CachedResult result = resultCache.get(key, generation);
+				if (result != null) {
+					query.documentScores = new LinkedHashMap<>();
+					for (int rank = 0; rank < result.getDocumentIds().length; rank++) {
+						query.documentScores.put(result.getDocumentIds()[rank], result.getScores()[rank]);
+					}
+					queryMetrics.setResultCacheHit();
+					queryMetrics.finish(metrics);
+					continue;
 				}
 
-				scoreAccumulator.put(documentId, partialDotProduct);
+				if (evaluation == Evaluation.WAND) {
+					computeTopQueryScores(query);
+				}
+				else if (evaluation == Evaluation.SCORE_AT_A_TIME) {
+					computeImpactOrderedScores(query);
+				}
+				else {
+					computeQueryScores(query);
+				}
+
+				int[] documentIds = new int[query.documentScores.size()];
+				double[] scores = new double[query.documentScores.size()];
+				int rank = 0;
+				for (Map.Entry<Integer, Double> score : query.documentScores.entrySet()) {
+					documentIds[rank] = score.getKey();
+					scores[rank] = score.getValue();
+					rank++;
+				}
+				resultCache.put(key, generation, documentIds, scores);
+				queryMetrics.finish(metrics);
 			}
+			return null;
 		}
 
-		for (int documentId : scoreAccumulator.keySet()) {
-			double dotProduct = scoreAccumulator.get(documentId);
-			double documentVectorLength = documentVectorLengths.get(documentId);
-			double denominator = documentVectorLength * queryVectorLength;
 
-			double cosineScore;
-			if (denominator == 0) {
-				cosineScore = 0;
+		/**
+		 * Compute document scores for a given query based on cosine similarity using vector space models
+		 * Implementation details:
+		 * 	Keep an accumulator of docId -> scores, a dense array reused across queries
+		 *  Cosine scores are computed one term at a time
+		 *	Take each query term, seek into the inverted file to find docIds and term counts
+		 *		compute the tf-idf weight, multiply that by the appropriate query term tf-idf,
+		 *		add that product (partial dot product) into an accumulator where document scores are stored
+		 *	Only consider terms both in the document and query
+		 *  After all query terms are processed, divide partial dot product by query length * document length
+		 *		Document lengths were computed when the index was built and are read from the index
+		 *  Then, select the top ranked documents by score
+		 *
+		 * Under an accumulator limit, terms are taken in decreasing IDF order
+		 * 	Once maxAccumulators documents have scores, QUIT stops and CONTINUE only adds to those scores
+		 * 	The postings left unscored are counted for the run statistics
+		 * @param query
+		 * @throws IOException
+		 */
+		private void computeQueryScores(Query query) throws IOException {
+			//For the dot product part of cosine metric, we can use only the terms that are in the query
+			scoreAccumulator.reset();
+
+			double queryVectorLength = computeQueryVectorLength(query);
+			queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+
+			terms.clear();
+			terms.addAll(query.bagOfWords.keySet());
+			idfs.clear();
+			boolean limited = maxAccumulators != Integer.MAX_VALUE;
+			if (limited) {
+				for (String term : terms) {
+					idfs.put(term, getIdf(term));
+				}
+				Collections.sort(terms, decreasingIdfOrder);
+				queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
 			}
-			else {
-				cosineScore = dotProduct / (documentVectorLength * queryVectorLength);
+
+			boolean limitReached = false;
+			long numSkipped = 0;
+			for (String term : terms) {
+				int termId = getTermId(term);
+				if (termId < 0) {
+					queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+					continue;
+				}
+				if (limitReached && accumulatorPruning == AccumulatorPruning.QUIT) {
+					numSkipped += getDocumentFrequency(termId);
+					queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+					continue;
+				}
+
+				double idf = limited ? idfs.get(term) : IRUtil.getIdf(numDocuments, getDocumentFrequency(termId));
+				double queryTfIdf = query.bagOfWords.get(term) * idf;
+				queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+
+				//Get the files that have the query term
+				int numPostings = readPostings(termId);
+				queryMetrics.lap(QueryMetrics.Stage.DECODE);
+
+				int i = 0;
+				for (; i < numPostings && !limitReached; i++) {
+					if (scoreAccumulator.size() >= maxAccumulators) {
+						limitReached = true;
+						break;
+					}
+					double documentTfIdf = postingsTermFrequencies[i] * idf;
+					scoreAccumulator.add(postingsDocumentIds[i], queryTfIdf * documentTfIdf);
+				}
+
+				//Past the limit, either skip the rest of the postings or only update documents already scored
+				if (accumulatorPruning == AccumulatorPruning.QUIT) {
+					numSkipped += numPostings - i;
+					queryMetrics.lap(QueryMetrics.Stage.SCORING);
+					continue;
+				}
+				for (; i < numPostings; i++) {
+					if (scoreAccumulator.contains(postingsDocumentIds[i])) {
+						double documentTfIdf = postingsTermFrequencies[i] * idf;
+						scoreAccumulator.add(postingsDocumentIds[i], queryTfIdf * documentTfIdf);
+					}
+					else {
+						numSkipped++;
+					}
+				}
+				queryMetrics.lap(QueryMetrics.Stage.SCORING);
+			}
+			if (limitReached) {
+				numLimitedQueries.incrementAndGet();
+				numSkippedPostings.addAndGet(numSkipped);
+			}
+			queryMetrics.addAccumulators(scoreAccumulator.size());
+
+			topDocuments.clear();
+			for (int i = 0; i < scoreAccumulator.size(); i++) {
+				int documentId = scoreAccumulator.getDocumentId(i);
+				double dotProduct = scoreAccumulator.getScore(i);
+				double documentVectorLength = getDocumentNorm(documentId);
+				double denominator = documentVectorLength * queryVectorLength;
+
+				double cosineScore;
+				if (denominator == 0) {
+					cosineScore = 0;
+				}
+				else {
+					cosineScore = dotProduct / (documentVectorLength * queryVectorLength);
+				}
+
+				topDocuments.offer(documentId, cosineScore);
 			}
 
-			scoreAccumulator.put(documentId, cosineScore);
+			query.documentScores = getRankedScores(topDocuments);
+			queryMetrics.lap(QueryMetrics.Stage.SELECTION);
 		}
 
-		query.documentScores = scoreAccumulator;
-	}
 
+		/**
+		 * Compute approximate document scores for a given query, score at a time over the impact-ordered index
+		 * Implementation details:
+		 * 	Read the segment headers of every query term, the contribution of a segment to the dot product
+		 * 		of each of its documents is the query term tf-idf times the weight of the segment's impact
+		 * 	Process segments in descending order of contribution, across all query terms, adding the
+		 * 		contribution to each document of the segment in the accumulator
+		 * 	Stop once the work budget of postings is spent, or when the remaining segments add nothing
+		 * 	Impact weights are already divided by the document vector lengths, so the cosine score is the
+		 * 		accumulated dot product over the query vector length
+		 * 	Then, select the top ranked documents by score
+		 * With an unlimited budget every posting is processed and only quantization separates the scores
+		 * 		from those of computeQueryScores
+		 * @param query
+		 */
+		private void computeImpactOrderedScores(Query query) {
+			scoreAccumulator.reset();
 
-	/**
-	 * Compute vector lengths for all documents
-	 * Square root of sum of squares of all of the term weights in the whole document
-	 * Implementation details:
-	 * 	After all documents have been seen, doc lengths can be computed one term at a time,
-	 *  by walking over every entry in the dictionary, look up entry in the inverted file
-	 *  calculate TF-IDF, store that squared value stored into an accumulator for each doc ID
-	 *  A sum of squared weights will then be stored for each document, and after all terms are seen,
-	 *	take sqrt
-	 *
-	 * @throws IOException
-	 */
-	private void computeDocumentVectorLengths() throws IOException {
-		Map<Integer, Double> documentTfIdfAccumulator = new HashMap<>();
-		for (String term : lexicon.keySet()) { //Get squared tf-idf weights for all terms in all documents
-			List<InvertedFileRecord> invertedFileRecords = invertedFileAccessor.readInvertedIndex(term);
-			for (InvertedFileRecord invertedFileRecord : invertedFileRecords) {
-				int documentId = invertedFileRecord.getDocumentId();
-				int tf = invertedFileRecord.getTermFrequency();
-				double idf = getIdf(term);
-				double tfIdf = tf * idf;
-
-				double squaredWeights;
-				if (documentTfIdfAccumulator.containsKey(documentId)) { //If this document already has squared weights, add to it
-					squaredWeights = documentTfIdfAccumulator.get(documentId);
-					squaredWeights += tfIdf * tfIdf;
+			double queryVectorLength = computeQueryVectorLength(query);
+			queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+
+			int numSegments = 0;
+			for (String term : query.bagOfWords.keySet()) {
+				int termId = dictionary.getTermId(term);
+				if (termId < 0) {
+					continue;
+				}
+
+				double queryTfIdf = query.bagOfWords.get(term) * getIdf(term);
+				queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+				ensureSegmentCapacity(numSegments + ImpactIndex.MAX_IMPACT + 1);
+				int numTermSegments = impactIndex.readSegments(termId, segmentImpacts, segmentCounts, segmentPositions, numSegments);
+				for (int s = numSegments; s < numSegments + numTermSegments; s++) {
+					segmentContributions[s] = queryTfIdf * impactIndex.getImpactWeight(segmentImpacts[s]);
+				}
+				numSegments += numTermSegments;
+				queryMetrics.lap(QueryMetrics.Stage.DECODE);
+			}
+
+			//Order the segments by contribution, equal contributions in query term order
+			TopKHeap segmentOrder = new TopKHeap(numSegments);
+			for (int s = 0; s < numSegments; s++) {
+				segmentOrder.offer(s, segmentContributions[s]);
+			}
+			segmentOrder.sort();
+			queryMetrics.lap(QueryMetrics.Stage.SCORING);
+
+			long work = 0;
+			for (int rank = 0; rank < segmentOrder.size() && work < impactWorkBudget; rank++) {
+				int segment = segmentOrder.getId(rank);
+				double contribution = segmentContributions[segment];
+				if (contribution <= 0) {
+					break;
+				}
+
+				int count = segmentCounts[segment];
+				if (count > postingsDocumentIds.length) {
+					postingsDocumentIds = new int[Math.max(count, postingsDocumentIds.length * 2)];
+					postingsTermFrequencies = new int[postingsDocumentIds.length];
+				}
+				impactIndex.readSegment(segmentPositions[segment], count, postingsDocumentIds);
+				queryMetrics.lap(QueryMetrics.Stage.DECODE);
+				for (int i = 0; i < count; i++) {
+					scoreAccumulator.add(postingsDocumentIds[i], contribution);
+				}
+				work += count;
+				queryMetrics.lap(QueryMetrics.Stage.SCORING);
+			}
+			queryMetrics.addPostingsEntries(work);
+			queryMetrics.addAccumulators(scoreAccumulator.size());
+
+			topDocuments.clear();
+			for (int i = 0; i < scoreAccumulator.size(); i++) {
+				double cosineScore = queryVectorLength == 0 ? 0 : scoreAccumulator.getScore(i) / queryVectorLength;
+				topDocuments.offer(scoreAccumulator.getDocumentId(i), cosineScore);
+			}
+
+			query.documentScores = getRankedScores(topDocuments);
+			queryMetrics.lap(QueryMetrics.Stage.SELECTION);
+		}
+
+
+		/**
+		 * Grow the reusable segment buffers to hold at least the given number of segments
+		 * @param capacity
+		 */
+		private void ensureSegmentCapacity(int capacity) {
+			if (capacity > segmentImpacts.length) {
+				capacity = Math.max(capacity, segmentImpacts.length * 2);
+				segmentImpacts = Arrays.copyOf(segmentImpacts, capacity);
+				segmentCounts = Arrays.copyOf(segmentCounts, capacity);
+				segmentPositions = Arrays.copyOf(segmentPositions, capacity);
+				segmentContributions = Arrays.copyOf(segmentContributions, capacity);
+			}
+		}
+
+
+		/**
+		 * Decode the postings of a term into the reusable postings buffers
+		 * @param termId
+		 * @return number of postings decoded
+		 * @throws IOException
+		 */
+		private int readPostings(int termId) throws IOException {
+			int documentFrequency = getDocumentFrequency(termId);
+			if (documentFrequency > postingsDocumentIds.length) {
+				int capacity = Math.max(documentFrequency, postingsDocumentIds.length * 2);
+				postingsDocumentIds = Arrays.copyOf(postingsDocumentIds, capacity);
+				postingsTermFrequencies = Arrays.copyOf(postingsTermFrequencies, capacity);
+			}
+			return DocumentSimilarity.this.readPostings(termId, postingsDocumentIds, postingsTermFrequencies, queryMetrics);
+		}
+
+
+		/**
+		 * Compute the top ranked document scores for a given query, document at a time with WAND dynamic pruning
+		 * Produces exactly the top NUM_RANKED_DOCUMENTS documents of computeQueryScores, with the same scores
+		 * Implementation details:
+		 * 	Decode the postings of each query term and keep a cursor on them, ordered by document ID
+		 * 	The upper bound of a term is its query weight times its largest normalized document weight,
+		 * 		read from the index, over the query vector length
+		 * 	The threshold is the score of the worst document in a heap of the best documents so far
+		 * 	Walk the cursors in document ID order summing upper bounds, the pivot is the first cursor
+		 * 		at which the sum exceeds the threshold
+		 * 		No document before the pivot document can beat the threshold, so lagging cursors skip to it
+		 * 		Once every cursor up to the pivot is on the pivot document, the document is scored fully
+		 * 	Until the heap is full every document is scored, like in exhaustive evaluation
+		 * 	A document whose score only ties the threshold cannot enter, since ties go to the lower
+		 * 		document ID and documents are visited in increasing ID order
+		 * 	Partial dot products are added in the order of the query terms, the same order as in
+		 * 		computeQueryScores, so the scores are identical to the last bit
+		 *
+		 * Block-Max WAND would also need the largest weight of each block of postings, the index only
+		 * 		stores one bound per term, so plain WAND is used
+		 * The cursors and their postings buffers are kept by the scorer and reused by its next queries
+		 * Each document scored fully counts as an accumulator touched
+		 * @param query
+		 * @throws IOException
+		 */
+		private void computeTopQueryScores(Query query) throws IOException {
+			double queryVectorLength = computeQueryVectorLength(query);
+			queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+
+			//Cursors in query term order, for scoring, and in document ID order, for pivoting
+			int numCursors = 0;
+			for (String term : query.bagOfWords.keySet()) {
+				int termId = getTermId(term);
+				if (termId < 0) {
+					continue;
 				}
-				else { //Otherwise initialize the entry in the map with a new squared weight
-					squaredWeights = tfIdf * tfIdf;
+
+				PostingsCursor cursor = getCursor(numCursors);
+				int documentFrequency = getDocumentFrequency(termId);
+				queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+				if (documentFrequency > cursor.documentIds.length) {
+					int capacity = Math.max(documentFrequency, cursor.documentIds.length * 2);
+					cursor.documentIds = new int[capacity];
+					cursor.termFrequencies = new int[capacity];
 				}
+				cursor.numPostings = DocumentSimilarity.this.readPostings(termId, cursor.documentIds, cursor.termFrequencies, queryMetrics);
+				cursor.position = 0;
+				queryMetrics.lap(QueryMetrics.Stage.DECODE);
+				cursor.idf = getIdf(term);
+				cursor.queryTfIdf = query.bagOfWords.get(term) * cursor.idf;
+				cursor.upperBound = queryVectorLength == 0 ? 0
+						: cursor.queryTfIdf * getTermMaxWeight(termId) / queryVectorLength
+						* (1 + UPPER_BOUND_TOLERANCE);
+				cursors[numCursors] = cursor;
+				numCursors++;
+			}
+			queryMetrics.lap(QueryMetrics.Stage.DICTIONARY);
+
+			topDocuments.clear();
+			while (true) {
+				sortCursors(numCursors);
 
-				documentTfIdfAccumulator.put(documentId, squaredWeights);
+				//Find the pivot, the first cursor at which the upper bounds can beat the threshold
+				boolean heapFull = topDocuments.isFull();
+				double threshold = heapFull ? topDocuments.getThreshold() : 0;
+				double upperBound = 0;
+				int pivot = -1;
+				for (int i = 0; i < numCursors && cursors[i].getDocumentId() != Integer.MAX_VALUE; i++) {
+					upperBound += cursors[i].upperBound;
+					if (!heapFull || upperBound > threshold) {
+						pivot = i;
+						break;
+					}
+				}
+				if (pivot < 0) {
+					break;
+				}
+
+				int pivotDocumentId = cursors[pivot].getDocumentId();
+				if (cursors[0].getDocumentId() != pivotDocumentId) {
+					for (int i = 0; i < pivot; i++) {
+						cursors[i].advanceTo(pivotDocumentId);
+					}
+					continue;
+				}
+
+				double dotProduct = 0;
+				for (int i = 0; i < numCursors; i++) {
+					PostingsCursor cursor = queryOrderCursors[i];
+					if (cursor.getDocumentId() == pivotDocumentId) {
+						double documentTfIdf = cursor.termFrequencies[cursor.position] * cursor.idf;
+						dotProduct += cursor.queryTfIdf * documentTfIdf;
+						cursor.position++;
+					}
+				}
+				double documentVectorLength = getDocumentNorm(pivotDocumentId);
+				double denominator = documentVectorLength * queryVectorLength;
+				double cosineScore = denominator == 0 ? 0 : dotProduct / (documentVectorLength * queryVectorLength);
+				topDocuments.offer(pivotDocumentId, cosineScore);
+				queryMetrics.addAccumulators(1);
 			}
+			queryMetrics.lap(QueryMetrics.Stage.SCORING);
+
+			query.documentScores = getRankedScores(topDocuments);
+			queryMetrics.lap(QueryMetrics.Stage.SELECTION);
 		}
 
-		for (int documentId : documentTfIdfAccumulator.keySet()) {
-			double squaredWeights = documentTfIdfAccumulator.get(documentId);
-			squaredWeights = Math.sqrt(squaredWeights);
-			documentVectorLengths.put(documentId, squaredWeights);
+
+		/**
+		 * Sort cursors by their current document ID
+		 * Insertion sort, since queries have few terms and the cursors stay nearly sorted between calls
+		 * @param numCursors number of cursors of the query, at the start of cursors
+		 */
+		private void sortCursors(int numCursors) {
+			for (int i = 1; i < numCursors; i++) {
+				PostingsCursor cursor = cursors[i];
+				int documentId = cursor.getDocumentId();
+				int j = i - 1;
+				while (j >= 0 && cursors[j].getDocumentId() > documentId) {
+					cursors[j + 1] = cursors[j];
+					j--;
+				}
+				cursors[j + 1] = cursor;
+			}
+		}
+
+
+		/**
+		 * Get the reusable cursor of a query term, creating it the first time a query has that many terms
+		 * The cursor keeps its postings buffers from earlier queries
+		 * @param index position of the term among the query terms found in the index
+		 * @return
+		 */
+		private PostingsCursor getCursor(int index) {
+			if (index == queryOrderCursors.length) {
+				queryOrderCursors = Arrays.copyOf(queryOrderCursors, Math.max(4, index * 2));
+				cursors = Arrays.copyOf(cursors, queryOrderCursors.length);
+			}
+			if (queryOrderCursors[index] == null) {
+				PostingsCursor cursor = new PostingsCursor();
+				cursor.documentIds = new int[1024];
+				cursor.termFrequencies = new int[1024];
+				queryOrderCursors[index] = cursor;
+			}
+			return queryOrderCursors[index];
+		}
+	}
+
+
+	/**
+	 * Sort the selected top documents into a map of document ID to score in ranked order
+	 * @param topDocuments
+	 * @return
+	 */
+	private Map<Integer, Double> getRankedScores(TopKHeap topDocuments) {
+		topDocuments.sort();
+		Map<Integer, Double> rankedScores = new LinkedHashMap<>();
+		for (int rank = 0; rank < topDocuments.size(); rank++) {
+			rankedScores.put(topDocuments.getId(rank), topDocuments.getScore(rank));
 		}
+		return rankedScores;
 	}
 
 
@@ -270,23 +1004,7 @@ public class DocumentSimilarity {
 				Map<String, Integer> tokensInQuery = new HashMap<>();
 
 				while (currentLine != null && !currentLine.startsWith("</Q>")) {
-					List<String> tokens = IRUtil.tokenize(currentLine);
-
-					for (String token : tokens) {
-						if (useStemming) {
-							if (token.length() > 5) {
-								token = token.substring(0, 5);
-							}
-						}
-
-						if (tokensInQuery.containsKey(token)) {
-							int count = tokensInQuery.get(token).intValue();
-							tokensInQuery.put(token, ++count);
-						}
-						else {
-							tokensInQuery.put(token, 1);
-						}
-					}
+					addQueryTokens(currentLine, tokensInQuery);
 
 					currentLine = bufferedReader.readLine();
 				}
@@ -296,24 +1014,126 @@ public class DocumentSimilarity {
 	}
 
 
+	/**
+	 * Add the tokens of a line of query text to a query's bag of words, truncated when stemming
+	 * @param line
+	 * @param tokensInQuery
+	 */
+	private void addQueryTokens(String line, Map<String, Integer> tokensInQuery) {
+		List<String> tokens = IRUtil.tokenize(line);
+
+		for (String token : tokens) {
+			if (useStemming) {
+				if (token.length() > STEM_LENGTH) {
+					token = token.substring(0, STEM_LENGTH);
+				}
+			}
+
+			if (tokensInQuery.containsKey(token)) {
+				int count = tokensInQuery.get(token).intValue();
+				tokensInQuery.put(token, ++count);
+			}
+			else {
+				tokensInQuery.put(token, 1);
+			}
+		}
+	}
+
+
+	/**
+	 * Rank documents for a batch of query texts, on the calling thread
+	 * Safe to call from several threads at once, each call borrows a scorer that no other call is using,
+	 * 		so scorers are only created while more calls run at once than ever before
+	 * Results are shared with the result cache like those of the query file
+	 * @param queryTexts
+	 * @return for each query text, a map of document ID to score holding the top NUM_RANKED_DOCUMENTS
+	 * 		documents in ranked order
+	 * @throws IOException
+	 */
+	public List<Map<Integer, Double>> search(List<String> queryTexts) throws IOException {
+		List<Query> queries = new ArrayList<>();
+		for (int i = 0; i < queryTexts.size(); i++) {
+			Query query = new Query(i + 1);
+			addQueryTokens(queryTexts.get(i), query.bagOfWords);
+			queries.add(query);
+		}
+
+		QueryScorer scorer = idleScorers.poll();
+		if (scorer == null) {
+			scorer = new QueryScorer(queries, new AtomicInteger());
+		}
+		try {
+			scorer.scoreAll(queries);
+		}
+		finally {
+			idleScorers.add(scorer);
+		}
+
+		List<Map<Integer, Double>> results = new ArrayList<>();
+		for (Query query : queries) {
+			results.add(query.documentScores);
+		}
+		return results;
+	}
+
+
+	/**
+	 * Write the ranked documents of a query in TREC run format, one document per line
+	 * @param writer
+	 * @param queryId
+	 * @param documentScores document ID to score, in ranked order
+	 * @param numRanked number of ranked documents written at most
+	 */
+	public static void printRankedDocuments(PrintWriter writer, int queryId, Map<Integer, Double> documentScores, int numRanked) {
+		int rank = 1;
+		for (Map.Entry<Integer, Double> score : documentScores.entrySet()) {
+			if (rank > numRanked) {
+				break;
+			}
+			writer.print(queryId + " Q0 " + score.getKey() + " " + rank + " ");
+			writer.printf("%.6f", score.getValue());
+			writer.println(" myers");
+			rank++;
+		}
+	}
+
+
+	/**
+	 * Get the registry the metrics of every scored query are added to
+	 * @return
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+
+	/**
+	 * Add the metrics of scored queries to another registry, such as one shared by several rankings
+	 * @param metrics
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Get the number of ranked documents kept for each query
+	 * @return
+	 */
+	public int getNumRankedDocuments() {
+		return NUM_RANKED_DOCUMENTS;
+	}
+
+
 	/**
 	 * Produces a single output file containing ranked documents for all topics
-	 * Provides the top 50 ranked documents for each query
+	 * Provides the top NUM_RANKED_DOCUMENTS ranked documents for each query
 	 * @throws IOException
 	 */
 	public void outputRankedDocuments() throws FileNotFoundException {
 		PrintWriter writer = new PrintWriter(outputFileName);
 		for (Query query : querySet.values()) {
-			int rank = 1;
-			for (Map.Entry<Integer, Double> score : query.documentScores.entrySet()) {
-				writer.print(query.id + " Q0 " + score.getKey() + " " + rank + " ");
-				writer.printf("%.6f", score.getValue());
-				writer.println(" myers");
-				if (rank == 50) {
-					break;
-				}
-				rank++;
-			}
+			printRankedDocuments(writer, query.id, query.documentScores, NUM_RANKED_DOCUMENTS);
 		}
 		writer.close();
 	}
@@ -333,7 +1153,7 @@ public class DocumentSimilarity {
 		}
 		System.out.println();
 
-		System.out.println("Vocabulary size: " + invertedFileAccessor.getVocabularySize() + "\n");
+		System.out.println("Vocabulary size: " + (prefixIndex != null ? prefixIndex.size() : invertedFileAccessor.getVocabularySize()) + "\n");
 		System.out.println("Number of documents indexed: " + numDocuments + "\n");
 
 		if (useStemming) {
@@ -343,6 +1163,31 @@ public class DocumentSimilarity {
 			System.out.println("Run-time for cosine similarity without stemming: " + cosineSimilarityRuntime + " minutes\n");
 		}
 
+		System.out.println("Query result cache: " + resultCache.getHitCount() + " hits, " + resultCache.getMissCount() + " misses, "
+				+ resultCache.getEvictionCount() + " evictions, " + resultCache.getInvalidationCount() + " invalidations, "
+				+ resultCache.getNumEntries() + " entries using " + resultCache.getSize() + " bytes\n");
+
+		if (evaluation == Evaluation.EXHAUSTIVE && maxAccumulators != Integer.MAX_VALUE) {
+			System.out.println("Accumulator limit of " + maxAccumulators + " (" + accumulatorPruning + "): reached by "
+					+ numLimitedQueries.get() + " queries, " + numSkippedPostings.get() + " postings skipped\n");
+		}
+
+		PostingsCache postingsCache = invertedFileAccessor.getPostingsCache();
+		System.out.println("Postings cache: " + postingsCache.getHitCount() + " hits, " + postingsCache.getMissCount() + " misses, "
+				+ postingsCache.getEvictionCount() + " evictions, " + postingsCache.getRejectionCount() + " rejections, "
+				+ postingsCache.getNumEntries() + " entries using " + postingsCache.getSize() + " of " + postingsCache.getCapacity() + " bytes\n");
+
+		if (prefixIndex != null) {
+			PostingsCache mergedPostingsCache = prefixIndex.getPostingsCache();
+			System.out.println("Merged prefix postings cache: " + mergedPostingsCache.getHitCount() + " hits, " + mergedPostingsCache.getMissCount()
+					+ " misses, " + mergedPostingsCache.getEvictionCount() + " evictions, " + mergedPostingsCache.getRejectionCount() + " rejections, "
+					+ mergedPostingsCache.getNumEntries() + " entries using " + mergedPostingsCache.getSize() + " of "
+					+ mergedPostingsCache.getCapacity() + " bytes\n");
+		}
+
+		metrics.printReport(System.out);
+		System.out.println();
+
 		invertedFileAccessor.printFileSizeInformation();
 		System.out.println("\n---------------------------------------------------------------------------\n\n");
 	}
@@ -350,15 +1195,57 @@ public class DocumentSimilarity {
 
 	/**
 	 * Process the query file and compute scores for all queries
+	 * With a single thread the queries are scored in the calling thread
+	 * With several threads they are scored in parallel by one QueryScorer per thread
+	 * 		Scores are kept with each query, so the ranked documents are still output in query file order
+	 * 		If a scorer fails, the other scorers are cancelled and take no more queries, and the failure
+	 * 			is thrown as it was thrown in the scorer's thread, like with a single thread
 	 * @throws IOException
 	 */
 	private void computeAllScores() throws IOException {
 		processQueryFile();
-		computeDocumentVectorLengths();
-		for (Query query : querySet.values()) {
-			computeQueryScores(query);
-			Map<Integer, Double> sortedScores = IRUtil.sortMapByValue(query.documentScores);
-			query.documentScores = sortedScores;
+		List<Query> queries = new ArrayList<>(querySet.values());
+		AtomicInteger nextQuery = new AtomicInteger();
+
+		if (numQueryThreads == 1) {
+			new QueryScorer(queries, nextQuery).call();
+			return;
+		}
+
+		List<QueryScorer> scorers = new ArrayList<>();
+		for (int i = 0; i < numQueryThreads; i++) {
+			scorers.add(new QueryScorer(queries, nextQuery));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numQueryThreads);
+		List<Future<Void>> futures = new ArrayList<>();
+		try {
+			for (QueryScorer scorer : scorers) {
+				futures.add(executor.submit(scorer));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while scoring the queries");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			nextQuery.set(queries.size());  // Scorers still running stop after their current query
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			executor.shutdownNow();
 		}
 	}
 
@@ -380,10 +1267,16 @@ public class DocumentSimilarity {
 
 
 	public static void main(String[] args) throws IOException {
-		//DocumentSimilarity documentSimilarityWithoutStemming = new DocumentSimilarity("fire10.en.utf8", "fire10.topics.en.utf8", "myers-a.txt", false);
-		//documentSimilarityWithoutStemming.computeDocumentSimilarity();
+		//The stemmed ranking is served by prefix queries against the unstemmed index, so only one index is built
+		InvertedFileAccessor index = new InvertedFileAccessor(UNSTEMMED_INDEX_DIRECTORY, "fire10.en.utf8", false, 0,
+				PostingsCodec.PFOR_DELTA, InvertedFileAccessor.DEFAULT_MAX_SEGMENT_SIZE, 1);
+
+		DocumentSimilarity documentSimilarityWithoutStemming = new DocumentSimilarity(index, false,
+				"fire10.topics.en.utf8", "myers-a.txt", Evaluation.WAND, 1);
+		documentSimilarityWithoutStemming.computeDocumentSimilarity();
 
-		DocumentSimilarity documentSimilarityWithStemming = new DocumentSimilarity("fire10.en.utf8", "fire10.topics.en.utf8", "myers-b.txt", true);
+		DocumentSimilarity documentSimilarityWithStemming = new DocumentSimilarity(index, true,
+				"fire10.topics.en.utf8", "myers-b.txt", Evaluation.WAND, 1);
 		documentSimilarityWithStemming.computeDocumentSimilarity();
 	}
 }
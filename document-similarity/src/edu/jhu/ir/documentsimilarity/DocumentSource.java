@@ -0,0 +1,292 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class reads the documents in a range of a corpus file mapped into memory
+ * A document (paragraph) is a line starting with <P ID=n>, followed by its lines of text,
+ * 		up to a line starting with </P> or the end of the range
+ * The bytes are scanned directly for the document markers and document IDs are parsed from the bytes,
+ * 		so the file is never decoded into Strings
+ * The text of each document is handed out as a byte range of the mapped file, for a Tokenizer to read
+ *
+ * Lines end at \n, \r or \r\n like in BufferedReader.readLine, so the documents and their text are
+ * 		exactly those found by reading the file line by line
+ * Implementation details:
+ * 	The range is mapped through a window of at most WINDOW_SIZE bytes, since a single mapping cannot
+ * 		address more than 2 GB
+ * 	When a document runs past the end of the window, the window is moved to start at that document,
+ * 		so a document must fit in a window
+ *
+ * Usage:
+ * 	while (documentSource.nextDocument()) {
+ * 		tokenizer.reset(documentSource.getBuffer(), documentSource.getTextStart(), documentSource.getTextEnd());
+ * 		...
+ * 	}
+ *
+ * @author Miranda Myers
+ *
+ */
+public class DocumentSource {
+	private static final long WINDOW_SIZE = 1L << 30;  // Number of bytes covered by each mapping
+	private static final byte[] DOCUMENT_START = "<P ID=".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] DOCUMENT_END = "</P>".getBytes(StandardCharsets.US_ASCII);
+	private RandomAccessFile file;
+	private long end; // Offset just past the last byte of the range
+	private MappedByteBuffer window; // Mapping of the part of the range being read
+	private long windowStart; // Offset in the file of the first byte of the window
+	private int windowLength; // Number of bytes in the window
+	private boolean windowAtEnd; // Whether the window reaches the end of the range
+	private int position; // Position in the window of the next line to read
+	private int documentStart; // Position in the window of the start line of the current document
+	private int textStart; // Position in the window of the first byte of text of the current document
+	private int textEnd; // Position in the window just past the last byte of text of the current document
+
+
+	/**
+	 * Read the documents of a whole corpus file
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public DocumentSource(String fileName) throws IOException {
+		this(fileName, 0, new File(fileName).length());
+	}
+
+
+	/**
+	 * Read the documents in a range of a corpus file
+	 * The range should start at the start of a line
+	 * @param fileName
+	 * @param start offset of the first byte of the range
+	 * @param end offset just past the last byte of the range
+	 * @throws IOException
+	 */
+	public DocumentSource(String fileName, long start, long end) throws IOException {
+		this.file = new RandomAccessFile(fileName, "r");
+		this.end = end;
+		moveWindow(start);
+	}
+
+
+	/**
+	 * Advance to the next document of the range
+	 * Lines outside of documents are skipped
+	 * @return false if there are no more documents in the range
+	 * @throws IOException
+	 */
+	public boolean nextDocument() throws IOException {
+		while (true) {
+			documentStart = position;
+			if (documentStart == windowLength && windowAtEnd) {
+				return false;
+			}
+
+			int lineEnd = findLineEnd(documentStart);
+			int lineStart = findNextLine(lineEnd);
+			if (lineStart < 0) { // The line runs past the end of the window
+				moveWindowTo(documentStart);
+				continue;
+			}
+			if (!startsWith(documentStart, lineEnd, DOCUMENT_START)) {
+				position = lineStart;
+				continue;
+			}
+
+			textStart = lineStart;
+			while (true) {
+				if (lineStart == windowLength && windowAtEnd) { // The document runs to the end of the range
+					textEnd = lineStart;
+					position = lineStart;
+					break;
+				}
+
+				lineEnd = findLineEnd(lineStart);
+				int nextLineStart = findNextLine(lineEnd);
+				if (nextLineStart < 0) {
+					break;
+				}
+				if (startsWith(lineStart, lineEnd, DOCUMENT_END)) {
+					textEnd = lineStart;
+					position = nextLineStart;
+					break;
+				}
+				lineStart = nextLineStart;
+			}
+
+			if (position == documentStart) { // The document runs past the end of the window
+				moveWindowTo(documentStart);
+				continue;
+			}
+
+			return true;
+		}
+	}
+
+
+	/**
+	 * Get the ID of the current document, parsed from the rest of its start line
+	 * Like the line readers, which removed every '>' before parsing, '>' characters are ignored
+	 * @return
+	 * @throws NumberFormatException if the start line does not hold a valid ID
+	 */
+	public int getDocumentId() {
+		int start = documentStart + DOCUMENT_START.length;
+		int end = findLineEnd(documentStart);
+		boolean signed = false;
+		boolean negative = false;
+		long value = 0;
+		int numDigits = 0;
+		for (int i = start; i < end; i++) {
+			byte b = window.get(i);
+			if (b == '>') {
+				continue;
+			}
+			if (numDigits == 0 && !signed && (b == '-' || b == '+')) {
+				signed = true;
+				negative = b == '-';
+			}
+			else if (b >= '0' && b <= '9' && value <= Integer.MAX_VALUE) {
+				value = 10 * value + (b - '0');
+				numDigits++;
+			}
+			else {
+				throw new NumberFormatException("Invalid document ID at offset " + (windowStart + documentStart));
+			}
+		}
+
+		value = negative ? -value : value;
+		if (numDigits == 0 || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Invalid document ID at offset " + (windowStart + documentStart));
+		}
+		return (int) value;
+	}
+
+
+	/**
+	 * Get the mapped buffer holding the text of the current document
+	 * The buffer changes when the window moves, so it must be fetched again for each document
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return window;
+	}
+
+
+	/**
+	 * Get the position in the buffer of the first byte of text of the current document
+	 * @return
+	 */
+	public int getTextStart() {
+		return textStart;
+	}
+
+
+	/**
+	 * Get the position in the buffer just past the last byte of text of the current document
+	 * @return
+	 */
+	public int getTextEnd() {
+		return textEnd;
+	}
+
+
+	/**
+	 * Close the corpus file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+
+	/**
+	 * Map the window starting at the given offset
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void moveWindow(long offset) throws IOException {
+		windowStart = offset;
+		windowLength = (int) Math.min(WINDOW_SIZE, end - offset);
+		windowAtEnd = windowStart + windowLength == end;
+		window = file.getChannel().map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+		position = 0;
+	}
+
+
+	/**
+	 * Move the window forward to start at the given position of the current window
+	 * @param start
+	 * @throws IOException if the window already starts there, since what is read does not fit in a window
+	 */
+	private void moveWindowTo(int start) throws IOException {
+		if (start == 0) {
+			throw new IOException("Document at offset " + windowStart + " does not fit in a mapping window");
+		}
+		moveWindow(windowStart + start);
+	}
+
+
+	/**
+	 * Find the end of the line starting at lineStart
+	 * @param lineStart
+	 * @return position of the line terminator, or the window length if the window ends first
+	 */
+	private int findLineEnd(int lineStart) {
+		int i = lineStart;
+		while (i < windowLength) {
+			byte b = window.get(i);
+			if (b == '\n' || b == '\r') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+
+	/**
+	 * Find the start of the line after the line ending at lineEnd
+	 * @param lineEnd
+	 * @return position of the next line, or -1 if the window ends before it is known
+	 */
+	private int findNextLine(int lineEnd) {
+		if (lineEnd == windowLength) {
+			return windowAtEnd ? lineEnd : -1;
+		}
+		if (window.get(lineEnd) == '\r') {
+			if (lineEnd + 1 == windowLength) {
+				return windowAtEnd ? lineEnd + 1 : -1;
+			}
+			if (window.get(lineEnd + 1) == '\n') {
+				return lineEnd + 2;
+			}
+		}
+		return lineEnd + 1;
+	}
+
+
+	/**
+	 * Whether the line from lineStart to lineEnd starts with the given marker
+	 * @param lineStart
+	 * @param lineEnd
+	 * @param marker
+	 * @return
+	 */
+	private boolean startsWith(int lineStart, int lineEnd, byte[] marker) {
+		if (lineEnd - lineStart < marker.length) {
+			return false;
+		}
+		for (int i = 0; i < marker.length; i++) {
+			if (window.get(lineStart + i) != marker[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,6 +1,5 @@
 package edu.jhu.ir.documentsimilarity;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -15,15 +14,18 @@ import java.util.Map;
  *
  */
 public class IRUtil {
+	public static final int TOKENIZER_VERSION = 1;  // Changed whenever tokenize produces different tokens, so indexes built with the old tokens are rebuilt
 
 	/**
 	 * Class representing a term that is used to build a lexicon and list of terms
 	 */
-	public static class Term implements Serializable {
-		private static final long serialVersionUID = -1947264671039701464L;
+	public static class Term {
 		private String text;	//Required in memory
-		private int invertedFileLocation;	//Required in memory
+		private int invertedFileSegment;	// Inverted file segment holding the postings	//Required in memory
+		private long invertedFileLocation;	// Offset of the postings within their segment	//Required in memory
+		private int invertedFileLength;	// Number of bytes of encoded postings	//Required in memory
 		private int documentFrequency = 0; // Number of documents which the word occurs in	// Useful in memory
+		private long collectionFrequency = 0; // Number of times the word occurs in the collection
 
 		public int getDocumentFrequency() {
 			return documentFrequency;
@@ -33,14 +35,42 @@ public class IRUtil {
 			this.documentFrequency = documentFrequency;
 		}
 
-		public int getInvertedFileLocation() {
+		public long getCollectionFrequency() {
+			return collectionFrequency;
+		}
+
+		public void setCollectionFrequency(long collectionFrequency) {
+			this.collectionFrequency = collectionFrequency;
+		}
+
+		public int getInvertedFileSegment() {
+			return invertedFileSegment;
+		}
+
+		public void setInvertedFileSegment(int invertedFileSegment) {
+			this.invertedFileSegment = invertedFileSegment;
+		}
+
+		public long getInvertedFileLocation() {
 			return invertedFileLocation;
 		}
 
-		public void setInvertedFileLocation(int invertedFileLocation) {
+		public void setInvertedFileLocation(long invertedFileLocation) {
 			this.invertedFileLocation = invertedFileLocation;
 		}
 
+		public int getInvertedFileLength() {
+			return invertedFileLength;
+		}
+
+		public void setInvertedFileLength(int invertedFileLength) {
+			this.invertedFileLength = invertedFileLength;
+		}
+
+		public String getText() {
+			return text;
+		}
+
 		public void setText(String text) {
 			this.text = text;
 		}
@@ -82,28 +112,39 @@ public class IRUtil {
 	}
 
 
+	/**
+	 * Get the inverse document frequency (IDF) of a term
+	 * IDF = log2(numberDocuments / documentFrequency), using integer division
+	 * A term that occurs in no documents has an IDF of 0
+	 * @param numDocuments
+	 * @param documentFrequency
+	 * @return
+	 */
+	public static double getIdf(long numDocuments, int documentFrequency) {
+		if (documentFrequency > 0) {
+			return Math.log(numDocuments / documentFrequency) / Math.log(2);	//Log base 2
+		}
+		return 0;
+	}
+
+
 	/**
 	 * Tokenize a given string using the following approaches
 	 * Split on spaces
 	 * Lower case only if not all upper case
 	 * Remove leading and trailing punctuation from each token
+	 * Code tokenizing large amounts of text should use a Tokenizer directly, which does not
+	 * 		allocate a String per token
 	 *
 	 * @param line
 	 * @return list of tokens
 	 */
 	public static List<String> tokenize(String line) {
-		String[] tokens = line.split("\\s+"); // Split string on whitespace
+		Tokenizer tokenizer = new Tokenizer();
+		tokenizer.reset(line);
 		List<String> normalizedTokens = new ArrayList<>();
-		for (String token : tokens) {
-			String normalizedToken = token.toLowerCase();
-
-			//Remove external punctuation
-			normalizedToken = normalizedToken.replaceFirst("^[^a-zA-Z]+", "");
-			normalizedToken = normalizedToken.replaceAll("[^a-zA-Z]+$", "");
-
-			if (!normalizedToken.equals("")) {
-				normalizedTokens.add(normalizedToken);
-			}
+		while (tokenizer.next()) {
+			normalizedTokens.add(tokenizer.getToken());
 		}
 
 		return normalizedTokens;
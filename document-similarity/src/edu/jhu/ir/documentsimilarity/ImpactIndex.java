@@ -0,0 +1,343 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * This class reads and writes an impact-ordered copy of the postings of an index, for score-at-a-time evaluation
+ * The weight of each posting, tf * idf / document norm, is computed once when the file is written
+ * 		and quantized into an impact from 0 to MAX_IMPACT, linear in the largest weight of the index
+ * 		The cosine score of a document is then about the sum of query weight * impact weight over the query terms,
+ * 		divided by the query vector length, with no IDF or norm lookups while scoring
+ * The postings of each term are grouped into segments of equal impact, in descending order of impact
+ * 		Within a segment document IDs are in ascending order
+ *
+ * The file lives in the index directory and records the generation of the index it was built from,
+ * 		so open rebuilds it whenever the index has been rebuilt
+ *
+ * Impacts file format:
+ * 	Header: magic number, version, index generation, largest weight, smallest document ID, number of terms
+ * 	Term directory: offset of each term's segments, by term ID
+ * 	Segments of each term: number of segments, then for each segment its impact (a byte), number of postings
+ * 		and number of bytes, followed by the document IDs of the segment
+ * 		The first document ID is stored relative to the smallest document ID and the others as gaps
+ * 	Numbers other than the header and directory are written with 7 bits per byte, as in VARIABLE_BYTE postings
+ * A single mapping is used, so the file must be smaller than 2 GB
+ *
+ * @author Miranda Myers
+ *
+ */
+public class ImpactIndex {
+	public static final String IMPACTS_FILENAME = "impacts.bin";
+	public static final int MAX_IMPACT = 255;  // Impacts take a byte
+	private static final int MAGIC_NUMBER = 0x49525049;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private final MappedByteBuffer buffer;
+	private final long generation; // Generation of the index the file was built from
+	private final double maxWeight; // Largest posting weight of the index, the weight of MAX_IMPACT
+	private final int minDocumentId;
+	private final int numTerms;
+
+
+	/**
+	 * Map an impacts file into memory
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public ImpactIndex(String fileName) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+		finally {
+			randomAccessFile.close();  // The mapping stays valid after the file is closed
+		}
+
+		if (buffer.getInt(0) != MAGIC_NUMBER || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " impacts file: " + fileName);
+		}
+		generation = buffer.getLong(8);
+		maxWeight = buffer.getDouble(16);
+		minDocumentId = buffer.getInt(24);
+		numTerms = buffer.getInt(28);
+	}
+
+
+	/**
+	 * Open the impacts file of an index, writing it first if it is missing or was built from another generation
+	 * The file is written under a temporary name and then renamed, so a mapping of the old file stays valid
+	 * @param invertedFileAccessor
+	 * @return
+	 * @throws IOException
+	 */
+	public static ImpactIndex open(InvertedFileAccessor invertedFileAccessor) throws IOException {
+		File impactsFile = new File(invertedFileAccessor.getIndexDirectory(), IMPACTS_FILENAME);
+		if (impactsFile.exists()) {
+			try {
+				ImpactIndex impactIndex = new ImpactIndex(impactsFile.getPath());
+				if (impactIndex.generation == invertedFileAccessor.getGeneration()
+						&& impactIndex.numTerms == invertedFileAccessor.getDictionary().size()) {
+					return impactIndex;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		File temporaryFile = new File(invertedFileAccessor.getIndexDirectory(), IMPACTS_FILENAME + ".tmp");
+		write(temporaryFile.getPath(), invertedFileAccessor);
+		if (!temporaryFile.renameTo(impactsFile)) {
+			throw new IOException("Could not rename " + temporaryFile + " to " + impactsFile);
+		}
+		return new ImpactIndex(impactsFile.getPath());
+	}
+
+
+	/**
+	 * Write the impacts file of an index
+	 * Implementation details:
+	 * 	The largest weight is the largest term max weight stored in the index
+	 * 	Walk the dictionary in term ID order, decode each term's postings and quantize their weights
+	 * 	Group the postings by impact with a counting sort, which keeps document IDs in ascending order
+	 * 	The term directory is reserved after the header and filled in once every term has been written
+	 * 	The length written so far is kept as a long, and writing stops as soon as a term would start
+	 * 		past the offsets the directory and the mapping can hold
+	 * @param fileName
+	 * @param invertedFileAccessor
+	 * @throws IOException
+	 */
+	public static void write(String fileName, InvertedFileAccessor invertedFileAccessor) throws IOException {
+		Dictionary dictionary = invertedFileAccessor.getDictionary();
+		int numTerms = dictionary.size();
+		double maxWeight = 0;
+		for (int termId = 0; termId < numTerms; termId++) {
+			maxWeight = Math.max(maxWeight, invertedFileAccessor.getTermMaxWeight(termId));
+		}
+
+		int[] termOffsets = new int[numTerms];
+		int[] documentIds = new int[1024];
+		int[] termFrequencies = new int[1024];
+		int[] impacts = new int[1024];
+		int[] sortedDocumentIds = new int[1024];
+		ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+		DataOutputStream segmentOutput = new DataOutputStream(segmentBytes);
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		try {
+			output.writeInt(MAGIC_NUMBER);
+			output.writeInt(VERSION);
+			output.writeLong(invertedFileAccessor.getGeneration());
+			output.writeDouble(maxWeight);
+			output.writeInt(invertedFileAccessor.getMinDocumentId());
+			output.writeInt(numTerms);
+			output.write(new byte[4 * numTerms]);
+			long length = HEADER_SIZE + 4L * numTerms;  // Bytes written so far
+
+			for (int termId = 0; termId < numTerms; termId++) {
+				int documentFrequency = dictionary.getDocumentFrequency(termId);
+				if (documentFrequency > documentIds.length) {
+					int capacity = Math.max(documentFrequency, 2 * documentIds.length);
+					documentIds = new int[capacity];
+					termFrequencies = new int[capacity];
+					impacts = new int[capacity];
+					sortedDocumentIds = new int[capacity];
+				}
+				invertedFileAccessor.decodePostings(termId, documentIds, termFrequencies);
+
+				//Quantize the weights and count the postings of each impact
+				double idf = IRUtil.getIdf(invertedFileAccessor.getNumDocuments(), documentFrequency);
+				int[] segmentStarts = new int[MAX_IMPACT + 2];
+				for (int i = 0; i < documentFrequency; i++) {
+					double documentNorm = invertedFileAccessor.getDocumentNorm(documentIds[i]);
+					double weight = documentNorm > 0 ? termFrequencies[i] * idf / documentNorm : 0;
+					impacts[i] = quantize(weight, maxWeight);
+					segmentStarts[MAX_IMPACT - impacts[i] + 1]++;
+				}
+
+				//Counting sort by descending impact, segment s holds impact MAX_IMPACT - s
+				int numSegments = 0;
+				for (int s = 0; s <= MAX_IMPACT; s++) {
+					if (segmentStarts[s + 1] > 0) {
+						numSegments++;
+					}
+					segmentStarts[s + 1] += segmentStarts[s];
+				}
+				int[] nextPosition = Arrays.copyOf(segmentStarts, MAX_IMPACT + 1);
+				for (int i = 0; i < documentFrequency; i++) {
+					sortedDocumentIds[nextPosition[MAX_IMPACT - impacts[i]]++] = documentIds[i];
+				}
+
+				if (length > Integer.MAX_VALUE) {
+					throw new IOException("Impacts file " + fileName + " would exceed 2 GB");
+				}
+				termOffsets[termId] = (int) length;
+				length += writeVariableByte(numSegments, output);
+				for (int s = 0; s <= MAX_IMPACT; s++) {
+					int start = segmentStarts[s];
+					int end = segmentStarts[s + 1];
+					if (start == end) {
+						continue;
+					}
+
+					segmentBytes.reset();
+					int previousDocumentId = invertedFileAccessor.getMinDocumentId();
+					for (int i = start; i < end; i++) {
+						writeVariableByte(sortedDocumentIds[i] - previousDocumentId, segmentOutput);
+						previousDocumentId = sortedDocumentIds[i];
+					}
+					output.writeByte(MAX_IMPACT - s);
+					length += 1 + writeVariableByte(end - start, output) + writeVariableByte(segmentBytes.size(), output);
+					segmentBytes.writeTo(output);
+					length += segmentBytes.size();
+				}
+			}
+		}
+		finally {
+			output.close();
+		}
+		if (new File(fileName).length() > Integer.MAX_VALUE) {
+			throw new IOException("Impacts file " + fileName + " exceeds 2 GB");
+		}
+
+		//Fill in the term directory
+		ByteBuffer directory = ByteBuffer.allocate(4 * numTerms);
+		for (int termOffset : termOffsets) {
+			directory.putInt(termOffset);
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "rw");
+		try {
+			randomAccessFile.seek(HEADER_SIZE);
+			randomAccessFile.write(directory.array());
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+
+
+	/**
+	 * Get the generation of the index the file was built from
+	 * @return
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+
+	/**
+	 * Get the weight that an impact stands for
+	 * @param impact
+	 * @return
+	 */
+	public double getImpactWeight(int impact) {
+		return impact * maxWeight / MAX_IMPACT;
+	}
+
+
+	/**
+	 * Read the segment headers of a term
+	 * The arrays must hold at least MAX_IMPACT + 1 entries from offset
+	 * @param termId
+	 * @param impacts receives the impact of each segment, in descending order
+	 * @param counts receives the number of postings of each segment
+	 * @param positions receives the position in the file of the document IDs of each segment, for readSegment
+	 * @param offset index in the arrays of the first segment
+	 * @return number of segments of the term
+	 */
+	public int readSegments(int termId, int[] impacts, int[] counts, int[] positions, int offset) {
+		ByteBuffer input = buffer.duplicate();
+		input.position(buffer.getInt(HEADER_SIZE + 4 * termId));
+		int numSegments = readVariableByte(input);
+		for (int s = offset; s < offset + numSegments; s++) {
+			impacts[s] = input.get() & 0xFF;
+			counts[s] = readVariableByte(input);
+			int length = readVariableByte(input);
+			positions[s] = input.position();
+			input.position(input.position() + length);
+		}
+		return numSegments;
+	}
+
+
+	/**
+	 * Decode the document IDs of a segment
+	 * @param position position of the segment's document IDs, from readSegments
+	 * @param count number of postings of the segment, from readSegments
+	 * @param documentIds array of at least count entries that receives the document IDs
+	 */
+	public void readSegment(int position, int count, int[] documentIds) {
+		ByteBuffer input = buffer.duplicate();
+		input.position(position);
+		int previousDocumentId = minDocumentId;
+		for (int i = 0; i < count; i++) {
+			previousDocumentId += readVariableByte(input);
+			documentIds[i] = previousDocumentId;
+		}
+	}
+
+
+	/**
+	 * Quantize a weight into an impact
+	 * Positive weights get an impact of at least 1, so only postings that add nothing to a score get impact 0
+	 * @param weight
+	 * @param maxWeight
+	 * @return
+	 */
+	private static int quantize(double weight, double maxWeight) {
+		if (weight <= 0 || maxWeight <= 0) {
+			return 0;
+		}
+		return Math.max(1, Math.min(MAX_IMPACT, (int) Math.round(weight / maxWeight * MAX_IMPACT)));
+	}
+
+
+	/**
+	 * Write an int using 7 bits per byte, lowest bits first
+	 * The high bit of each byte is set when more bytes follow
+	 * @param value
+	 * @param output
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	private static int writeVariableByte(int value, DataOutput output) throws IOException {
+		int numBytes = 1;
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+			numBytes++;
+		}
+		output.writeByte(value);
+		return numBytes;
+	}
+
+
+	/**
+	 * Read an int written by writeVariableByte
+	 * @param input
+	 * @return
+	 */
+	private static int readVariableByte(ByteBuffer input) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = input.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+}
@@ -0,0 +1,415 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class maintains an index made of immutable index segments, so that newly arrived documents
+ * 		are indexed without rebuilding the rest of the collection
+ * Each call to addDocuments builds the new documents into an index segment of their own, in its own
+ * 		subdirectory of the index directory, so the cost of an addition depends only on the new documents
+ * The live segments are listed, oldest first, in a segments file that is replaced atomically
+ * 		whenever segments are added or merged, so an index can be reopened after a restart
+ * getIndex returns a SegmentedIndex view that searches across all live segments
+ *
+ * Segments are folded together in a background thread using a tiered merge policy
+ * Implementation details:
+ * 	A segment with n documents belongs to tier floor(log(n) / log(mergeFactor))
+ * 	Whenever mergeFactor adjacent segments are in the same tier, they are merged into a single segment,
+ * 		which usually lands in the next tier
+ * 	Only adjacent segments are merged, so the segments stay in document order
+ * 	Merges run one at a time, so the segments being merged stay adjacent while new segments are added
+ * 	Merged segments are deleted once the merged segment is live, views taken earlier keep reading the
+ * 		deleted files through their memory mappings
+ * 	The merge thread is a daemon, so the JVM can exit without close, a merge still running then is
+ * 		never committed and its directory is deleted when the index is next opened
+ *
+ * @author Miranda Myers
+ *
+ */
+public class IndexWriter {
+	public static final int DEFAULT_MERGE_FACTOR = 4;  // Number of segments of a tier that are merged together
+	private final String SEGMENTS_FILENAME = "segments.bin";
+	private final String SEGMENT_DIRECTORY_PREFIX = "segment-";
+	private String indexDirectory; // Directory holding the segments file and the segment directories
+	private boolean useStemming;
+	private long memoryBudget; // Memory budget of each segment build, 0 to keep all postings in memory
+	private PostingsCodec postingsCodec;
+	private long maxSegmentSize; // Cap on the size of each inverted file segment within an index segment
+	private int mergeFactor;
+	private long generation = 0; // Incremented every time the live segments change
+	private int nextSegmentNumber = 0; // Number used to name the next segment directory
+	private List<InvertedFileAccessor> segments = new ArrayList<>(); // Live segments, in document order
+	private boolean mergeScheduled = false; // Whether the merge thread has been asked to look for merges
+	private ExecutorService mergeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			//A daemon thread does not keep the JVM alive, a merge cut short by exit is never committed
+			Thread thread = new Thread(runnable, "index-merger");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+
+	/**
+	 * Open the index in the given directory, or create an empty one if there is none
+	 * @param indexDirectory
+	 * @param useStemming
+	 * @throws IOException
+	 */
+	public IndexWriter(String indexDirectory, boolean useStemming) throws IOException {
+		this(indexDirectory, useStemming, 0, PostingsCodec.PFOR_DELTA, InvertedFileAccessor.DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_MERGE_FACTOR);
+	}
+
+
+	/**
+	 * Open the index in the given directory, or create an empty one if there is none
+	 * Segment directories that are not listed in the segments file, left over from an interrupted
+	 * 		addition or merge, are deleted
+	 * @param indexDirectory
+	 * @param useStemming
+	 * @param memoryBudget
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @param mergeFactor
+	 * @throws IOException
+	 */
+	public IndexWriter(String indexDirectory, boolean useStemming, long memoryBudget, PostingsCodec postingsCodec,
+			long maxSegmentSize, int mergeFactor) throws IOException {
+		this.indexDirectory = indexDirectory;
+		this.useStemming = useStemming;
+		this.memoryBudget = memoryBudget;
+		this.postingsCodec = postingsCodec;
+		this.maxSegmentSize = maxSegmentSize;
+		this.mergeFactor = mergeFactor;
+
+		new File(indexDirectory).mkdirs();
+		if (new File(indexDirectory, SEGMENTS_FILENAME).exists()) {
+			readSegmentsFile();
+		}
+		deleteUnusedSegments();
+	}
+
+
+	/**
+	 * Index the documents of the given input file as a new segment and make it live
+	 * The documents must come after all documents already in the index
+	 * Several additions may run at once, they become live in the order they finish
+	 * 		A segment whose documents do not follow those of the live segments, such as one that finished
+	 * 		before an addition of earlier documents, is rejected and deleted, so the segments stay in document order
+	 * @param inputFileName
+	 * @throws IOException if the segment cannot be built, or its documents do not follow the live segments
+	 */
+	public void addDocuments(String inputFileName) throws IOException {
+		String segmentDirectory = newSegmentDirectory();
+		InvertedFileAccessor segment = new InvertedFileAccessor(segmentDirectory, inputFileName, useStemming, memoryBudget,
+				postingsCodec, maxSegmentSize, 1);
+		if (segment.getDictionary() == null) {
+			throw new IOException("Could not build a segment for " + inputFileName);
+		}
+
+		synchronized (this) {
+			int lastDocumentId = getLastDocumentId();
+			if (segment.getNumDocuments() > 0 && segment.getMinDocumentId() <= lastDocumentId) {
+				deleteDirectory(new File(segmentDirectory));
+				throw new IOException("Documents of " + inputFileName + " start at ID " + segment.getMinDocumentId()
+						+ ", not after the last document ID " + lastDocumentId + " of the index");
+			}
+			segments.add(segment);
+			commit();
+			scheduleMerge();
+		}
+	}
+
+
+	/**
+	 * Get the largest document ID of the live segments
+	 * Must be called while holding the lock
+	 * @return Integer.MIN_VALUE if no live segment has documents
+	 */
+	private int getLastDocumentId() {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			InvertedFileAccessor segment = segments.get(i);
+			if (segment.getNumDocuments() > 0) {
+				return segment.getMinDocumentId() + segment.getNumDocumentIds() - 1;
+			}
+		}
+		return Integer.MIN_VALUE;
+	}
+
+
+	/**
+	 * Get a view of all live segments
+	 * @return
+	 */
+	public synchronized SegmentedIndex getIndex() {
+		return new SegmentedIndex(segments, generation);
+	}
+
+
+	/**
+	 * Get the generation of the index, which changes whenever segments are added or merged
+	 * @return
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+
+	/**
+	 * Wait until the merge thread has finished all merges scheduled so far
+	 * @throws IOException
+	 */
+	public void waitForMerges() throws IOException {
+		try {
+			mergeExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+	}
+
+
+	/**
+	 * Finish any running merges and stop the merge thread
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		mergeExecutor.shutdown();
+		try {
+			mergeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+
+	/**
+	 * Reserve the directory for a new segment
+	 * @return
+	 */
+	private synchronized String newSegmentDirectory() {
+		return new File(indexDirectory, SEGMENT_DIRECTORY_PREFIX + nextSegmentNumber++).getPath();
+	}
+
+
+	/**
+	 * Ask the merge thread to look for merges, unless it has already been asked
+	 * Must be called while holding the lock
+	 */
+	private void scheduleMerge() {
+		if (mergeScheduled) {
+			return;
+		}
+		mergeScheduled = true;
+		mergeExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mergeSegments();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Merge segments until the merge policy finds nothing more to merge
+	 * The merged segment is built without holding the lock, so additions and searches continue meanwhile
+	 * If a merge fails, merging is still scheduled again by the next addition
+	 * @throws IOException
+	 */
+	private void mergeSegments() throws IOException {
+		boolean done = false; // Whether the policy found nothing more to merge, which clears the flag itself
+		try {
+			mergeUntilDone();
+			done = true;
+		}
+		finally {
+			if (!done) {
+				synchronized (this) {
+					mergeScheduled = false;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Merge segments until the merge policy finds nothing more to merge, then clear mergeScheduled
+	 * 		in the same locked step that found nothing, so an addition made meanwhile schedules a new search
+	 * @throws IOException
+	 */
+	private void mergeUntilDone() throws IOException {
+		while (true) {
+			List<InvertedFileAccessor> mergeSegments;
+			synchronized (this) {
+				mergeSegments = findMerge();
+				if (mergeSegments == null) {
+					mergeScheduled = false;
+					return;
+				}
+			}
+
+			InvertedFileAccessor mergedSegment = InvertedFileAccessor.merge(newSegmentDirectory(), mergeSegments, postingsCodec, maxSegmentSize);
+
+			synchronized (this) {
+				int start = segments.indexOf(mergeSegments.get(0));
+				segments.subList(start, start + mergeSegments.size()).clear();
+				segments.add(start, mergedSegment);
+				commit();
+			}
+
+			for (InvertedFileAccessor segment : mergeSegments) {
+				deleteDirectory(new File(segment.getIndexDirectory()));
+			}
+		}
+	}
+
+
+	/**
+	 * Find the oldest run of mergeFactor adjacent segments in the same tier
+	 * Must be called while holding the lock
+	 * @return the segments to merge, or null if there is nothing to merge
+	 */
+	private List<InvertedFileAccessor> findMerge() {
+		int start = 0;
+		while (start + mergeFactor <= segments.size()) {
+			int tier = getTier(segments.get(start));
+			int end = start + 1;
+			while (end < segments.size() && getTier(segments.get(end)) == tier) {
+				end++;
+			}
+
+			if (end - start >= mergeFactor) {
+				return new ArrayList<>(segments.subList(start, start + mergeFactor));
+			}
+			start = end;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Get the tier of a segment, floor(log(n) / log(mergeFactor)) for a segment with n documents
+	 * @param segment
+	 * @return
+	 */
+	private int getTier(InvertedFileAccessor segment) {
+		int tier = 0;
+		for (long size = segment.getNumDocuments(); size >= mergeFactor; size /= mergeFactor) {
+			tier++;
+		}
+		return tier;
+	}
+
+
+	/**
+	 * Advance the generation and write the segments file for the live segments
+	 * The file is written under a temporary name and then renamed over the old one,
+	 * 		so a reader never sees a partly written list
+	 * Segments file format: generation, next segment number, number of segments, then the
+	 * 		directory name of each segment in document order
+	 * Must be called while holding the lock
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		generation++;
+
+		File segmentsFile = new File(indexDirectory, SEGMENTS_FILENAME);
+		File temporaryFile = new File(indexDirectory, SEGMENTS_FILENAME + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+		try {
+			output.writeLong(generation);
+			output.writeInt(nextSegmentNumber);
+			output.writeInt(segments.size());
+			for (InvertedFileAccessor segment : segments) {
+				output.writeUTF(new File(segment.getIndexDirectory()).getName());
+			}
+		}
+		finally {
+			output.close();
+		}
+
+		Files.move(temporaryFile.toPath(), segmentsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * Read the segments file and open the live segments
+	 * @throws IOException
+	 */
+	private void readSegmentsFile() throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(indexDirectory, SEGMENTS_FILENAME))));
+		try {
+			generation = input.readLong();
+			nextSegmentNumber = input.readInt();
+			int numSegments = input.readInt();
+			for (int i = 0; i < numSegments; i++) {
+				segments.add(InvertedFileAccessor.open(new File(indexDirectory, input.readUTF()).getPath()));
+			}
+		}
+		finally {
+			input.close();
+		}
+	}
+
+
+	/**
+	 * Delete the segment directories that are not live
+	 */
+	private void deleteUnusedSegments() {
+		Set<String> liveSegmentNames = new HashSet<>();
+		for (InvertedFileAccessor segment : segments) {
+			liveSegmentNames.add(new File(segment.getIndexDirectory()).getName());
+		}
+
+		File[] files = new File(indexDirectory).listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory() && file.getName().startsWith(SEGMENT_DIRECTORY_PREFIX) && !liveSegmentNames.contains(file.getName())) {
+				deleteDirectory(file);
+			}
+		}
+	}
+
+
+	/**
+	 * Delete a segment directory and the files in it
+	 * @param directory
+	 */
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
@@ -1,70 +1,371 @@
 package edu.jhu.ir.documentsimilarity;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import edu.jhu.ir.documentsimilarity.IRUtil.InvertedFileRecord;
 import edu.jhu.ir.documentsimilarity.IRUtil.Term;
 
 /**
  * This class builds an inverted file that contains a postings list for each dictionary term
- * The inverted file is a binary file
- * It also writes the dictionary to disk, which is in the form of a serialized object
+ * The inverted file is a binary file whose postings are written with a PostingsCodec recorded in its header
+ * It is written as a sequence of segment files, each capped at a maximum size, and every postings
+ * 		list is addressed by its segment number and a 64-bit offset within that segment
+ * It also writes the dictionary to disk in the compact Dictionary format, which is mapped into memory
+ * 		for lookups once the index has been built
  * For each word in the dictionary, a file offset to the corresponding on-disk posting list is stored
+ * Once the postings are written, the TF-IDF vector length of every document is computed and stored
+ * 		in a norms file, so cosine scoring needs no pass over the index
+ * The largest normalized TF-IDF weight of every term is stored in a max weights file,
+ * 		which gives query evaluation an upper bound on each term's contribution to a score
+ * Postings read for queries go through a PostingsCache bounded by a byte budget, so the postings of
+ * 		terms that queries keep using are not decoded again
  *
- * This program follows the memory-based inversion algorithm (Algorithm A)
+ * By default this program follows the memory-based inversion algorithm (Algorithm A)
  * 		It writes out the postings after all documents have been read
+ * When a memory budget is given it follows single-pass in-memory inversion (SPIMI) instead
+ * 		Postings are buffered until the budget is reached, then flushed to disk as a sorted run
+ * 		After all documents have been read the runs are k-way merged into the inverted file
+ * When several threads are given the input is split at document boundaries into one shard per thread
+ * 		Each thread builds sorted runs for its shard, and all runs are merged in document order
+ * Several indexes of the same input with different analysis, such as stemmed and unstemmed, can be built
+ * 		together with build, which reads and tokenizes the input once and feeds every token to each index
+ *
+ * All index files are kept in an index directory, the working directory by default
+ * A finished index can be reopened with open, and several indexes can be merged into one with merge
+ * Each index has a manifest, when the manifest shows the index directory already holds an index
+ * 		of the same input file with the same settings, the constructors open it instead of rebuilding
  * @author Miranda Myers
  *
  */
 public class InvertedFileAccessor {
 	private boolean useStemming;
-	private final int INT_SIZE = 4;  // Number of bytes per int written to the inverted file
-	private final String INVERTED_FILENAME = "inverted-file.bin";
-	private final String DICTIONARY_FILENAME = "dictionary.ser";
+	private final String INVERTED_FILENAME_PREFIX = "inverted-file-";
+	private final String INVERTED_FILENAME_SUFFIX = ".bin";
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 1L << 30;  // Default cap on the size of each inverted file segment
+	private final String DICTIONARY_FILENAME = "dictionary.bin";
+	private final String RUN_FILENAME_PREFIX = "inverted-file-run-";
+	private final int MAX_MERGE_FAN_IN = 64;  // Runs merged at once, bounds the open files and merge heap of the run merge
+	private final String MANIFEST_FILENAME = "manifest.properties";
+	private final String NORMS_FILENAME = "document-norms.bin";
+	private final int NORMS_HEADER_SIZE = 8;  // Smallest document ID and number of document IDs covered
+	private final String MAX_WEIGHTS_FILENAME = "term-max-weights.bin";
+	private final int MAX_WEIGHTS_HEADER_SIZE = 4;  // Number of terms covered
+	private final int FORMAT_VERSION = 3;  // Changed whenever the layout of the index files changes
+	private final int ARRAY_HEADER_SIZE = 16;  // Heap bytes taken by an array object besides its elements
+	private String indexDirectory; // Directory holding the index files
 	private String inputFileName; // Name of input file for which to create inverted file
-	private int numDocuments = 0; // Number of paragraphs processed
+	private long numDocuments = 0; // Number of paragraphs processed
 	private int vocabularySize = 0; // Number of unique words observed
-	private Map<String, Term> lexicon = new HashMap<>();  // Lexicon that will hold all terms
-	private Map<String, List<InvertedFileRecord>> invertedFileRecords = new TreeMap<>();	// Map containing each inverted file record sorted by term, then docId
+	private long memoryBudget; // Number of bytes of postings to buffer before flushing a run, 0 to keep all postings in memory
+	private int numThreads; // Number of threads that build the index, each over its own shard of the input
+	private PostingsCodec postingsCodec; // Encoding used for the postings written to the inverted file
+	private PostingsReader postingsReader; // Memory-mapped view of the inverted file used to read postings
+	private long postingsCacheCapacity = PostingsCache.DEFAULT_CAPACITY; // Byte budget of the postings cache
+	private PostingsCache postingsCache; // Recently decoded postings of frequently read terms
+	private Dictionary dictionary; // Memory-mapped dictionary used to look up terms once the index is built
+	private MappedByteBuffer documentNorms; // Memory-mapped TF-IDF vector length of each document
+	private MappedByteBuffer termMaxWeights; // Memory-mapped largest normalized TF-IDF weight of each term
+	private int minDocumentId = Integer.MAX_VALUE; // Smallest document ID in the index
+	private int maxDocumentId = Integer.MIN_VALUE; // Largest document ID in the index
+	private long maxSegmentSize; // Number of bytes after which the inverted file continues in a new segment
+	private int numSegments = 0; // Number of inverted file segments written
+	private long generation = 0; // Incremented every time an index is built in the index directory
+	private DataOutputStream segmentOutput; // Segment of the inverted file currently being written
+	private long segmentFilePointer; // Offset in the current segment that the next postings are written to
+	private int[] postingsDocumentIds = new int[1024]; // Document ids of the term currently being written
+	private int[] postingsTermFrequencies = new int[1024]; // Term frequencies of the term currently being written
+	private ByteArrayOutputStream encodedPostings = new ByteArrayOutputStream(); // Encoded postings of the term currently being written
+	private List<String> runFileNames = new ArrayList<>(); // Sorted partial runs written to disk by all shards, in document order
+	private Map<String, Term> lexicon = new HashMap<>();  // Lexicon that will hold all terms while the index is built
+	private IndexShard bufferedShard; // Shard holding all postings in memory when no runs were written
+
+
+	/**
+	 * Given an input file name, builds an inverted index and lexicon on disk
+	 * All postings are held in memory until the inverted file is written
+	 * @param inputFileName
+	 * @throws IOException if the index cannot be built
+	 */
+	public InvertedFileAccessor(String inputFileName, boolean useStemming) throws IOException {
+		this(inputFileName, useStemming, 0, PostingsCodec.PFOR_DELTA, DEFAULT_MAX_SEGMENT_SIZE, 1);
+	}
 
 
 	/**
 	 * Given an input file name, builds an inverted index and lexicon on disk
+	 * At most memoryBudget bytes of postings are held in memory at once, a budget of 0
+	 * 		keeps all postings in memory
+	 * Postings are written to the inverted file using the given codec, starting a new segment
+	 * 		whenever the current one would grow past maxSegmentSize bytes
+	 * @param inputFileName
+	 * @param useStemming
+	 * @param memoryBudget
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @throws IOException if the index cannot be built
+	 */
+	public InvertedFileAccessor(String inputFileName, boolean useStemming, long memoryBudget, PostingsCodec postingsCodec, long maxSegmentSize) throws IOException {
+		this(inputFileName, useStemming, memoryBudget, postingsCodec, maxSegmentSize, 1);
+	}
+
+
+	/**
+	 * Given an input file name, builds an inverted index and lexicon on disk using numThreads threads
+	 * The input is split at document boundaries into numThreads shards of about equal size,
+	 * 		and the memory budget is shared evenly between the threads
+	 * @param inputFileName
+	 * @param useStemming
+	 * @param memoryBudget
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @param numThreads
+	 * @throws IOException if the index cannot be built
+	 */
+	public InvertedFileAccessor(String inputFileName, boolean useStemming, long memoryBudget, PostingsCodec postingsCodec, long maxSegmentSize, int numThreads) throws IOException {
+		this(".", inputFileName, useStemming, memoryBudget, postingsCodec, maxSegmentSize, numThreads);
+	}
+
+
+	/**
+	 * Given an input file name, builds an inverted index and lexicon in the given index directory
+	 * The directory is created if it does not exist
+	 * @param indexDirectory
+	 * @param inputFileName
+	 * @param useStemming
+	 * @param memoryBudget
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @param numThreads
+	 * @throws IOException if the index cannot be built
+	 */
+	public InvertedFileAccessor(String indexDirectory, String inputFileName, boolean useStemming, long memoryBudget, PostingsCodec postingsCodec, long maxSegmentSize, int numThreads) throws IOException {
+		this(indexDirectory, inputFileName, useStemming, memoryBudget, postingsCodec, maxSegmentSize, numThreads, true);
+	}
+
+
+	/**
+	 * Create an accessor for an index of the given input file in the given directory
+	 * The directory is created if it does not exist
+	 * When building, an index already in the directory is opened instead if it is current
+	 * @param indexDirectory
 	 * @param inputFileName
+	 * @param useStemming
+	 * @param memoryBudget
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @param numThreads
+	 * @param buildIndex whether to open or build the index right away, otherwise build does it
+	 * 		together with other indexes
+	 * @throws IOException if the index cannot be built
 	 */
-	public InvertedFileAccessor(String inputFileName, boolean useStemming) {
+	private InvertedFileAccessor(String indexDirectory, String inputFileName, boolean useStemming, long memoryBudget, PostingsCodec postingsCodec, long maxSegmentSize, int numThreads,
+			boolean buildIndex) throws IOException {
+		this.indexDirectory = indexDirectory;
 		this.inputFileName = inputFileName;
 		this.useStemming = useStemming;
+		this.memoryBudget = memoryBudget;
+		this.postingsCodec = postingsCodec;
+		this.maxSegmentSize = maxSegmentSize;
+		this.numThreads = numThreads;
+		new File(indexDirectory).mkdirs();
+		generation = readPreviousGeneration();
+
+		//Skip the build if the index directory already holds an index of the same input
+		if (!buildIndex || openExistingIndex()) {
+			return;
+		}
 
 		//Build the dictionary
-		buildLexicon();
+		buildLexicons(Collections.singletonList(this));
+
+		//Create the inverted file and write the index to disk
+		writeIndex();
+	}
+
+
+	/**
+	 * Create an accessor for the index in the given directory without building anything
+	 * Used by open and merge
+	 * @param indexDirectory
+	 */
+	private InvertedFileAccessor(String indexDirectory) {
+		this.indexDirectory = indexDirectory;
+	}
+
+
+	/**
+	 * Given an input file name, builds several indexes of it in a single pass over the input
+	 * Each index is named by its index directory and has its own analysis, stemmed or not
+	 * The input is read and tokenized once, every token is added to each index after that index's analysis
+	 * Indexes whose directory already holds a current index are opened instead, and the input
+	 * 		is only read if some index has to be built
+	 * Every index built at once gets the whole memory budget, so building them together needs as much
+	 * 		memory as building them one after the other
+	 * @param inputFileName
+	 * @param indexStemming whether each index, by index directory, uses stemming
+	 * @param memoryBudget
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @param numThreads
+	 * @return the indexes by index directory, in the order given
+	 * @throws IOException if an index cannot be built
+	 */
+	public static Map<String, InvertedFileAccessor> build(String inputFileName, Map<String, Boolean> indexStemming, long memoryBudget,
+			PostingsCodec postingsCodec, long maxSegmentSize, int numThreads) throws IOException {
+		Map<String, InvertedFileAccessor> invertedFileAccessors = new LinkedHashMap<>();
+		List<InvertedFileAccessor> staleAccessors = new ArrayList<>();
+		for (Entry<String, Boolean> entry : indexStemming.entrySet()) {
+			InvertedFileAccessor invertedFileAccessor = new InvertedFileAccessor(entry.getKey(), inputFileName, entry.getValue(),
+					memoryBudget, postingsCodec, maxSegmentSize, numThreads, false);
+			if (!invertedFileAccessor.openExistingIndex()) {
+				staleAccessors.add(invertedFileAccessor);
+			}
+			invertedFileAccessors.put(entry.getKey(), invertedFileAccessor);
+		}
+
+		if (!staleAccessors.isEmpty()) {
+			buildLexicons(staleAccessors);
+			for (InvertedFileAccessor invertedFileAccessor : staleAccessors) {
+				invertedFileAccessor.writeIndex();
+			}
+		}
+		return invertedFileAccessors;
+	}
 
-		//Create the inverted file and write to binary file
-		createInvertedIndex();
 
-		//Write the lexicon to disk
+	/**
+	 * Create the inverted file from the lexicon and postings that were built, write the rest of the index
+	 * 		to disk and map it for reading
+	 * The manifest is written only once every other file has been written, so a failed build leaves
+	 * 		no manifest and is rebuilt by the next run
+	 * @throws IOException if any file of the index cannot be written
+	 */
+	private void writeIndex() throws IOException {
 		try {
+			//Create the inverted file and write to binary file
+			createInvertedIndex();
+
+			//Write the lexicon to disk and map the dictionary and inverted file for reading
 			writeDictionaryToFile();
-		} catch (IOException e) {
-			e.printStackTrace();
+			openIndex();
+			writeDocumentNorms();
+			openDocumentNorms();
+			writeTermMaxWeights();
+			openTermMaxWeights();
+			writeManifest();
+		}
+		finally {
+			//The in-memory lexicon and postings are no longer needed once they are on disk
+			lexicon = new HashMap<>();
+			bufferedShard = null;
+		}
+	}
+
+
+	/**
+	 * Open an index that was built earlier in the given directory, whatever input it was built from
+	 * @param indexDirectory
+	 * @return
+	 * @throws IOException if the index is missing or was written in a different format version
+	 */
+	public static InvertedFileAccessor open(String indexDirectory) throws IOException {
+		InvertedFileAccessor invertedFileAccessor = new InvertedFileAccessor(indexDirectory);
+		Properties manifest = invertedFileAccessor.readManifest();
+		if (!String.valueOf(invertedFileAccessor.FORMAT_VERSION).equals(manifest.getProperty("format.version"))) {
+			throw new IOException("Index in " + indexDirectory + " has format version " + manifest.getProperty("format.version")
+					+ ", expected " + invertedFileAccessor.FORMAT_VERSION);
 		}
+		invertedFileAccessor.loadManifest(manifest);
+		invertedFileAccessor.openIndex();
+		invertedFileAccessor.openDocumentNorms();
+		invertedFileAccessor.openTermMaxWeights();
+		return invertedFileAccessor;
+	}
+
+
+	/**
+	 * Build a new index in the given directory that holds the documents of all the given indexes
+	 * The indexes must be given in document order, the postings of each term are concatenated in that order
+	 * Document and collection frequencies are summed, and the postings are re-encoded with postingsCodec
+	 * @param indexDirectory
+	 * @param invertedFileAccessors
+	 * @param postingsCodec
+	 * @param maxSegmentSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static InvertedFileAccessor merge(String indexDirectory, List<InvertedFileAccessor> invertedFileAccessors,
+			PostingsCodec postingsCodec, long maxSegmentSize) throws IOException {
+		InvertedFileAccessor invertedFileAccessor = new InvertedFileAccessor(indexDirectory);
+		invertedFileAccessor.useStemming = invertedFileAccessors.get(0).useStemming;
+		invertedFileAccessor.postingsCodec = postingsCodec;
+		invertedFileAccessor.maxSegmentSize = maxSegmentSize;
+		new File(indexDirectory).mkdirs();
+		invertedFileAccessor.generation = invertedFileAccessor.readPreviousGeneration();
+
+		invertedFileAccessor.mergeIndexes(invertedFileAccessors);
+		invertedFileAccessor.writeDictionaryToFile();
+		invertedFileAccessor.openIndex();
+		invertedFileAccessor.writeDocumentNorms();
+		invertedFileAccessor.openDocumentNorms();
+		invertedFileAccessor.writeTermMaxWeights();
+		invertedFileAccessor.openTermMaxWeights();
+		invertedFileAccessor.writeManifest();
+
+		invertedFileAccessor.lexicon = new HashMap<>();
+		return invertedFileAccessor;
+	}
+
+
+	/**
+	 * Get the directory holding the index files
+	 * @return
+	 */
+	public String getIndexDirectory() {
+		return indexDirectory;
+	}
+
+
+	/**
+	 * Get the generation of the index, which changes whenever an index is built in its directory
+	 * Anything derived from the index, such as cached query results, is stale once the generation changes
+	 * @return
+	 */
+	public long getGeneration() {
+		return generation;
 	}
 
 
@@ -72,7 +373,7 @@ public class InvertedFileAccessor {
 	 * Get the number of documents processed
 	 * @return
 	 */
-	public int getNumDocuments() {
+	public long getNumDocuments() {
 		return numDocuments;
 	}
 
@@ -87,32 +388,66 @@ public class InvertedFileAccessor {
 
 
 	/**
-	 * Retrieve the dictionary from disk
+	 * Get the smallest document ID in the index
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
-	public Map<String, Term> getLexiconFromDisk() {
-		ObjectInput input = null;
-		try {
-			InputStream file = new FileInputStream(DICTIONARY_FILENAME);
-			InputStream buffer = new BufferedInputStream(file);
-			input = new ObjectInputStream (buffer);
-			return (Map<String, Term>) input.readObject();
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-		}
-		finally {
-			if (input != null) {
-				try {
-					input.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+	public int getMinDocumentId() {
+		return minDocumentId;
+	}
+
+
+	/**
+	 * Get the number of document IDs from the smallest to the largest document ID in the index
+	 * Arrays indexed by document ID minus the smallest document ID need this many entries
+	 * @return
+	 */
+	public int getNumDocumentIds() {
+		return documentNorms.getInt(4);
+	}
+
+
+	/**
+	 * Whether terms in the index were truncated to 5 characters
+	 * @return
+	 */
+	public boolean getUseStemming() {
+		return useStemming;
+	}
+
+
+	/**
+	 * Get the length of a document's TF-IDF vector, computed when the index was built
+	 * The IDF of each term is taken over this index, as IRUtil.getIdf computes it
+	 * @param documentId
+	 * @return the vector length, or 0 for a document ID that is not in the index
+	 */
+	public double getDocumentNorm(int documentId) {
+		long index = (long) documentId - minDocumentId;
+		if (index < 0 || index > (long) maxDocumentId - minDocumentId) {
+			return 0;
 		}
+		return documentNorms.getDouble(NORMS_HEADER_SIZE + 8 * (int) index);
+	}
+
+
+	/**
+	 * Get the largest normalized TF-IDF weight, tf * idf / document norm, of a term over all documents
+	 * This bounds the term's contribution to the cosine score of any document, which lets
+	 * 		query evaluation skip documents that cannot make it into the top ranked documents
+	 * @param termId
+	 * @return
+	 */
+	public double getTermMaxWeight(int termId) {
+		return termMaxWeights.getDouble(MAX_WEIGHTS_HEADER_SIZE + 8 * termId);
+	}
+
 
-		return null;
+	/**
+	 * Get the dictionary mapped from disk
+	 * @return
+	 */
+	public Dictionary getDictionary() {
+		return dictionary;
 	}
 
 
@@ -120,196 +455,1322 @@ public class InvertedFileAccessor {
 	 * Given a token, access the corresponding records for that token in the inverted file
 	 * Return a list of InvertedFileRecord objects that contain the postings list and
 	 * document counts for the token
+	 * The postings are decoded from the memory-mapped inverted file with the codec recorded in its header
+	 * Safe to call from several threads at once
 	 * @throws IOException
 	 */
 	public List<InvertedFileRecord> readInvertedIndex(String token) throws IOException {
-		List<InvertedFileRecord> invertedFileRecordList = new ArrayList<>();
-		RandomAccessFile randomAccessFile = new RandomAccessFile(INVERTED_FILENAME, "r");
-
-		Term term = lexicon.get(token);
-
-		if (term != null) {
-			int documentFrequency = term.getDocumentFrequency() * 2;  // The number of integers stored for the token
+		int termId = dictionary.getTermId(token);
+		if (termId < 0) {
+			return new ArrayList<>();
+		}
+		return readInvertedIndex(termId);
+	}
 
-			int filePointer = term.getInvertedFileLocation();
 
-			for (int i = 0; i < documentFrequency; i+=2) {
-				randomAccessFile.seek(filePointer);
-				int documentId = randomAccessFile.readInt();
-				filePointer += INT_SIZE;
+	/**
+	 * Given a term ID from the dictionary, access the corresponding records in the inverted file
+	 * Safe to call from several threads at once
+	 * @param termId
+	 * @return
+	 * @throws IOException
+	 */
+	public List<InvertedFileRecord> readInvertedIndex(int termId) throws IOException {
+		List<InvertedFileRecord> invertedFileRecordList = new ArrayList<>();
 
-				randomAccessFile.seek(filePointer);
-				int count = randomAccessFile.readInt();
-				filePointer += INT_SIZE;
+		int documentFrequency = dictionary.getDocumentFrequency(termId);
+		int[] documentIds = new int[documentFrequency];
+		int[] termFrequencies = new int[documentFrequency];
+		readPostings(termId, documentIds, termFrequencies);
 
-				invertedFileRecordList.add(new InvertedFileRecord(documentId, count));
-			}
+		for (int i = 0; i < documentFrequency; i++) {
+			invertedFileRecordList.add(new InvertedFileRecord(documentIds[i], termFrequencies[i]));
 		}
-		randomAccessFile.close();
 		return invertedFileRecordList;
 	}
 
 
 	/**
-	 * Read the input file and build the corresponding lexicon
+	 * Given a term ID from the dictionary, decode its postings into the given arrays
+	 * The arrays must hold at least the term's document frequency entries
+	 * Postings are copied from the postings cache when it holds them, otherwise they are decoded
+	 * 		from the inverted file and offered to the cache
+	 * Safe to call from several threads at once
+	 * @param termId
+	 * @param documentIds
+	 * @param termFrequencies
+	 * @return number of postings decoded, the term's document frequency
+	 * @throws IOException
 	 */
-	private void buildLexicon() {
-		FileReader fileReader = null;
-		BufferedReader bufferedReader = null;
-		try {
-			fileReader = new FileReader(inputFileName);
-			bufferedReader = new BufferedReader(fileReader);
+	public int readPostings(int termId, int[] documentIds, int[] termFrequencies) throws IOException {
+		return readPostings(termId, documentIds, termFrequencies, null);
+	}
 
-			buildLexicon(bufferedReader);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (bufferedReader != null) {
-					bufferedReader.close();
-				}
-				if (fileReader != null) {
-					fileReader.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Given a term ID from the dictionary, decode its postings into the given arrays, counting the read
+	 * 		for a query as a postings cache hit or as the encoded bytes decoded
+	 * @param termId
+	 * @param documentIds
+	 * @param termFrequencies
+	 * @param queryMetrics metrics of the query reading the postings, may be null
+	 * @return number of postings decoded, the term's document frequency
+	 * @throws IOException
+	 */
+	public int readPostings(int termId, int[] documentIds, int[] termFrequencies, QueryMetrics queryMetrics) throws IOException {
+		int documentFrequency = dictionary.getDocumentFrequency(termId);
+		if (postingsCache.get(termId, documentIds, termFrequencies)) {
+			if (queryMetrics != null) {
+				queryMetrics.addPostingsCacheHit();
+			}
+		}
+		else {
+			decodePostings(termId, documentIds, termFrequencies);
+			postingsCache.put(termId, documentIds, termFrequencies, documentFrequency);
+			if (queryMetrics != null) {
+				queryMetrics.addPostingsBytes(dictionary.getPostingsLength(termId));
 			}
 		}
+		return documentFrequency;
 	}
 
 
 	/**
-	 * Build lexicon helper
-	 * Build the lexicon
-	 * Calculate collection size and total number of documents
-	 * Calculate document frequency for each term
-	 * Build a TreeMap containing inverted file records sorted by term then by docID
-	 * @param bufferedReader
-	 * @throws IOException
+	 * Decode the postings of a term from the inverted file, bypassing the postings cache
+	 * Used when building, where every term is read once and caching would only evict query terms,
+	 * 		such as when the norms, max weights or impacts files are written
+	 * @param termId
+	 * @param documentIds
+	 * @param termFrequencies
 	 */
-	private void buildLexicon(BufferedReader bufferedReader) throws IOException {
-		String currentLine;
+	public void decodePostings(int termId, int[] documentIds, int[] termFrequencies) {
+		postingsReader.readPostings(dictionary.getPostingsSegment(termId), dictionary.getPostingsLocation(termId),
+				dictionary.getPostingsLength(termId), dictionary.getDocumentFrequency(termId), documentIds, termFrequencies);
+	}
 
-		while ((currentLine = bufferedReader.readLine()) != null) {
-			if (currentLine.startsWith("<P ID=")) { // The start of a new document (paragraph)
-				numDocuments++;
-				int documentId = Integer.parseInt(currentLine.replace("<P ID=", "").replace(">", ""));
-				currentLine = bufferedReader.readLine();
-				Map<String, Integer> tokensInDocument = new HashMap<>();
 
-				while (currentLine != null && !currentLine.startsWith("</P>")) {
-					List<String> tokens = IRUtil.tokenize(currentLine);
+	/**
+	 * Set the byte budget of the postings cache, replacing the cache and its counters
+	 * @param capacity 0 disables caching
+	 */
+	public void setPostingsCacheCapacity(long capacity) {
+		postingsCacheCapacity = capacity;
+		postingsCache = new PostingsCache(capacity, dictionary.size());
+	}
 
-					for (String token : tokens) {
-						if (useStemming) {
-							if (token.length() > 5) {
-								token = token.substring(0, 5);
-							}
-						}
-						if (tokensInDocument.containsKey(token)) {
-							int count = tokensInDocument.get(token).intValue();
-							tokensInDocument.put(token, ++count);
-						}
-						else {
-							tokensInDocument.put(token, 1);
-						}
-					}
 
-					currentLine = bufferedReader.readLine();
-				}
+	/**
+	 * Get the postings cache, to watch its hit, miss and eviction counts
+	 * @return
+	 */
+	public PostingsCache getPostingsCache() {
+		return postingsCache;
+	}
 
-				for (String token : tokensInDocument.keySet()) {
-					if (lexicon.containsKey(token)) {
-						Term term = lexicon.get(token);
-						int documentFrequency = term.getDocumentFrequency();
-						term.setDocumentFrequency(++documentFrequency); // Increment number of documents each token occurs in
-					}
-					else {
-						Term term = new Term();
-						term.setText(token);
-						int documentFrequency = term.getDocumentFrequency();
-						term.setDocumentFrequency(++documentFrequency);
-						lexicon.put(token, term);
-					}
 
-					int count = tokensInDocument.get(token);
+	/**
+	 * Read the input file once and build the corresponding lexicon of every given index
+	 * The indexes must share the input file and number of threads
+	 * The input file is split at document boundaries into one shard per thread
+	 * With a single thread the whole file is one shard, read in the calling thread
+	 * With several threads each shard is read in its own thread over a disjoint range of documents
+	 * 		and each index writes it out as sorted runs, which createInvertedIndex merges into the inverted file
+	 * The shard lexicons of each index are combined by summing document and collection frequencies
+	 * If any shard fails, the other shards are cancelled, the runs of every shard are deleted and the
+	 * 		failure of the shard is thrown, so the build fails the same way whatever the number of threads
+	 * @param invertedFileAccessors
+	 * @throws IOException
+	 */
+	private static void buildLexicons(List<InvertedFileAccessor> invertedFileAccessors) throws IOException {
+		InvertedFileAccessor firstAccessor = invertedFileAccessors.get(0);
+		int numThreads = firstAccessor.numThreads;
+		long[] shardBoundaries = firstAccessor.findShardBoundaries(numThreads);
+		List<ShardReader> shardReaders = new ArrayList<>();
+		for (int i = 0; i < numThreads; i++) {
+			List<IndexShard> shards = new ArrayList<>();
+			for (InvertedFileAccessor invertedFileAccessor : invertedFileAccessors) {
+				shards.add(invertedFileAccessor.new IndexShard(i));
+			}
+			shardReaders.add(new ShardReader(firstAccessor.inputFileName, shardBoundaries[i], shardBoundaries[i + 1], shards));
+		}
 
-					if (!invertedFileRecords.containsKey(token)) {
-						invertedFileRecords.put(token, new ArrayList<InvertedFileRecord>());
+		boolean finished = false;
+		try {
+			if (numThreads == 1) {
+				shardReaders.get(0).call();
+			}
+			else {
+				readShards(shardReaders);
+			}
+			finished = true;
+		}
+		finally {
+			if (!finished) {
+				for (ShardReader shardReader : shardReaders) {
+					for (IndexShard shard : shardReader.shards) {
+						shard.deleteRuns();
 					}
-					invertedFileRecords.get(token).add(new InvertedFileRecord(documentId, count));
 				}
 			}
 		}
-		vocabularySize = lexicon.keySet().size();
+
+		for (int i = 0; i < invertedFileAccessors.size(); i++) {
+			for (ShardReader shardReader : shardReaders) {
+				invertedFileAccessors.get(i).addShard(shardReader.shards.get(i));
+			}
+		}
+		for (InvertedFileAccessor invertedFileAccessor : invertedFileAccessors) {
+			invertedFileAccessor.vocabularySize = invertedFileAccessor.lexicon.keySet().size();
+		}
 	}
 
 
 	/**
-	 * Write to a binary file using 4-byte integers for document ids
-	 * and 4-byte integers for document term frequency
+	 * Read every shard in a thread of its own and wait for all of them
+	 * Once a shard fails, the shards still running are cancelled and waited for, then the shard's failure
+	 * 		is thrown as it was thrown in the shard's thread
+	 * @param shardReaders
+	 * @throws IOException
 	 */
-	private void createInvertedIndex() {
-		RandomAccessFile randomAccessFile = null;
+	private static void readShards(List<ShardReader> shardReaders) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(shardReaders.size());
+		List<Future<Void>> futures = new ArrayList<>();
 		try {
-			randomAccessFile = new RandomAccessFile(INVERTED_FILENAME, "rw"); // Open inverted binary file for writing
-			int filePointer = 0;
-			for (Entry<String, List<InvertedFileRecord>> invertedFileRecordsEntry: invertedFileRecords.entrySet()) {
-				String token = invertedFileRecordsEntry.getKey();
-				List<InvertedFileRecord> invertedFileRecordList = invertedFileRecordsEntry.getValue();
-
-				lexicon.get(token).setInvertedFileLocation(filePointer);
+			for (ShardReader shardReader : shardReaders) {
+				futures.add(executor.submit(shardReader));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading the input file");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		finally {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			executor.shutdownNow();
+			try {
+				//Let cancelled shards stop before their runs are deleted
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-				for (InvertedFileRecord invertedFileRecord : invertedFileRecordList) {
-					randomAccessFile.writeInt(invertedFileRecord.getDocumentId());
-					filePointer += INT_SIZE;
 
-					randomAccessFile.writeInt(invertedFileRecord.getTermFrequency());
-					filePointer += INT_SIZE;
-				}
+	/**
+	 * Split the input file into numShards byte ranges that each start at a document boundary
+	 * Implementation details:
+	 * 	Divide the file into ranges of equal size
+	 * 	Move the start of every range but the first forward to the next line that starts a document
+	 * 	Ranges may be empty when there are fewer documents than shards
+	 * @param numShards
+	 * @return numShards + 1 offsets, shard i covers the bytes from entry i up to entry i + 1
+	 * @throws IOException
+	 */
+	private long[] findShardBoundaries(int numShards) throws IOException {
+		long[] shardBoundaries = new long[numShards + 1];
+		RandomAccessFile inputFile = new RandomAccessFile(inputFileName, "r");
+		try {
+			long fileSize = inputFile.length();
+			shardBoundaries[numShards] = fileSize;
+			for (int i = 1; i < numShards; i++) {
+				long position = Math.max(shardBoundaries[i - 1], fileSize / numShards * i);
+				shardBoundaries[i] = findDocumentStart(inputFile, position);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 		finally {
-			try {
-				if (randomAccessFile != null) {
-					randomAccessFile.close();
+			inputFile.close();
+		}
+		return shardBoundaries;
+	}
+
+
+	/**
+	 * Find the offset of the first line at or after position that starts a document
+	 * Lines end at \n, \r or \r\n like in DocumentSource, so a document start is <P ID= after either byte
+	 * @param inputFile
+	 * @param position
+	 * @return offset of the document start, or the file size if there is none
+	 * @throws IOException
+	 */
+	private static long findDocumentStart(RandomAccessFile inputFile, long position) throws IOException {
+		if (position == 0) {
+			return 0;
+		}
+
+		byte[] pattern = "\n<P ID=".getBytes(StandardCharsets.US_ASCII);
+		byte[] buffer = new byte[64 * 1024];
+		long bufferStart = position - 1;  // Include the byte before position, a document may start right at position
+		int matched = 0;
+		int bytesRead;
+
+		inputFile.seek(bufferStart);
+		while ((bytesRead = inputFile.read(buffer)) > 0) {
+			for (int i = 0; i < bytesRead; i++) {
+				boolean lineEnd = buffer[i] == '\n' || buffer[i] == '\r';
+				if (matched == 0 ? lineEnd : buffer[i] == pattern[matched]) {
+					matched++;
+				}
+				else {
+					matched = lineEnd ? 1 : 0;
+				}
+
+				if (matched == pattern.length) {
+					return bufferStart + i - pattern.length + 2;  // Skip the line end
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
+			bufferStart += bytesRead;
 		}
+		return inputFile.length();
 	}
 
 
 	/**
-	 * Write the dictionary to a file as a serialized object
-	 * @throws IOException
+	 * Add the lexicon, postings and runs built by a shard to the index
+	 * Shards must be added in document order, so that their runs are merged in document order
+	 * @param shard
 	 */
-	private void writeDictionaryToFile() throws IOException {
-		FileOutputStream fos = new FileOutputStream(DICTIONARY_FILENAME);
-		ObjectOutputStream oos = new ObjectOutputStream(fos);
-		oos.writeObject(lexicon);
-		oos.close();
+	private void addShard(IndexShard shard) {
+		numDocuments += shard.numDocuments;
+		minDocumentId = Math.min(minDocumentId, shard.minDocumentId);
+		maxDocumentId = Math.max(maxDocumentId, shard.maxDocumentId);
+		runFileNames.addAll(shard.runFileNames);
+		if (shard.bufferedPostingsSize > 0) {
+			bufferedShard = shard;  // Only a single shard keeps its postings in memory
+		}
+
+		for (Term shardTerm : shard.terms) {
+			Term term = lexicon.get(shardTerm.getText());
+			if (term == null) {
+				lexicon.put(shardTerm.getText(), shardTerm);
+			}
+			else {
+				term.setDocumentFrequency(term.getDocumentFrequency() + shardTerm.getDocumentFrequency());
+				term.setCollectionFrequency(term.getCollectionFrequency() + shardTerm.getCollectionFrequency());
+			}
+		}
 	}
 
 
 	/**
-	 * Get and display the file size information for the dictionary file and the inverted file
-	 * Determine whether the original text or the index takes more space and print this information
-	 * Determine whether the dictionary or inverted file takes more space and print this information
+	 * Class reading a range of documents of the input file and tokenizing it once for several indexes
+	 * Every token is handed to the shard of each index, which applies its own analysis
 	 */
-	public void printFileSizeInformation() {
-		File dictionaryFile = new File(DICTIONARY_FILENAME);
-		long dictionaryFileSize = dictionaryFile.length();
+	private static class ShardReader implements Callable<Void> {
+		private String inputFileName;
+		private long start; // Offset of the first byte of the shard in the input file
+		private long end; // Offset just past the last byte of the shard
+		private List<IndexShard> shards; // Shard of each index being built
+		private Tokenizer tokenizer = new Tokenizer();
+
+		public ShardReader(String inputFileName, long start, long end, List<IndexShard> shards) {
+			this.inputFileName = inputFileName;
+			this.start = start;
+			this.end = end;
+			this.shards = shards;
+		}
+
+
+		/**
+		 * Read the documents of the shard and build the lexicon of each index
+		 * Stops between documents when the thread is interrupted, such as when another shard failed
+		 */
+		@Override
+		public Void call() throws IOException {
+			DocumentSource documentSource = new DocumentSource(inputFileName, start, end);
+			try {
+				while (documentSource.nextDocument()) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException("Shard reading was cancelled");
+					}
+					tokenizer.reset(documentSource.getBuffer(), documentSource.getTextStart(), documentSource.getTextEnd());
+					while (tokenizer.next()) {
+						for (IndexShard shard : shards) {
+							shard.addToken(tokenizer.getBuffer(), tokenizer.getLength());
+						}
+					}
+
+					for (IndexShard shard : shards) {
+						shard.addDocument(documentSource.getDocumentId());
+					}
+				}
+
+				for (IndexShard shard : shards) {
+					shard.finish();
+				}
+			}
+			finally {
+				documentSource.close();
+			}
+			return null;
+		}
+	}
+
+
+	/**
+	 * Class building the lexicon and postings of an index for a range of documents of the input file
+	 * The documents are read by a ShardReader, which hands over each token and the end of each document
+	 * When the index is built by a single shard, it follows Algorithm A unless the memory budget
+	 * 		is reached, in which case it follows SPIMI
+	 * When there are several shards, each gets an equal part of the memory budget and always
+	 * 		writes its postings out as runs, since they have to be merged with those of the other shards
+	 *
+	 * Terms are numbered in the order they are first seen, and everything per term is kept in arrays
+	 * 		indexed by that term ID, so building allocates per term rather than per token or posting
+	 * 	The postings of each term are buffered in a growable int array of (document ID, term frequency) pairs
+	 * 	The term counts of the current document are kept in a table indexed by term ID, together with the list
+	 * 		of term IDs seen in the document, which is used to clear the table for the next document
+	 * 	Tokens are looked up straight from the tokenizer's buffer in an open addressing hash table of term IDs,
+	 * 		so a String is only created for the first occurrence of each term
+	 */
+	private class IndexShard {
+		private int shardNumber;
+		private long memoryBudget; // Number of bytes of postings to buffer before flushing a run, 0 to keep all postings in memory
+		private boolean writeFinalRun; // Whether postings still buffered at the end are written to a run
+		private long numDocuments = 0; // Number of paragraphs processed
+		private int minDocumentId = Integer.MAX_VALUE; // Smallest document ID in the shard
+		private int maxDocumentId = Integer.MIN_VALUE; // Largest document ID in the shard
+		private long bufferedPostingsSize = 0; // Number of bytes allocated for the postings currently buffered
+		private List<String> runFileNames = new ArrayList<>(); // Sorted partial runs written to disk, in document order
+		private int[] termIdTable = new int[2048]; // Hash table holding term ID + 1 of each term in the shard, 0 for empty slots
+		private List<Term> terms = new ArrayList<>(); // Lexicon of the terms in the shard, indexed by term ID
+		private int[][] bufferedPostings = new int[1024][]; // Buffered postings of each term ID, null when there are none
+		private int[] numBufferedPostings = new int[1024]; // Number of postings buffered for each term ID
+		private int[] documentTermCounts = new int[1024]; // Count of each term ID in the current document, 0 between documents
+		private int[] documentTermIds = new int[1024]; // Term IDs seen in the current document
+		private int numDocumentTerms = 0; // Number of distinct terms seen in the current document
+
+		public IndexShard(int shardNumber) {
+			this.shardNumber = shardNumber;
+			this.writeFinalRun = numThreads > 1;
+			this.memoryBudget = InvertedFileAccessor.this.memoryBudget;
+			if (memoryBudget > 0 && numThreads > 1) {
+				this.memoryBudget = Math.max(1, memoryBudget / numThreads);
+			}
+		}
+
+
+		/**
+		 * Count a token of the current document, after the analysis of the index
+		 * With stemming, tokens are truncated to 5 characters
+		 * @param token buffer holding the characters of the token
+		 * @param length number of characters of the token
+		 */
+		private void addToken(char[] token, int length) {
+			if (useStemming) {
+				length = Math.min(length, 5);
+			}
+			countToken(token, length);
+		}
+
+
+		/**
+		 * Finish the current document, once all its tokens have been added
+		 * Calculate collection size and total number of documents
+		 * Calculate document frequency and collection frequency for each term
+		 * Buffer the postings of each term in document order
+		 * If a memory budget is set, flush the buffered postings to a sorted run whenever they grow past the budget
+		 * @param documentId
+		 * @throws IOException
+		 */
+		private void addDocument(int documentId) throws IOException {
+			numDocuments++;
+			minDocumentId = Math.min(minDocumentId, documentId);
+			maxDocumentId = Math.max(maxDocumentId, documentId);
+
+			addDocumentPostings(documentId);
+
+			if (memoryBudget > 0 && bufferedPostingsSize >= memoryBudget) {
+				flushRun();
+			}
+		}
+
+
+		/**
+		 * Flush the postings still buffered once all documents of the shard have been read,
+		 * 		if the shard writes runs
+		 * @throws IOException
+		 */
+		private void finish() throws IOException {
+			if ((writeFinalRun || !runFileNames.isEmpty()) && bufferedPostingsSize > 0) {
+				flushRun();
+			}
+		}
 
-		System.out.print("Dictionary file size in GB: ");
-		System.out.printf("%.9f", (double) dictionaryFileSize / 1000000000);
 
-		File invertedFile = new File(INVERTED_FILENAME);
-		long invertedFileSize = invertedFile.length();
+		/**
+		 * Count an occurrence of a token in the current document, assigning it a term ID if it is new
+		 * @param token buffer holding the characters of the token
+		 * @param length number of characters of the token
+		 */
+		private void countToken(char[] token, int length) {
+			int hash = 0;
+			for (int i = 0; i < length; i++) {
+				hash = 31 * hash + token[i]; // Same hash as String.hashCode, which the term texts cache
+			}
+
+			int mask = termIdTable.length - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			int termId;
+			while (true) {
+				termId = termIdTable[slot] - 1;
+				if (termId < 0) {
+					termId = terms.size();
+					Term term = new Term();
+					term.setText(new String(token, 0, length));
+					terms.add(term);
+					termIdTable[slot] = termId + 1;
+					ensureTermCapacity(terms.size());
+					break;
+				}
+				String text = terms.get(termId).getText();
+				if (text.hashCode() == hash && textEquals(text, token, length)) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if (documentTermCounts[termId]++ == 0) {
+				documentTermIds[numDocumentTerms++] = termId;
+			}
+		}
+
+
+		/**
+		 * Add a posting to every term seen in the current document, update the term statistics,
+		 * 		and clear the term counts for the next document
+		 * @param documentId
+		 */
+		private void addDocumentPostings(int documentId) {
+			for (int i = 0; i < numDocumentTerms; i++) {
+				int termId = documentTermIds[i];
+				int count = documentTermCounts[termId];
+				documentTermCounts[termId] = 0;
+
+				Term term = terms.get(termId);
+				term.setDocumentFrequency(term.getDocumentFrequency() + 1); // Increment number of documents each token occurs in
+				term.setCollectionFrequency(term.getCollectionFrequency() + count);
+
+				int[] postings = bufferedPostings[termId];
+				int position = 2 * numBufferedPostings[termId];
+				if (postings == null) {
+					postings = new int[2];
+					bufferedPostings[termId] = postings;
+					bufferedPostingsSize += ARRAY_HEADER_SIZE + 4 * postings.length;
+				}
+				else if (position == postings.length) {
+					postings = Arrays.copyOf(postings, 2 * postings.length);
+					bufferedPostings[termId] = postings;
+					bufferedPostingsSize += 4 * (postings.length / 2);
+				}
+				postings[position] = documentId;
+				postings[position + 1] = count;
+				numBufferedPostings[termId]++;
+			}
+			numDocumentTerms = 0;
+		}
+
+
+		/**
+		 * Whether a term text has the same characters as a token
+		 * @param text
+		 * @param token
+		 * @param length
+		 * @return
+		 */
+		private boolean textEquals(String text, char[] token, int length) {
+			if (text.length() != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (text.charAt(i) != token[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+
+		/**
+		 * Grow the arrays indexed by term ID to hold at least numTerms terms
+		 * The term ID hash table is kept at most half full
+		 * @param numTerms
+		 */
+		private void ensureTermCapacity(int numTerms) {
+			if (2 * numTerms > termIdTable.length) {
+				termIdTable = new int[2 * termIdTable.length];
+				int mask = termIdTable.length - 1;
+				for (int termId = 0; termId < terms.size(); termId++) {
+					int hash = terms.get(termId).getText().hashCode();
+					int slot = (hash ^ (hash >>> 16)) & mask;
+					while (termIdTable[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					termIdTable[slot] = termId + 1;
+				}
+			}
+
+			if (numTerms > bufferedPostings.length) {
+				int capacity = Math.max(numTerms, bufferedPostings.length * 2);
+				bufferedPostings = Arrays.copyOf(bufferedPostings, capacity);
+				numBufferedPostings = Arrays.copyOf(numBufferedPostings, capacity);
+				documentTermCounts = Arrays.copyOf(documentTermCounts, capacity);
+				documentTermIds = Arrays.copyOf(documentTermIds, capacity);
+			}
+		}
+
+
+		/**
+		 * Get the IDs of the terms that have buffered postings, sorted by term
+		 * @return
+		 */
+		private List<Integer> getBufferedTermIds() {
+			List<Integer> bufferedTermIds = new ArrayList<>();
+			for (int termId = 0; termId < terms.size(); termId++) {
+				if (numBufferedPostings[termId] > 0) {
+					bufferedTermIds.add(termId);
+				}
+			}
+
+			Collections.sort(bufferedTermIds, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer termId1, Integer termId2) {
+					return terms.get(termId1).getText().compareTo(terms.get(termId2).getText());
+				}
+			});
+			return bufferedTermIds;
+		}
+
+
+		/**
+		 * Write the buffered postings to a new run file and clear the buffer
+		 * Run file format: number of terms, then for each term in sorted order the term text,
+		 * 		the number of postings, and a (document ID, term frequency) pair per posting
+		 * @throws IOException
+		 */
+		private void flushRun() throws IOException {
+			List<Integer> bufferedTermIds = getBufferedTermIds();
+			String runFileName = getIndexFileName(RUN_FILENAME_PREFIX + shardNumber + "-" + runFileNames.size() + ".tmp");
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFileName)));
+			runFileNames.add(runFileName);  // Listed before it is written, so a run cut short is still deleted
+			try {
+				output.writeInt(bufferedTermIds.size());
+				for (int termId : bufferedTermIds) {
+					int[] postings = bufferedPostings[termId];
+					output.writeUTF(terms.get(termId).getText());
+					output.writeInt(numBufferedPostings[termId]);
+
+					for (int i = 0; i < 2 * numBufferedPostings[termId]; i++) {
+						output.writeInt(postings[i]);
+					}
+
+					bufferedPostings[termId] = null;
+					numBufferedPostings[termId] = 0;
+				}
+			}
+			finally {
+				output.close();
+			}
+
+			bufferedPostingsSize = 0;
+		}
+
+
+		/**
+		 * Delete the run files written by the shard, after the build failed
+		 */
+		private void deleteRuns() {
+			for (String runFileName : runFileNames) {
+				new File(runFileName).delete();
+			}
+			runFileNames.clear();
+		}
+	}
+
+
+	/**
+	 * Class representing an open run file positioned at the start of a term's postings
+	 * Runs are ordered by current term, then by run number so that postings for the same term
+	 * 		are merged in document order
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+		private DataInputStream input;
+		private int runNumber;
+		private int termsRemaining;
+		private String currentTerm;
+
+		public RunReader(String runFileName, int runNumber) throws IOException {
+			this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(runFileName)));
+			this.runNumber = runNumber;
+			this.termsRemaining = input.readInt();
+		}
+
+		/**
+		 * Read the next term in the run
+		 * @return false if the run is exhausted
+		 * @throws IOException
+		 */
+		public boolean nextTerm() throws IOException {
+			if (termsRemaining == 0) {
+				input.close();
+				return false;
+			}
+			termsRemaining--;
+			currentTerm = input.readUTF();
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			int comparison = currentTerm.compareTo(other.currentTerm);
+			return comparison != 0 ? comparison : Integer.compare(runNumber, other.runNumber);
+		}
+	}
+
+
+	/**
+	 * Merge the sorted runs into the inverted file
+	 * At most MAX_MERGE_FAN_IN runs are open at once, so the number of open files and the size of the
+	 * 		merge heap stay bounded whatever the number of runs
+	 * Implementation details:
+	 * 	While there are more than MAX_MERGE_FAN_IN runs, merge consecutive groups of MAX_MERGE_FAN_IN runs
+	 * 		into longer runs, in the same run format, deleting each group once it is merged
+	 * 		Groups are consecutive, so the runs stay in document order from one pass to the next
+	 * 	Then merge the remaining runs into the inverted file
+	 * 	All run files are deleted once the merge finishes or fails
+	 * @throws IOException
+	 */
+	private void mergeRuns() throws IOException {
+		List<String> mergedRunFileNames = new ArrayList<>(); // Runs written by the current pass
+		try {
+			int pass = 0;
+			while (runFileNames.size() > MAX_MERGE_FAN_IN) {
+				for (int start = 0; start < runFileNames.size(); start += MAX_MERGE_FAN_IN) {
+					List<String> group = runFileNames.subList(start, Math.min(start + MAX_MERGE_FAN_IN, runFileNames.size()));
+					String mergedRunFileName = getIndexFileName(RUN_FILENAME_PREFIX + "pass-" + pass + "-" + mergedRunFileNames.size() + ".tmp");
+					mergedRunFileNames.add(mergedRunFileName);  // Listed before it is written, so a run cut short is still deleted
+					mergeRunGroup(group, mergedRunFileName);
+					for (String runFileName : group) {
+						new File(runFileName).delete();
+					}
+				}
+				runFileNames = mergedRunFileNames;
+				mergedRunFileNames = new ArrayList<>();
+				pass++;
+			}
+
+			try {
+				startSegment();
+				mergeRunGroup(runFileNames, null);
+			}
+			finally {
+				finishSegments();
+			}
+		}
+		finally {
+			for (String runFileName : runFileNames) {
+				new File(runFileName).delete();
+			}
+			for (String runFileName : mergedRunFileNames) {
+				new File(runFileName).delete();
+			}
+			runFileNames = new ArrayList<>();
+		}
+	}
+
+
+	/**
+	 * K-way merge a group of sorted runs, either into a new run or into the inverted file
+	 * Implementation details:
+	 * 	Keep a priority queue holding one reader per run, ordered by the reader's current term
+	 * 	Repeatedly take the smallest term and gather its postings from every run that contains it,
+	 * 		lowest run first, so the merged postings list stays sorted by docID
+	 * 	Encode the gathered postings and append them to the inverted file, or write them to the new run
+	 * 	Only one term's postings are held in memory at a time
+	 * 	The number of terms of a new run is only known at the end, so it is written into the run's header last
+	 * @param groupRunFileNames runs to merge, in document order
+	 * @param mergedRunFileName run to write, or null to write the inverted file
+	 * @throws IOException
+	 */
+	private void mergeRunGroup(List<String> groupRunFileNames, String mergedRunFileName) throws IOException {
+		List<RunReader> openRunReaders = new ArrayList<>();
+		DataOutputStream runOutput = null;
+		int numTerms = 0;
+		try {
+			PriorityQueue<RunReader> runReaders = new PriorityQueue<>();
+			for (int i = 0; i < groupRunFileNames.size(); i++) {
+				RunReader runReader = new RunReader(groupRunFileNames.get(i), i);
+				openRunReaders.add(runReader);
+				if (runReader.nextTerm()) {
+					runReaders.add(runReader);
+				}
+			}
+			if (mergedRunFileName != null) {
+				runOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRunFileName)));
+				runOutput.writeInt(0);  // Number of terms, filled in once the run is written
+			}
+
+			while (!runReaders.isEmpty()) {
+				String token = runReaders.peek().currentTerm;
+				int length = 0;
+
+				while (!runReaders.isEmpty() && runReaders.peek().currentTerm.equals(token)) {
+					RunReader runReader = runReaders.poll();
+					int numPostings = runReader.input.readInt();
+					ensurePostingsCapacity(length + numPostings);
+
+					for (int i = 0; i < numPostings; i++) {
+						postingsDocumentIds[length] = runReader.input.readInt();
+						postingsTermFrequencies[length] = runReader.input.readInt();
+						length++;
+					}
+
+					if (runReader.nextTerm()) {
+						runReaders.add(runReader);
+					}
+				}
+
+				if (runOutput == null) {
+					writePostings(lexicon.get(token), length);
+				}
+				else {
+					runOutput.writeUTF(token);
+					runOutput.writeInt(length);
+					for (int i = 0; i < length; i++) {
+						runOutput.writeInt(postingsDocumentIds[i]);
+						runOutput.writeInt(postingsTermFrequencies[i]);
+					}
+				}
+				numTerms++;
+			}
+		}
+		finally {
+			if (runOutput != null) {
+				runOutput.close();
+			}
+			for (RunReader runReader : openRunReaders) {
+				runReader.input.close();
+			}
+		}
+
+		if (mergedRunFileName != null) {
+			RandomAccessFile mergedRun = new RandomAccessFile(mergedRunFileName, "rw");
+			try {
+				mergedRun.writeInt(numTerms);
+			}
+			finally {
+				mergedRun.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Grow the arrays holding the postings of the term being written to hold at least length postings
+	 * @param length
+	 */
+	private void ensurePostingsCapacity(int length) {
+		if (length > postingsDocumentIds.length) {
+			int capacity = Math.max(length, postingsDocumentIds.length * 2);
+			postingsDocumentIds = Arrays.copyOf(postingsDocumentIds, capacity);
+			postingsTermFrequencies = Arrays.copyOf(postingsTermFrequencies, capacity);
+		}
+	}
+
+
+	/**
+	 * Get the file name of an inverted file segment
+	 * @param segment
+	 * @return
+	 */
+	private String getInvertedFileName(int segment) {
+		return getIndexFileName(INVERTED_FILENAME_PREFIX + segment + INVERTED_FILENAME_SUFFIX);
+	}
+
+
+	/**
+	 * Get the path of a file in the index directory
+	 * @param fileName
+	 * @return
+	 */
+	private String getIndexFileName(String fileName) {
+		return new File(indexDirectory, fileName).getPath();
+	}
+
+
+	/**
+	 * Get the file names of all inverted file segments, in segment order
+	 * @return
+	 */
+	private List<String> getInvertedFileNames() {
+		List<String> invertedFileNames = new ArrayList<>();
+		for (int segment = 0; segment < numSegments; segment++) {
+			invertedFileNames.add(getInvertedFileName(segment));
+		}
+		return invertedFileNames;
+	}
+
+
+	/**
+	 * Close the segment being written, if any, and start the next segment with a codec header
+	 * @throws IOException
+	 */
+	private void startSegment() throws IOException {
+		if (segmentOutput != null) {
+			segmentOutput.close();
+		}
+
+		segmentOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getInvertedFileName(numSegments))));
+		postingsCodec.writeHeader(segmentOutput);
+		segmentFilePointer = PostingsCodec.HEADER_SIZE;
+		numSegments++;
+	}
+
+
+	/**
+	 * Close the segment being written and delete any segments left over from an earlier, larger index
+	 * @throws IOException
+	 */
+	private void finishSegments() throws IOException {
+		if (segmentOutput != null) {
+			segmentOutput.close();
+			segmentOutput = null;
+		}
+
+		for (int segment = numSegments; new File(getInvertedFileName(segment)).exists(); segment++) {
+			new File(getInvertedFileName(segment)).delete();
+		}
+	}
+
+
+	/**
+	 * Encode the first length postings held in postingsDocumentIds and postingsTermFrequencies
+	 * and append them to the inverted file
+	 * If they would push the current segment past the maximum segment size, start a new segment first
+	 * 		A postings list is never split, so a single list larger than the cap gets a segment of its own
+	 * Record the segment, offset and encoded length of the postings in the term
+	 * @param term
+	 * @param length
+	 * @throws IOException
+	 */
+	private void writePostings(Term term, int length) throws IOException {
+		encodedPostings.reset();
+		postingsCodec.encode(postingsDocumentIds, postingsTermFrequencies, length, new DataOutputStream(encodedPostings));
+
+		if (segmentFilePointer > PostingsCodec.HEADER_SIZE && segmentFilePointer + encodedPostings.size() > maxSegmentSize) {
+			startSegment();
+		}
+		encodedPostings.writeTo(segmentOutput);
+
+		term.setInvertedFileSegment(numSegments - 1);
+		term.setInvertedFileLocation(segmentFilePointer);
+		term.setInvertedFileLength(encodedPostings.size());
+		segmentFilePointer += encodedPostings.size();
+	}
+
+
+	/**
+	 * Write the inverted file segments, each starting with a codec header followed by the postings
+	 * 		for a run of terms encoded with the postings codec
+	 * If runs were flushed during the build, merge them instead of writing the buffered records
+	 * @throws IOException
+	 */
+	private void createInvertedIndex() throws IOException {
+		if (!runFileNames.isEmpty()) {
+			mergeRuns();
+			return;
+		}
+
+		try {
+			startSegment(); // Open the first inverted file segment for writing
+			if (bufferedShard != null) {
+				for (int termId : bufferedShard.getBufferedTermIds()) {
+					int[] postings = bufferedShard.bufferedPostings[termId];
+					int length = bufferedShard.numBufferedPostings[termId];
+					ensurePostingsCapacity(length);
+					for (int i = 0; i < length; i++) {
+						postingsDocumentIds[i] = postings[2 * i];
+						postingsTermFrequencies[i] = postings[2 * i + 1];
+					}
+
+					writePostings(lexicon.get(bufferedShard.terms.get(termId).getText()), length);
+					bufferedShard.bufferedPostings[termId] = null;  // Release each term's postings once written
+				}
+			}
+		}
+		finally {
+			finishSegments();
+		}
+	}
+
+
+	/**
+	 * Write the dictionary to a file in the compact Dictionary format
+	 * @throws IOException
+	 */
+	private void writeDictionaryToFile() throws IOException {
+		Dictionary.write(getIndexFileName(DICTIONARY_FILENAME), lexicon);
+	}
+
+
+	/**
+	 * Write the manifest, which describes the finished index
+	 * The manifest records the format version, the tokenizer and stemming settings, the size and
+	 * 		modification time of the input file, and the collection statistics
+	 * It also advances and records the generation of the index
+	 * It is written last, so an index with a manifest is always complete
+	 * 	The manifest is written under a temporary name and then renamed, so a manifest cut short
+	 * 		by a failure is never read as the index's manifest
+	 * @throws IOException
+	 */
+	private void writeManifest() throws IOException {
+		generation++;
+		Properties manifest = new Properties();
+		manifest.setProperty("format.version", String.valueOf(FORMAT_VERSION));
+		manifest.setProperty("index.generation", String.valueOf(generation));
+		manifest.setProperty("tokenizer.version", String.valueOf(IRUtil.TOKENIZER_VERSION));
+		manifest.setProperty("stemming", String.valueOf(useStemming));
+		if (inputFileName != null) {
+			File inputFile = new File(inputFileName);
+			manifest.setProperty("source.file", inputFile.getAbsolutePath());
+			manifest.setProperty("source.size", String.valueOf(inputFile.length()));
+			manifest.setProperty("source.lastModified", String.valueOf(inputFile.lastModified()));
+		}
+		manifest.setProperty("collection.numDocuments", String.valueOf(numDocuments));
+		manifest.setProperty("collection.vocabularySize", String.valueOf(vocabularySize));
+		manifest.setProperty("postings.codec", postingsCodec.name());
+		manifest.setProperty("postings.numSegments", String.valueOf(numSegments));
+
+		File temporaryFile = new File(getIndexFileName(MANIFEST_FILENAME + ".tmp"));
+		FileOutputStream output = new FileOutputStream(temporaryFile);
+		try {
+			manifest.store(output, "Inverted index manifest");
+		}
+		finally {
+			output.close();
+		}
+		Files.move(temporaryFile.toPath(), new File(getIndexFileName(MANIFEST_FILENAME)).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * Read the manifest of the index
+	 * @return
+	 * @throws IOException
+	 */
+	private Properties readManifest() throws IOException {
+		Properties manifest = new Properties();
+		FileInputStream input = new FileInputStream(getIndexFileName(MANIFEST_FILENAME));
+		try {
+			manifest.load(input);
+		}
+		finally {
+			input.close();
+		}
+		return manifest;
+	}
+
+
+	/**
+	 * Set the collection statistics and settings recorded in a manifest
+	 * @param manifest
+	 */
+	private void loadManifest(Properties manifest) {
+		useStemming = Boolean.parseBoolean(manifest.getProperty("stemming"));
+		numDocuments = Long.parseLong(manifest.getProperty("collection.numDocuments", ""));
+		vocabularySize = Integer.parseInt(manifest.getProperty("collection.vocabularySize", ""));
+		postingsCodec = PostingsCodec.valueOf(manifest.getProperty("postings.codec", ""));
+		numSegments = Integer.parseInt(manifest.getProperty("postings.numSegments", ""));
+		generation = Long.parseLong(manifest.getProperty("index.generation", "0"));
+	}
+
+
+	/**
+	 * Read the generation of the index last built in the index directory
+	 * @return 0 if the directory holds no manifest or its manifest records no generation
+	 */
+	private long readPreviousGeneration() {
+		if (!new File(getIndexFileName(MANIFEST_FILENAME)).exists()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(readManifest().getProperty("index.generation", "0"));
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+
+	/**
+	 * Whether a manifest describes an index of the current input file built with the current
+	 * 		format version, tokenizer and stemming settings
+	 * The memory budget, codec, segment size and number of threads do not change the contents of the index,
+	 * 		so they are not compared
+	 * @param manifest
+	 * @return
+	 */
+	private boolean isManifestCurrent(Properties manifest) {
+		File inputFile = new File(inputFileName);
+		return String.valueOf(FORMAT_VERSION).equals(manifest.getProperty("format.version"))
+				&& String.valueOf(IRUtil.TOKENIZER_VERSION).equals(manifest.getProperty("tokenizer.version"))
+				&& String.valueOf(useStemming).equals(manifest.getProperty("stemming"))
+				&& inputFile.getAbsolutePath().equals(manifest.getProperty("source.file"))
+				&& String.valueOf(inputFile.length()).equals(manifest.getProperty("source.size"))
+				&& String.valueOf(inputFile.lastModified()).equals(manifest.getProperty("source.lastModified"));
+	}
+
+
+	/**
+	 * Open the index already in the index directory if its manifest is current
+	 * Otherwise delete the manifest before the index is rebuilt, so that an interrupted rebuild
+	 * 		is never mistaken for a finished index
+	 * @return whether the existing index was opened
+	 */
+	private boolean openExistingIndex() {
+		File manifestFile = new File(getIndexFileName(MANIFEST_FILENAME));
+		if (manifestFile.exists()) {
+			try {
+				Properties manifest = readManifest();
+				if (isManifestCurrent(manifest)) {
+					loadManifest(manifest);
+					openIndex();
+					openDocumentNorms();
+					openTermMaxWeights();
+					return true;
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				e.printStackTrace();
+			}
+			manifestFile.delete();
+		}
+		return false;
+	}
+
+
+	/**
+	 * Map the dictionary and inverted file segments for reading, with an empty postings cache
+	 * @throws IOException
+	 */
+	private void openIndex() throws IOException {
+		dictionary = new Dictionary(getIndexFileName(DICTIONARY_FILENAME));
+		postingsReader = new PostingsReader(getInvertedFileNames());
+		postingsCache = new PostingsCache(postingsCacheCapacity, dictionary.size());
+	}
+
+
+	/**
+	 * Compute the length of every document's TF-IDF vector and write them to the norms file
+	 * The length is the square root of the sum of squares of all term weights in the document
+	 * Implementation details:
+	 * 	Walk the dictionary in term id order and decode each term's postings once
+	 * 	Add the squared TF-IDF weight of each posting to its document's accumulator, then take square roots
+	 * 	The accumulators are a dense array indexed by document ID minus the smallest document ID,
+	 * 		so document IDs are expected to be reasonably dense
+	 * Norms file format: smallest document ID, number of document IDs covered, then a double per
+	 * 		document ID, 0 for IDs that belong to no document
+	 * @throws IOException
+	 */
+	private void writeDocumentNorms() throws IOException {
+		int numDocumentIds = numDocuments == 0 ? 0 : maxDocumentId - minDocumentId + 1;
+		double[] squaredWeights = new double[numDocumentIds];
+
+		for (int termId = 0; termId < dictionary.size(); termId++) {
+			int documentFrequency = dictionary.getDocumentFrequency(termId);
+			double idf = IRUtil.getIdf(numDocuments, documentFrequency);
+			ensurePostingsCapacity(documentFrequency);
+			decodePostings(termId, postingsDocumentIds, postingsTermFrequencies);
+
+			for (int i = 0; i < documentFrequency; i++) {
+				double tfIdf = postingsTermFrequencies[i] * idf;
+				squaredWeights[postingsDocumentIds[i] - minDocumentId] += tfIdf * tfIdf;
+			}
+		}
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFileName(NORMS_FILENAME))));
+		try {
+			output.writeInt(minDocumentId);
+			output.writeInt(numDocumentIds);
+			for (double squaredWeight : squaredWeights) {
+				output.writeDouble(Math.sqrt(squaredWeight));
+			}
+		}
+		finally {
+			output.close();
+		}
+	}
+
+
+	/**
+	 * Map the norms file for reading
+	 * A single mapping is used, so the file covers at most 2^28 document IDs
+	 * @throws IOException
+	 */
+	private void openDocumentNorms() throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(getIndexFileName(NORMS_FILENAME), "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			documentNorms = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+		finally {
+			randomAccessFile.close();  // The mapping stays valid after the file is closed
+		}
+
+		minDocumentId = documentNorms.getInt(0);
+		maxDocumentId = minDocumentId + documentNorms.getInt(4) - 1;
+	}
+
+
+	/**
+	 * Compute the largest normalized TF-IDF weight of every term and write them to the max weights file
+	 * Must be called once the document norms are open
+	 * Max weights file format: number of terms, then a double per term ID
+	 * @throws IOException
+	 */
+	private void writeTermMaxWeights() throws IOException {
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFileName(MAX_WEIGHTS_FILENAME))));
+		try {
+			output.writeInt(dictionary.size());
+			for (int termId = 0; termId < dictionary.size(); termId++) {
+				int documentFrequency = dictionary.getDocumentFrequency(termId);
+				double idf = IRUtil.getIdf(numDocuments, documentFrequency);
+				ensurePostingsCapacity(documentFrequency);
+				decodePostings(termId, postingsDocumentIds, postingsTermFrequencies);
+
+				double maxWeight = 0;
+				for (int i = 0; i < documentFrequency; i++) {
+					double documentNorm = getDocumentNorm(postingsDocumentIds[i]);
+					if (documentNorm > 0) {
+						maxWeight = Math.max(maxWeight, postingsTermFrequencies[i] * idf / documentNorm);
+					}
+				}
+				output.writeDouble(maxWeight);
+			}
+		}
+		finally {
+			output.close();
+		}
+	}
+
+
+	/**
+	 * Map the max weights file for reading
+	 * @throws IOException
+	 */
+	private void openTermMaxWeights() throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(getIndexFileName(MAX_WEIGHTS_FILENAME), "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			termMaxWeights = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+		finally {
+			randomAccessFile.close();  // The mapping stays valid after the file is closed
+		}
+	}
+
+
+	/**
+	 * Write the postings of the given indexes to the inverted file and build the merged lexicon
+	 * Implementation details:
+	 * 	Sum the document and collection frequencies of every term over all indexes
+	 * 	Walk the merged terms in sorted order, decode the term's postings from each index that
+	 * 		contains it, in the order the indexes were given, and write them as a single postings list
+	 * 	Only one term's postings are held in memory at a time
+	 * @param invertedFileAccessors
+	 * @throws IOException
+	 */
+	private void mergeIndexes(List<InvertedFileAccessor> invertedFileAccessors) throws IOException {
+		Map<String, Term> mergedTerms = new TreeMap<>();
+		for (InvertedFileAccessor invertedFileAccessor : invertedFileAccessors) {
+			numDocuments += invertedFileAccessor.numDocuments;
+			minDocumentId = Math.min(minDocumentId, invertedFileAccessor.minDocumentId);
+			maxDocumentId = Math.max(maxDocumentId, invertedFileAccessor.maxDocumentId);
+			Dictionary indexDictionary = invertedFileAccessor.dictionary;
+
+			for (int termId = 0; termId < indexDictionary.size(); termId++) {
+				String token = indexDictionary.getTerm(termId);
+				Term term = mergedTerms.get(token);
+				if (term == null) {
+					term = new Term();
+					term.setText(token);
+					mergedTerms.put(token, term);
+				}
+				term.setDocumentFrequency(term.getDocumentFrequency() + indexDictionary.getDocumentFrequency(termId));
+				term.setCollectionFrequency(term.getCollectionFrequency() + indexDictionary.getCollectionFrequency(termId));
+			}
+		}
+		lexicon.putAll(mergedTerms);
+		vocabularySize = lexicon.size();
+
+		int[] documentIds = new int[1024];
+		int[] termFrequencies = new int[1024];
+		try {
+			startSegment();
+			for (Entry<String, Term> mergedTermsEntry : mergedTerms.entrySet()) {
+				int length = 0;
+				for (InvertedFileAccessor invertedFileAccessor : invertedFileAccessors) {
+					Dictionary indexDictionary = invertedFileAccessor.dictionary;
+					int termId = indexDictionary.getTermId(mergedTermsEntry.getKey());
+					if (termId < 0) {
+						continue;
+					}
+
+					int documentFrequency = indexDictionary.getDocumentFrequency(termId);
+					if (documentFrequency > documentIds.length) {
+						documentIds = new int[Math.max(documentFrequency, documentIds.length * 2)];
+						termFrequencies = new int[documentIds.length];
+					}
+					invertedFileAccessor.postingsReader.readPostings(indexDictionary.getPostingsSegment(termId), indexDictionary.getPostingsLocation(termId),
+							indexDictionary.getPostingsLength(termId), documentFrequency, documentIds, termFrequencies);
+
+					ensurePostingsCapacity(length + documentFrequency);
+					System.arraycopy(documentIds, 0, postingsDocumentIds, length, documentFrequency);
+					System.arraycopy(termFrequencies, 0, postingsTermFrequencies, length, documentFrequency);
+					length += documentFrequency;
+				}
+
+				writePostings(mergedTermsEntry.getValue(), length);
+			}
+		}
+		finally {
+			finishSegments();
+		}
+	}
+
+
+	/**
+	 * Get and display the file size information for the dictionary file and the inverted file
+	 * Determine whether the original text or the index takes more space and print this information
+	 * Determine whether the dictionary or inverted file takes more space and print this information
+	 */
+	public void printFileSizeInformation() {
+		File dictionaryFile = new File(getIndexFileName(DICTIONARY_FILENAME));
+		long dictionaryFileSize = dictionaryFile.length();
+
+		System.out.print("Dictionary file size in GB: ");
+		System.out.printf("%.9f", (double) dictionaryFileSize / 1000000000);
+
+		long invertedFileSize = 0;
+		for (String invertedFileName : getInvertedFileNames()) {
+			invertedFileSize += new File(invertedFileName).length();
+		}
 		System.out.println("\n\nInverted file size in GB: " + (double) invertedFileSize  / 1000000000);
 	}
 }
@@ -0,0 +1,127 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts durations, in nanoseconds, in log-linear buckets so that percentiles can be read
+ * 		at any time without keeping the individual durations
+ * Implementation details:
+ * 	Durations below SUB_BUCKETS nanoseconds have a bucket each
+ * 	Above that, every power of two range is split into SUB_BUCKETS buckets of equal width,
+ * 		so a bucket is at most 1 / SUB_BUCKETS wide relative to the durations it holds
+ * 	A percentile is reported as the middle of the bucket holding it, within about 3% of the true value
+ * 	The largest duration and the total are kept exactly
+ * Recording takes no lock, so a histogram can be shared by any number of query threads
+ * A percentile read while durations are being recorded may miss the latest of them
+ *
+ * @author Miranda Myers
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Buckets per power of two
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	private AtomicLongArray bucketCounts = new AtomicLongArray(NUM_BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong total = new AtomicLong(); // Sum of the durations
+	private AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Count a duration
+	 * @param nanoseconds negative durations are counted as 0
+	 */
+	public void record(long nanoseconds) {
+		nanoseconds = Math.max(0, nanoseconds);
+		bucketCounts.incrementAndGet(getBucket(nanoseconds));
+		count.incrementAndGet();
+		total.addAndGet(nanoseconds);
+		long currentMax;
+		while (nanoseconds > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanoseconds)) {
+			// Another thread raised the maximum in between, compare again
+		}
+	}
+
+
+	/**
+	 * Get the bucket of a duration
+	 * @param nanoseconds
+	 * @return
+	 */
+	private static int getBucket(long nanoseconds) {
+		if (nanoseconds < SUB_BUCKETS) {
+			return (int) nanoseconds;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanoseconds);
+		int subBucket = (int) (nanoseconds >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+
+	/**
+	 * Get the smallest duration of a bucket
+	 * @param bucket
+	 * @return
+	 */
+	private static long getBucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+	}
+
+
+	/**
+	 * Get the number of durations counted
+	 * @return
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+
+	/**
+	 * Get the mean duration
+	 * @return 0 if no duration was counted
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+
+	/**
+	 * Get the largest duration counted
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+
+	/**
+	 * Get the duration below which a fraction of the durations fall
+	 * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+	 * @return 0 if no duration was counted
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+			seen += bucketCounts.get(bucket);
+			if (seen >= rank) {
+				long start = getBucketStart(bucket);
+				long end = bucket + 1 < NUM_BUCKETS ? getBucketStart(bucket + 1) : Long.MAX_VALUE;
+				return Math.min(start + (end - start) / 2, max.get());
+			}
+		}
+		return max.get();
+	}
+}
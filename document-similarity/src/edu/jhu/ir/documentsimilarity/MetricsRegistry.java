@@ -0,0 +1,129 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the named counters and latency histograms of a process, so they can be read
+ * 		and reported from one place while queries run
+ * A counter or histogram is created the first time its name is asked for, and the same one is
+ * 		returned to every later caller
+ * Counters and histograms are cumulative, a report shows everything counted since the registry was created
+ * 		Regressions show up by comparing reports, or reports taken before and after a change
+ *
+ * The report lists counters, then histograms with their count, mean, 50th, 90th, 99th and 99.9th
+ * 		percentiles and maximum in milliseconds, each sorted by name
+ * It can be printed on demand, or periodically on a daemon thread
+ *
+ * All methods are safe to call from several threads at once
+ *
+ * @author Miranda Myers
+ *
+ */
+public class MetricsRegistry {
+	private Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	private Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+	private ScheduledExecutorService reporter; // Prints the periodic report, null when none is running
+
+
+	/**
+	 * Get the counter of a name, creating it if needed
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong getCounter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+
+	/**
+	 * Get the latency histogram of a name, creating it if needed
+	 * @param name
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+
+	/**
+	 * Print every counter and histogram
+	 * @param out
+	 */
+	public void printReport(PrintStream out) {
+		StringBuilder report = new StringBuilder("Metrics:\n");
+		for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+			report.append('\t').append(counter.getKey()).append(": ").append(counter.getValue().get()).append('\n');
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			report.append(String.format("\t%s: count %d, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+					entry.getKey(), histogram.getCount(), histogram.getMean() / 1e6,
+					histogram.getPercentile(0.5) / 1e6, histogram.getPercentile(0.9) / 1e6,
+					histogram.getPercentile(0.99) / 1e6, histogram.getPercentile(0.999) / 1e6,
+					histogram.getMax() / 1e6));
+		}
+		out.print(report);
+		out.flush();
+	}
+
+
+	/**
+	 * Print the report every period, on a daemon thread, until stopPeriodicReport is called
+	 * Replaces any periodic report already running
+	 * @param period
+	 * @param unit
+	 * @param out
+	 */
+	public synchronized void startPeriodicReport(long period, TimeUnit unit, final PrintStream out) {
+		stopPeriodicReport();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				printReport(out);
+			}
+		}, period, period, unit);
+	}
+
+
+	/**
+	 * Stop printing the periodic report
+	 */
+	public synchronized void stopPeriodicReport() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class caches decoded postings lists in memory, keyed by term ID
+ * Topic sets repeat the same terms constantly, so the postings of frequent query terms are decoded once
+ * 		and then copied out of the cache instead of being decoded again from the inverted file
+ * The cache is bounded by a byte budget, which counts the postings arrays and a fixed overhead per entry
+ *
+ * Eviction follows LRU with TinyLFU admission
+ * 	Entries are kept in least recently used order
+ * 	The frequency of every term looked up is estimated with a count-min sketch of small counters,
+ * 		which are halved periodically so that old popularity fades
+ * 	When a new postings list does not fit, the least recently used entries that would have to make room
+ * 		are only evicted if the new term is looked up more often than each of them, otherwise the new
+ * 		postings list is not cached
+ * 	A long postings list read once therefore cannot flush the postings of terms that queries keep using
+ * Hits, misses, evictions and rejected admissions are counted
+ *
+ * All methods are synchronized, so a cache can be shared by query threads
+ *
+ * @author Miranda Myers
+ *
+ */
+public class PostingsCache {
+	public static final long DEFAULT_CAPACITY = 64L << 20;  // Default byte budget of the cache
+	private static final int ENTRY_OVERHEAD = 96;  // Heap bytes taken by an entry besides its postings: entry, map node, key, array headers
+	private static final int SKETCH_DEPTH = 4;  // Number of hashed counters per term in the frequency sketch
+	private static final int[] SKETCH_SEEDS = {0x97CB3127, 0x6A09E667, 0x3C6EF373, 0x510E527F}; // Odd multipliers hashing term IDs, one per row
+	private static final int MAX_COUNT = 15;  // Counters saturate at this value
+	private static final int MAX_SKETCH_WIDTH = 1 << 20;
+	private long capacity; // Byte budget of the cache
+	private long size = 0; // Bytes taken by the cached entries
+	private Map<Integer, CachedPostings> entries = new LinkedHashMap<>(16, 0.75f, true); // Term ID to postings, least recently used first
+	private byte[] sketch; // Count-min sketch of term lookups, SKETCH_DEPTH rows of sketchWidth counters
+	private int sketchWidth; // Number of counters in each row of the sketch, a power of two
+	private int numLookups = 0; // Lookups counted since the sketch was last halved
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	private long rejectionCount = 0; // Postings lists that were not admitted, since the entries they would evict were used more often
+
+
+	/**
+	 * Decoded postings list of a term
+	 */
+	private static class CachedPostings {
+		private int[] documentIds;
+		private int[] termFrequencies;
+		private long size; // Bytes counted against the budget
+
+		public CachedPostings(int[] documentIds, int[] termFrequencies, int length) {
+			this.documentIds = Arrays.copyOf(documentIds, length);
+			this.termFrequencies = Arrays.copyOf(termFrequencies, length);
+			this.size = getEntrySize(length);
+		}
+	}
+
+
+	/**
+	 * @param capacity byte budget of the cache, 0 disables caching
+	 * @param numTerms number of terms in the dictionary, used to size the frequency sketch
+	 */
+	public PostingsCache(long capacity, int numTerms) {
+		this.capacity = capacity;
+		sketchWidth = Integer.highestOneBit(Math.max(16, Math.min(numTerms, MAX_SKETCH_WIDTH)));
+		sketch = new byte[capacity > 0 ? SKETCH_DEPTH * sketchWidth : 0];
+	}
+
+
+	/**
+	 * Copy the cached postings of a term into the given arrays
+	 * Counts the lookup in the frequency sketch, whether or not the term is cached
+	 * @param termId
+	 * @param documentIds array of at least the term's document frequency entries
+	 * @param termFrequencies array of at least the term's document frequency entries
+	 * @return whether the term was cached
+	 */
+	public synchronized boolean get(int termId, int[] documentIds, int[] termFrequencies) {
+		if (capacity == 0) {
+			return false;
+		}
+		recordLookup(termId);
+
+		CachedPostings postings = entries.get(termId);
+		if (postings == null) {
+			missCount++;
+			return false;
+		}
+		hitCount++;
+		System.arraycopy(postings.documentIds, 0, documentIds, 0, postings.documentIds.length);
+		System.arraycopy(postings.termFrequencies, 0, termFrequencies, 0, postings.termFrequencies.length);
+		return true;
+	}
+
+
+	/**
+	 * Offer the decoded postings of a term to the cache, after a miss
+	 * The postings are copied if they are admitted
+	 * @param termId
+	 * @param documentIds
+	 * @param termFrequencies
+	 * @param length number of postings
+	 */
+	public synchronized void put(int termId, int[] documentIds, int[] termFrequencies, int length) {
+		long entrySize = getEntrySize(length);
+		if (entrySize > capacity || entries.containsKey(termId)) {
+			return;
+		}
+
+		if (size + entrySize > capacity) {
+			//Find the least recently used entries that would make room, all must be used less often than the term
+			int frequency = getFrequency(termId);
+			List<Integer> victims = new ArrayList<>();
+			long freed = 0;
+			Iterator<Map.Entry<Integer, CachedPostings>> iterator = entries.entrySet().iterator();
+			while (size - freed + entrySize > capacity) {
+				Map.Entry<Integer, CachedPostings> entry = iterator.next();
+				if (getFrequency(entry.getKey()) >= frequency) {
+					rejectionCount++;
+					return;
+				}
+				victims.add(entry.getKey());
+				freed += entry.getValue().size;
+			}
+
+			for (int victim : victims) {
+				entries.remove(victim);
+			}
+			size -= freed;
+			evictionCount += victims.size();
+		}
+
+		entries.put(termId, new CachedPostings(documentIds, termFrequencies, length));
+		size += entrySize;
+	}
+
+
+	/**
+	 * Get the byte budget of the cache
+	 * @return
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+
+	/**
+	 * Get the bytes taken by the cached entries
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Get the number of postings lists cached
+	 * @return
+	 */
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+
+	/**
+	 * Get the number of lookups that found the term cached
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+
+	/**
+	 * Get the number of lookups that did not find the term cached
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+
+	/**
+	 * Get the number of entries evicted to make room for new ones
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+
+	/**
+	 * Get the number of postings lists that were not admitted
+	 * @return
+	 */
+	public synchronized long getRejectionCount() {
+		return rejectionCount;
+	}
+
+
+	/**
+	 * Get the bytes counted against the budget for a postings list of the given length
+	 * @param length
+	 * @return
+	 */
+	private static long getEntrySize(int length) {
+		return ENTRY_OVERHEAD + 8L * length;
+	}
+
+
+	/**
+	 * Count a lookup of a term in the frequency sketch
+	 * Once the sketch has counted 10 lookups per counter, all counters are halved
+	 * @param termId
+	 */
+	private void recordLookup(int termId) {
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			int index = getSketchIndex(termId, row);
+			if (sketch[index] < MAX_COUNT) {
+				sketch[index]++;
+			}
+		}
+
+		if (++numLookups >= 10 * sketchWidth) {
+			for (int i = 0; i < sketch.length; i++) {
+				sketch[i] >>= 1;
+			}
+			numLookups /= 2;
+		}
+	}
+
+
+	/**
+	 * Estimate how often a term has been looked up recently, the smallest of its counters
+	 * @param termId
+	 * @return
+	 */
+	private int getFrequency(int termId) {
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			frequency = Math.min(frequency, sketch[getSketchIndex(termId, row)]);
+		}
+		return frequency;
+	}
+
+
+	/**
+	 * Get the position in the sketch of a term's counter in the given row
+	 * @param termId
+	 * @param row
+	 * @return
+	 */
+	private int getSketchIndex(int termId, int row) {
+		int hash = (termId + 1) * SKETCH_SEEDS[row];
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		return row * sketchWidth + (hash & (sketchWidth - 1));
+	}
+}
@@ -0,0 +1,305 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodings for the postings lists stored in the inverted file
+ * The codec used to write an inverted file is recorded in the file header so that readers
+ * 		can decode the postings without being told how they were written
+ *
+ * Available codecs:
+ * 	RAW: 4-byte integers for document ids and 4-byte integers for term frequencies
+ * 	VARIABLE_BYTE: document ids stored as gaps from the previous id (d-gaps), gaps and term
+ * 		frequencies written with 7 data bits per byte, the high bit marking a continuation byte
+ * 	PFOR_DELTA: d-gaps and term frequencies packed in blocks of 128 values using the smallest
+ * 		bit width that is cheapest overall, with larger values patched in as exceptions
+ * 		The final partial block is written with variable byte encoding
+ *
+ * Document ids are expected in increasing order within a postings list, out of order ids
+ * 		are still decoded correctly but do not compress
+ *
+ * @author Miranda Myers
+ *
+ */
+public enum PostingsCodec {
+	RAW {
+		@Override
+		public void encode(int[] documentIds, int[] termFrequencies, int length, DataOutput output) throws IOException {
+			for (int i = 0; i < length; i++) {
+				output.writeInt(documentIds[i]);
+				output.writeInt(termFrequencies[i]);
+			}
+		}
+
+		@Override
+		public void decode(ByteBuffer input, int length, int[] documentIds, int[] termFrequencies) {
+			for (int i = 0; i < length; i++) {
+				documentIds[i] = input.getInt();
+				termFrequencies[i] = input.getInt();
+			}
+		}
+	},
+
+	VARIABLE_BYTE {
+		@Override
+		public void encode(int[] documentIds, int[] termFrequencies, int length, DataOutput output) throws IOException {
+			int previousDocumentId = 0;
+			for (int i = 0; i < length; i++) {
+				writeVariableByte(documentIds[i] - previousDocumentId, output);
+				writeVariableByte(termFrequencies[i], output);
+				previousDocumentId = documentIds[i];
+			}
+		}
+
+		@Override
+		public void decode(ByteBuffer input, int length, int[] documentIds, int[] termFrequencies) {
+			int previousDocumentId = 0;
+			for (int i = 0; i < length; i++) {
+				previousDocumentId += readVariableByte(input);
+				documentIds[i] = previousDocumentId;
+				termFrequencies[i] = readVariableByte(input);
+			}
+		}
+	},
+
+	PFOR_DELTA {
+		@Override
+		public void encode(int[] documentIds, int[] termFrequencies, int length, DataOutput output) throws IOException {
+			int[] block = new int[BLOCK_SIZE];
+			int previousDocumentId = 0;
+			int start = 0;
+
+			for (; start + BLOCK_SIZE <= length; start += BLOCK_SIZE) {
+				for (int i = 0; i < BLOCK_SIZE; i++) {
+					block[i] = documentIds[start + i] - previousDocumentId;
+					previousDocumentId = documentIds[start + i];
+				}
+				writeBlock(block, output);
+
+				System.arraycopy(termFrequencies, start, block, 0, BLOCK_SIZE);
+				writeBlock(block, output);
+			}
+
+			for (int i = start; i < length; i++) {
+				writeVariableByte(documentIds[i] - previousDocumentId, output);
+				writeVariableByte(termFrequencies[i], output);
+				previousDocumentId = documentIds[i];
+			}
+		}
+
+		@Override
+		public void decode(ByteBuffer input, int length, int[] documentIds, int[] termFrequencies) {
+			int previousDocumentId = 0;
+			int start = 0;
+
+			for (; start + BLOCK_SIZE <= length; start += BLOCK_SIZE) {
+				readBlock(input, documentIds, start);
+				for (int i = start; i < start + BLOCK_SIZE; i++) {
+					previousDocumentId += documentIds[i];
+					documentIds[i] = previousDocumentId;
+				}
+				readBlock(input, termFrequencies, start);
+			}
+
+			for (int i = start; i < length; i++) {
+				previousDocumentId += readVariableByte(input);
+				documentIds[i] = previousDocumentId;
+				termFrequencies[i] = readVariableByte(input);
+			}
+		}
+	};
+
+	public static final int HEADER_SIZE = 5;  // Number of bytes in the inverted file header: magic number and codec
+	private static final int MAGIC_NUMBER = 0x49525046;  // Marks a file as an inverted file with a codec header
+	private static final int BLOCK_SIZE = 128;  // Number of values packed together by PFOR_DELTA
+
+
+	/**
+	 * Write the postings for one term
+	 * @param documentIds document ids in increasing order
+	 * @param termFrequencies term frequencies, parallel to documentIds
+	 * @param length number of postings to write
+	 * @param output
+	 * @throws IOException
+	 */
+	public abstract void encode(int[] documentIds, int[] termFrequencies, int length, DataOutput output) throws IOException;
+
+
+	/**
+	 * Read the postings for one term, starting at the current position of the buffer
+	 * @param input
+	 * @param length number of postings to read, the term's document frequency
+	 * @param documentIds array of at least length entries that receives the document ids
+	 * @param termFrequencies array of at least length entries that receives the term frequencies
+	 */
+	public abstract void decode(ByteBuffer input, int length, int[] documentIds, int[] termFrequencies);
+
+
+	/**
+	 * Write the inverted file header recording this codec
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeHeader(DataOutput output) throws IOException {
+		output.writeInt(MAGIC_NUMBER);
+		output.writeByte(ordinal());
+	}
+
+
+	/**
+	 * Read an inverted file header from a buffer and return the codec it records
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public static PostingsCodec readHeader(ByteBuffer input) throws IOException {
+		if (input.getInt() != MAGIC_NUMBER) {
+			throw new IOException("Inverted file is missing its codec header");
+		}
+		return values()[input.get() & 0xFF];
+	}
+
+
+	/**
+	 * Write an int using 7 bits per byte, lowest bits first
+	 * The high bit of each byte is set when more bytes follow
+	 * Values are treated as unsigned, so negative values take 5 bytes
+	 * @param value
+	 * @param output
+	 * @throws IOException
+	 */
+	private static void writeVariableByte(int value, DataOutput output) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+
+
+	/**
+	 * Read an int written by writeVariableByte
+	 * @param input
+	 * @return
+	 */
+	private static int readVariableByte(ByteBuffer input) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = input.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+
+
+	/**
+	 * Number of bytes writeVariableByte uses for a value
+	 * @param value
+	 * @return
+	 */
+	private static int variableByteSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+
+	/**
+	 * Write a full block of values using patched frame of reference encoding
+	 * Implementation details:
+	 * 	Pick the bit width b that gives the smallest encoded block, counting BLOCK_SIZE * b bits of
+	 * 		packed values plus an exception entry for every value that needs more than b bits
+	 * 	Write b and the number of exceptions, then the low b bits of every value
+	 * 	Each exception is written as its position in the block and its remaining high bits
+	 * @param block
+	 * @param output
+	 * @throws IOException
+	 */
+	private static void writeBlock(int[] block, DataOutput output) throws IOException {
+		int bitWidth = 0;
+		int bestSize = Integer.MAX_VALUE;
+		for (int candidateWidth = 0; candidateWidth <= 32; candidateWidth++) {
+			int size = (BLOCK_SIZE * candidateWidth + 7) / 8;
+			for (int value : block) {
+				if (candidateWidth < 32 && (value >>> candidateWidth) != 0) {
+					size += 1 + variableByteSize(value >>> candidateWidth);
+				}
+			}
+			if (size < bestSize) {
+				bestSize = size;
+				bitWidth = candidateWidth;
+			}
+		}
+
+		int numExceptions = 0;
+		for (int value : block) {
+			if (bitWidth < 32 && (value >>> bitWidth) != 0) {
+				numExceptions++;
+			}
+		}
+		output.writeByte(bitWidth);
+		output.writeByte(numExceptions);
+
+		long mask = (1L << bitWidth) - 1;
+		long bitBuffer = 0;
+		int bitsInBuffer = 0;
+		for (int value : block) {
+			bitBuffer |= (value & mask) << bitsInBuffer;
+			bitsInBuffer += bitWidth;
+			while (bitsInBuffer >= 8) {
+				output.writeByte((int) bitBuffer);
+				bitBuffer >>>= 8;
+				bitsInBuffer -= 8;
+			}
+		}
+		if (bitsInBuffer > 0) {
+			output.writeByte((int) bitBuffer);
+		}
+
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			if (bitWidth < 32 && (block[i] >>> bitWidth) != 0) {
+				output.writeByte(i);
+				writeVariableByte(block[i] >>> bitWidth, output);
+			}
+		}
+	}
+
+
+	/**
+	 * Read a block written by writeBlock into values[offset] to values[offset + BLOCK_SIZE - 1]
+	 * @param input
+	 * @param values
+	 * @param offset
+	 */
+	private static void readBlock(ByteBuffer input, int[] values, int offset) {
+		int bitWidth = input.get() & 0xFF;
+		int numExceptions = input.get() & 0xFF;
+
+		long mask = (1L << bitWidth) - 1;
+		long bitBuffer = 0;
+		int bitsInBuffer = 0;
+		for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+			while (bitsInBuffer < bitWidth) {
+				bitBuffer |= (long) (input.get() & 0xFF) << bitsInBuffer;
+				bitsInBuffer += 8;
+			}
+			values[i] = (int) (bitBuffer & mask);
+			bitBuffer >>>= bitWidth;
+			bitsInBuffer -= bitWidth;
+		}
+
+		for (int i = 0; i < numExceptions; i++) {
+			int position = input.get() & 0xFF;
+			values[offset + position] |= readVariableByte(input) << bitWidth;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * This class reads postings lists from the segments of an inverted file mapped into memory
+ * Each segment file is opened once and mapped in chunks, since a single mapping cannot address
+ * 		more than 2 GB
+ * A postings list is addressed by its segment number and a 64-bit offset within the segment
+ * Postings are decoded straight from the mapped chunks with the codec recorded in the segment header
+ *
+ * The mapped chunks are never repositioned, every read works on its own view of a chunk,
+ * 		so a single reader can be shared by any number of query threads
+ *
+ * @author Miranda Myers
+ *
+ */
+public class PostingsReader {
+	private static final long CHUNK_SIZE = 1L << 30;  // Number of bytes covered by each mapping
+	private final MappedByteBuffer[][] segmentChunks;  // Mapped chunks of each segment file
+	private final PostingsCodec[] postingsCodecs;  // Codec recorded in the header of each segment file
+
+
+	/**
+	 * Map the given inverted file segments and read their codec headers
+	 * @param invertedFileNames segment file names in segment order
+	 * @throws IOException
+	 */
+	public PostingsReader(List<String> invertedFileNames) throws IOException {
+		segmentChunks = new MappedByteBuffer[invertedFileNames.size()][];
+		postingsCodecs = new PostingsCodec[invertedFileNames.size()];
+
+		for (int segment = 0; segment < segmentChunks.length; segment++) {
+			segmentChunks[segment] = map(invertedFileNames.get(segment));
+			postingsCodecs[segment] = PostingsCodec.readHeader(view(segment, 0, PostingsCodec.HEADER_SIZE));
+		}
+	}
+
+
+	/**
+	 * Map a segment file into memory in chunks of at most CHUNK_SIZE bytes
+	 * @param invertedFileName
+	 * @return
+	 * @throws IOException
+	 */
+	private static MappedByteBuffer[] map(String invertedFileName) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(invertedFileName, "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			long fileSize = fileChannel.size();
+
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			for (int i = 0; i < chunks.length; i++) {
+				long chunkStart = i * CHUNK_SIZE;
+				chunks[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(CHUNK_SIZE, fileSize - chunkStart));
+			}
+			return chunks;
+		}
+		finally {
+			randomAccessFile.close();  // The mappings stay valid after the file is closed
+		}
+	}
+
+
+	/**
+	 * Get the number of segments in the inverted file
+	 * @return
+	 */
+	public int getNumSegments() {
+		return segmentChunks.length;
+	}
+
+
+	/**
+	 * Decode the postings list stored at the given location
+	 * @param segment inverted file segment holding the postings
+	 * @param location offset of the encoded postings within the segment
+	 * @param length number of bytes of encoded postings
+	 * @param documentFrequency number of postings in the list
+	 * @param documentIds array of at least documentFrequency entries that receives the document ids
+	 * @param termFrequencies array of at least documentFrequency entries that receives the term frequencies
+	 */
+	public void readPostings(int segment, long location, int length, int documentFrequency, int[] documentIds, int[] termFrequencies) {
+		postingsCodecs[segment].decode(view(segment, location, length), documentFrequency, documentIds, termFrequencies);
+	}
+
+
+	/**
+	 * Get a buffer over length bytes of a segment starting at location
+	 * Ranges within one chunk share the mapped memory, ranges that cross a chunk boundary are copied
+	 * @param segment
+	 * @param location
+	 * @param length
+	 * @return
+	 */
+	private ByteBuffer view(int segment, long location, int length) {
+		MappedByteBuffer[] chunks = segmentChunks[segment];
+		int chunk = (int) (location / CHUNK_SIZE);
+		int offset = (int) (location % CHUNK_SIZE);
+
+		if (offset + length <= chunks[chunk].capacity()) {
+			ByteBuffer view = chunks[chunk].duplicate();
+			view.position(offset);
+			view.limit(offset + length);
+			return view;
+		}
+
+		byte[] copy = new byte[length];
+		int copied = 0;
+		while (copied < length) {
+			ByteBuffer view = chunks[chunk].duplicate();
+			view.position(offset);
+			int count = Math.min(length - copied, view.remaining());
+			view.get(copy, copied, count);
+			copied += count;
+			chunk++;
+			offset = 0;
+		}
+		return ByteBuffer.wrap(copy);
+	}
+}
@@ -0,0 +1,468 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class lets an index answer queries as if its terms had been truncated to a prefix length,
+ * 		so a single unstemmed index also serves the truncation stemming of a stemmed index
+ * A truncated term, or prefix term, stands for every term of the index that truncates to it
+ * 	A prefix term as long as the prefix length matches every term starting with it, which is a
+ * 		contiguous range of the dictionary since terms are sorted
+ * 	A shorter prefix term only matches the term itself, since shorter terms are not truncated
+ * Prefix terms are numbered in dictionary order, and the postings of a prefix term are the postings
+ * 		of its terms merged on the fly, summing the term frequencies of each document
+ * Merged postings go through their own PostingsCache, so the postings of hot prefixes are merged once
+ *
+ * The statistics of the truncated collection are computed once and kept in a prefix file in the
+ * 		index directory: the prefix term of each term, the first term, document frequency and largest
+ * 		normalized TF-IDF weight of each prefix term, and the TF-IDF vector length of each document
+ * 	They are computed in the same order and with the same arithmetic as when a truncated index is built,
+ * 		so scores are identical to those of the truncated index
+ * 	The file records the generation of the index it was built from, so open rebuilds it whenever
+ * 		the index has been rebuilt
+ *
+ * Prefix file format:
+ * 	Header: magic number, version, index generation, prefix length, number of terms, number of prefix terms,
+ * 		smallest document ID, number of document IDs covered
+ * 	Prefix term of each term, by term ID (int)
+ * 	Parallel arrays indexed by prefix term: first term ID (int), document frequency (int), largest weight (double)
+ * 	Vector length of each document ID (double), 0 for IDs that belong to no document
+ * A single mapping is used, so the file must be smaller than 2 GB
+ *
+ * Like the index, a prefix index can be shared by any number of threads
+ *
+ * @author Miranda Myers
+ *
+ */
+public class PrefixIndex {
+	private static final int MAGIC_NUMBER = 0x49525058;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 36;
+	private final InvertedFileAccessor invertedFileAccessor;
+	private final Dictionary dictionary;
+	private final MappedByteBuffer buffer;
+	private final long generation; // Generation of the index the file was built from
+	private final int prefixLength;
+	private final int numTerms;
+	private final int numPrefixTerms;
+	private final int minDocumentId;
+	private final int numDocumentIds;
+	private final int firstTermIdOffset;
+	private final int documentFrequencyOffset;
+	private final int maxWeightOffset;
+	private final int normsOffset;
+	private final PostingsCache postingsCache; // Merged postings of frequently read prefix terms
+
+
+	/**
+	 * Map the prefix file of an index into memory
+	 * @param fileName
+	 * @param invertedFileAccessor index the file was built from
+	 * @throws IOException
+	 */
+	public PrefixIndex(String fileName, InvertedFileAccessor invertedFileAccessor) throws IOException {
+		this.invertedFileAccessor = invertedFileAccessor;
+		this.dictionary = invertedFileAccessor.getDictionary();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+		finally {
+			randomAccessFile.close();  // The mapping stays valid after the file is closed
+		}
+
+		if (buffer.getInt(0) != MAGIC_NUMBER || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " prefix file: " + fileName);
+		}
+		generation = buffer.getLong(8);
+		prefixLength = buffer.getInt(16);
+		numTerms = buffer.getInt(20);
+		numPrefixTerms = buffer.getInt(24);
+		minDocumentId = buffer.getInt(28);
+		numDocumentIds = buffer.getInt(32);
+		firstTermIdOffset = HEADER_SIZE + 4 * numTerms;
+		documentFrequencyOffset = firstTermIdOffset + 4 * numPrefixTerms;
+		maxWeightOffset = documentFrequencyOffset + 4 * numPrefixTerms;
+		normsOffset = maxWeightOffset + 8 * numPrefixTerms;
+		postingsCache = new PostingsCache(PostingsCache.DEFAULT_CAPACITY, numPrefixTerms);
+	}
+
+
+	/**
+	 * Open the prefix file of an index for a prefix length, writing it first if it is missing
+	 * 		or was built from another generation
+	 * The file is written under a temporary name and then renamed, so a mapping of the old file stays valid
+	 * @param invertedFileAccessor
+	 * @param prefixLength
+	 * @return
+	 * @throws IOException
+	 */
+	public static PrefixIndex open(InvertedFileAccessor invertedFileAccessor, int prefixLength) throws IOException {
+		String fileName = getFileName(prefixLength);
+		File prefixFile = new File(invertedFileAccessor.getIndexDirectory(), fileName);
+		if (prefixFile.exists()) {
+			try {
+				PrefixIndex prefixIndex = new PrefixIndex(prefixFile.getPath(), invertedFileAccessor);
+				if (prefixIndex.generation == invertedFileAccessor.getGeneration() && prefixIndex.prefixLength == prefixLength
+						&& prefixIndex.numTerms == invertedFileAccessor.getDictionary().size()) {
+					return prefixIndex;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		File temporaryFile = new File(invertedFileAccessor.getIndexDirectory(), fileName + ".tmp");
+		write(temporaryFile.getPath(), invertedFileAccessor, prefixLength);
+		if (!temporaryFile.renameTo(prefixFile)) {
+			throw new IOException("Could not rename " + temporaryFile + " to " + prefixFile);
+		}
+		return new PrefixIndex(prefixFile.getPath(), invertedFileAccessor);
+	}
+
+
+	/**
+	 * Get the name of the prefix file for a prefix length
+	 * @param prefixLength
+	 * @return
+	 */
+	public static String getFileName(int prefixLength) {
+		return "prefix-" + prefixLength + ".bin";
+	}
+
+
+	/**
+	 * Write the prefix file of an index
+	 * Implementation details:
+	 * 	Walk the dictionary in term ID order, starting a new prefix term whenever the truncated term changes
+	 * 	Merge the postings of each prefix term, its document frequency is the number of merged postings
+	 * 	Add the squared TF-IDF weight of each merged posting to its document's accumulator, then take square roots
+	 * 	Merge the postings again to find the largest normalized weight of each prefix term, now that
+	 * 		the document norms are known
+	 * @param fileName
+	 * @param invertedFileAccessor
+	 * @param prefixLength
+	 * @throws IOException
+	 */
+	public static void write(String fileName, InvertedFileAccessor invertedFileAccessor, int prefixLength) throws IOException {
+		Dictionary dictionary = invertedFileAccessor.getDictionary();
+		int numTerms = dictionary.size();
+		long numDocuments = invertedFileAccessor.getNumDocuments();
+		int minDocumentId = invertedFileAccessor.getMinDocumentId();
+		int numDocumentIds = invertedFileAccessor.getNumDocumentIds();
+
+		//Number the prefix terms
+		int[] prefixTermIds = new int[numTerms];
+		List<Integer> firstTermIds = new ArrayList<>();
+		String previousPrefixTerm = null;
+		for (int termId = 0; termId < numTerms; termId++) {
+			String prefixTerm = truncate(dictionary.getTerm(termId), prefixLength);
+			if (!prefixTerm.equals(previousPrefixTerm)) {
+				firstTermIds.add(termId);
+				previousPrefixTerm = prefixTerm;
+			}
+			prefixTermIds[termId] = firstTermIds.size() - 1;
+		}
+		int numPrefixTerms = firstTermIds.size();
+
+		int[] documentFrequencies = new int[numPrefixTerms];
+		double[] squaredWeights = new double[numDocumentIds];
+		int[] documentIds = new int[1024];
+		int[] termFrequencies = new int[1024];
+		for (int prefixTermId = 0; prefixTermId < numPrefixTerms; prefixTermId++) {
+			int firstTermId = firstTermIds.get(prefixTermId);
+			int endTermId = prefixTermId + 1 < numPrefixTerms ? firstTermIds.get(prefixTermId + 1) : numTerms;
+			int capacity = getMaxMergedLength(dictionary, firstTermId, endTermId);
+			if (capacity > documentIds.length) {
+				documentIds = new int[Math.max(capacity, 2 * documentIds.length)];
+				termFrequencies = new int[documentIds.length];
+			}
+			int documentFrequency = mergePostings(invertedFileAccessor, firstTermId, endTermId, documentIds, termFrequencies);
+			documentFrequencies[prefixTermId] = documentFrequency;
+
+			double idf = IRUtil.getIdf(numDocuments, documentFrequency);
+			for (int i = 0; i < documentFrequency; i++) {
+				double tfIdf = termFrequencies[i] * idf;
+				squaredWeights[documentIds[i] - minDocumentId] += tfIdf * tfIdf;
+			}
+		}
+		double[] documentNorms = new double[numDocumentIds];
+		for (int i = 0; i < numDocumentIds; i++) {
+			documentNorms[i] = Math.sqrt(squaredWeights[i]);
+		}
+
+		double[] maxWeights = new double[numPrefixTerms];
+		for (int prefixTermId = 0; prefixTermId < numPrefixTerms; prefixTermId++) {
+			int firstTermId = firstTermIds.get(prefixTermId);
+			int endTermId = prefixTermId + 1 < numPrefixTerms ? firstTermIds.get(prefixTermId + 1) : numTerms;
+			int capacity = getMaxMergedLength(dictionary, firstTermId, endTermId);
+			if (capacity > documentIds.length) {
+				documentIds = new int[Math.max(capacity, 2 * documentIds.length)];
+				termFrequencies = new int[documentIds.length];
+			}
+			int documentFrequency = mergePostings(invertedFileAccessor, firstTermId, endTermId, documentIds, termFrequencies);
+
+			double idf = IRUtil.getIdf(numDocuments, documentFrequency);
+			for (int i = 0; i < documentFrequency; i++) {
+				double documentNorm = documentNorms[documentIds[i] - minDocumentId];
+				if (documentNorm > 0) {
+					maxWeights[prefixTermId] = Math.max(maxWeights[prefixTermId], termFrequencies[i] * idf / documentNorm);
+				}
+			}
+		}
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		try {
+			output.writeInt(MAGIC_NUMBER);
+			output.writeInt(VERSION);
+			output.writeLong(invertedFileAccessor.getGeneration());
+			output.writeInt(prefixLength);
+			output.writeInt(numTerms);
+			output.writeInt(numPrefixTerms);
+			output.writeInt(minDocumentId);
+			output.writeInt(numDocumentIds);
+			for (int prefixTermId : prefixTermIds) {
+				output.writeInt(prefixTermId);
+			}
+			for (int firstTermId : firstTermIds) {
+				output.writeInt(firstTermId);
+			}
+			for (int documentFrequency : documentFrequencies) {
+				output.writeInt(documentFrequency);
+			}
+			for (double maxWeight : maxWeights) {
+				output.writeDouble(maxWeight);
+			}
+			for (double documentNorm : documentNorms) {
+				output.writeDouble(documentNorm);
+			}
+		}
+		finally {
+			output.close();
+		}
+	}
+
+
+	/**
+	 * Get the number of prefix terms, the vocabulary size of the truncated collection
+	 * @return
+	 */
+	public int size() {
+		return numPrefixTerms;
+	}
+
+
+	/**
+	 * Get the prefix length terms are truncated to
+	 * @return
+	 */
+	public int getPrefixLength() {
+		return prefixLength;
+	}
+
+
+	/**
+	 * Look up the prefix term of a query term, truncating it first if it is longer than the prefix length
+	 * @param text
+	 * @return prefix term ID, or -1 if no term of the index truncates to it
+	 */
+	public int getPrefixTermId(String text) {
+		String prefixTerm = truncate(text, prefixLength);
+		int termId = dictionary.getFirstTermId(prefixTerm);
+		if (termId == numTerms) {
+			return -1;
+		}
+
+		String term = dictionary.getTerm(termId);
+		boolean matches = prefixTerm.length() == prefixLength ? term.startsWith(prefixTerm) : term.equals(prefixTerm);
+		return matches ? buffer.getInt(HEADER_SIZE + 4 * termId) : -1;
+	}
+
+
+	/**
+	 * Get the number of documents containing any term of a prefix term
+	 * @param prefixTermId
+	 * @return
+	 */
+	public int getDocumentFrequency(int prefixTermId) {
+		return buffer.getInt(documentFrequencyOffset + 4 * prefixTermId);
+	}
+
+
+	/**
+	 * Get the largest normalized TF-IDF weight of a prefix term over all documents
+	 * @param prefixTermId
+	 * @return
+	 */
+	public double getTermMaxWeight(int prefixTermId) {
+		return buffer.getDouble(maxWeightOffset + 8 * prefixTermId);
+	}
+
+
+	/**
+	 * Get the TF-IDF vector length of a document over the prefix terms
+	 * @param documentId
+	 * @return 0 for IDs that belong to no document
+	 */
+	public double getDocumentNorm(int documentId) {
+		long index = (long) documentId - minDocumentId;
+		if (index < 0 || index >= numDocumentIds) {
+			return 0;
+		}
+		return buffer.getDouble(normsOffset + 8 * (int) index);
+	}
+
+
+	/**
+	 * Merge the postings of the terms of a prefix term into the given arrays
+	 * The arrays must hold at least the prefix term's document frequency entries
+	 * Postings are copied from the merged postings cache when it holds them, otherwise they are merged
+	 * 		and offered to the cache
+	 * @param prefixTermId
+	 * @param documentIds
+	 * @param termFrequencies
+	 * @return number of merged postings, the prefix term's document frequency
+	 */
+	public int readPostings(int prefixTermId, int[] documentIds, int[] termFrequencies) {
+		return readPostings(prefixTermId, documentIds, termFrequencies, null);
+	}
+
+
+	/**
+	 * Merge the postings of the terms of a prefix term into the given arrays, counting the read for a query
+	 * 		as a merged postings cache hit or as the encoded bytes of the terms decoded
+	 * @param prefixTermId
+	 * @param documentIds
+	 * @param termFrequencies
+	 * @param queryMetrics metrics of the query reading the postings, may be null
+	 * @return number of merged postings, the prefix term's document frequency
+	 */
+	public int readPostings(int prefixTermId, int[] documentIds, int[] termFrequencies, QueryMetrics queryMetrics) {
+		int documentFrequency = getDocumentFrequency(prefixTermId);
+		if (postingsCache.get(prefixTermId, documentIds, termFrequencies)) {
+			if (queryMetrics != null) {
+				queryMetrics.addPostingsCacheHit();
+			}
+			return documentFrequency;
+		}
+
+		int firstTermId = buffer.getInt(firstTermIdOffset + 4 * prefixTermId);
+		int endTermId = prefixTermId + 1 < numPrefixTerms ? buffer.getInt(firstTermIdOffset + 4 * (prefixTermId + 1)) : numTerms;
+		if (queryMetrics != null) {
+			for (int termId = firstTermId; termId < endTermId; termId++) {
+				queryMetrics.addPostingsBytes(dictionary.getPostingsLength(termId));
+			}
+		}
+		int capacity = getMaxMergedLength(dictionary, firstTermId, endTermId);
+		if (capacity > documentIds.length) {
+			int[] mergedDocumentIds = new int[capacity];
+			int[] mergedTermFrequencies = new int[capacity];
+			mergePostings(invertedFileAccessor, firstTermId, endTermId, mergedDocumentIds, mergedTermFrequencies);
+			System.arraycopy(mergedDocumentIds, 0, documentIds, 0, documentFrequency);
+			System.arraycopy(mergedTermFrequencies, 0, termFrequencies, 0, documentFrequency);
+		}
+		else {
+			mergePostings(invertedFileAccessor, firstTermId, endTermId, documentIds, termFrequencies);
+		}
+		postingsCache.put(prefixTermId, documentIds, termFrequencies, documentFrequency);
+		return documentFrequency;
+	}
+
+
+	/**
+	 * Get the merged postings cache, to watch its hit, miss and eviction counts
+	 * @return
+	 */
+	public PostingsCache getPostingsCache() {
+		return postingsCache;
+	}
+
+
+	/**
+	 * Truncate a term to the prefix length
+	 * @param term
+	 * @param prefixLength
+	 * @return
+	 */
+	private static String truncate(String term, int prefixLength) {
+		return term.length() > prefixLength ? term.substring(0, prefixLength) : term;
+	}
+
+
+	/**
+	 * Get the number of postings of a range of terms before merging, which bounds the number of merged postings
+	 * @param dictionary
+	 * @param firstTermId
+	 * @param endTermId
+	 * @return
+	 */
+	private static int getMaxMergedLength(Dictionary dictionary, int firstTermId, int endTermId) {
+		long length = 0;
+		for (int termId = firstTermId; termId < endTermId; termId++) {
+			length += dictionary.getDocumentFrequency(termId);
+		}
+		return (int) Math.min(length, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Merge the postings of a range of terms into postings sorted by document ID, summing the
+	 * 		term frequencies of documents that contain several of the terms
+	 * Implementation details:
+	 * 	A single term's postings are decoded as they are
+	 * 	Otherwise each posting is packed into a long, document ID in the high half and term frequency
+	 * 		in the low half, the packed postings of all terms are sorted, and runs of the same document are summed
+	 * 	Postings are decoded bypassing the index's postings cache, the merged postings are cached instead
+	 * @param invertedFileAccessor
+	 * @param firstTermId
+	 * @param endTermId
+	 * @param documentIds array of at least getMaxMergedLength entries
+	 * @param termFrequencies array of at least getMaxMergedLength entries
+	 * @return number of merged postings
+	 */
+	private static int mergePostings(InvertedFileAccessor invertedFileAccessor, int firstTermId, int endTermId,
+			int[] documentIds, int[] termFrequencies) {
+		Dictionary dictionary = invertedFileAccessor.getDictionary();
+		if (endTermId - firstTermId == 1) {
+			invertedFileAccessor.decodePostings(firstTermId, documentIds, termFrequencies);
+			return dictionary.getDocumentFrequency(firstTermId);
+		}
+
+		long[] packedPostings = new long[getMaxMergedLength(dictionary, firstTermId, endTermId)];
+		int numPacked = 0;
+		for (int termId = firstTermId; termId < endTermId; termId++) {
+			int documentFrequency = dictionary.getDocumentFrequency(termId);
+			invertedFileAccessor.decodePostings(termId, documentIds, termFrequencies);
+			for (int i = 0; i < documentFrequency; i++) {
+				packedPostings[numPacked++] = ((long) documentIds[i] << 32) | termFrequencies[i];
+			}
+		}
+		Arrays.sort(packedPostings, 0, numPacked);
+
+		int length = 0;
+		for (int i = 0; i < numPacked; i++) {
+			int documentId = (int) (packedPostings[i] >> 32);
+			int termFrequency = (int) packedPostings[i];
+			if (length > 0 && documentIds[length - 1] == documentId) {
+				termFrequencies[length - 1] += termFrequency;
+			}
+			else {
+				documentIds[length] = documentId;
+				termFrequencies[length] = termFrequency;
+				length++;
+			}
+		}
+		return length;
+	}
+}
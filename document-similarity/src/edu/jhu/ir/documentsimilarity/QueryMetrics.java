@@ -0,0 +1,145 @@
+package edu.jhu.ir.documentsimilarity;
+
+/**
+ * This class records the work and time of one query while it is scored, then adds them to a MetricsRegistry
+ * Each query thread keeps its own QueryMetrics and reuses it for every query, so recording takes no lock
+ *
+ * The time of a query is split between stages with a lap clock: lap(stage) charges the time since the
+ * 		previous lap, or since the query started, to the stage, so each lap costs one clock read
+ * 	DICTIONARY looks up term IDs, document frequencies, IDFs and score upper bounds
+ * 	DECODE reads postings from the postings cache or decodes them from the index
+ * 	SCORING adds partial dot products into accumulators, or walks the WAND cursors
+ * 	SELECTION normalizes the scores and selects and sorts the top ranked documents
+ * Under WAND, documents are offered to the top documents heap as they are scored, so only the final sort
+ * 		is charged to SELECTION
+ *
+ * Counted per query: postings entries read, bytes of encoded postings decoded from the index, postings
+ * 		read from a postings cache instead, accumulators touched, and whether the result cache answered
+ * 		the query, in which case nothing else is counted
+ * The impact-ordered index of score at a time evaluation reports postings entries but not bytes
+ *
+ * @author Miranda Myers
+ *
+ */
+public class QueryMetrics {
+	public static final String QUERIES = "query.count";
+	public static final String RESULT_CACHE_HITS = "query.resultCacheHits";
+	public static final String POSTINGS_ENTRIES = "query.postings.entries";
+	public static final String POSTINGS_BYTES = "query.postings.bytesDecoded";
+	public static final String POSTINGS_CACHE_HITS = "query.postings.cacheHits";
+	public static final String ACCUMULATORS = "query.accumulators";
+	public static final String LATENCY = "query.latency";
+	public static final String STAGE_PREFIX = "query.stage.";
+
+	private long startTime;
+	private long lapTime; // Clock reading at the previous lap
+	private long[] stageTimes = new long[Stage.values().length];
+	private long postingsEntries;
+	private long postingsBytes;
+	private long postingsCacheHits;
+	private long accumulators;
+	private boolean resultCacheHit;
+
+
+	/**
+	 * Stages of scoring a query that its time is split between
+	 */
+	public enum Stage {
+		DICTIONARY,
+		DECODE,
+		SCORING,
+		SELECTION
+	}
+
+
+	/**
+	 * Clear the counts of the previous query and start its clock
+	 */
+	public void start() {
+		startTime = System.nanoTime();
+		lapTime = startTime;
+		for (int i = 0; i < stageTimes.length; i++) {
+			stageTimes[i] = 0;
+		}
+		postingsEntries = 0;
+		postingsBytes = 0;
+		postingsCacheHits = 0;
+		accumulators = 0;
+		resultCacheHit = false;
+	}
+
+
+	/**
+	 * Charge the time since the previous lap to a stage
+	 * @param stage
+	 */
+	public void lap(Stage stage) {
+		long now = System.nanoTime();
+		stageTimes[stage.ordinal()] += now - lapTime;
+		lapTime = now;
+	}
+
+
+	/**
+	 * Count postings read for the query
+	 * @param numEntries
+	 */
+	public void addPostingsEntries(long numEntries) {
+		postingsEntries += numEntries;
+	}
+
+
+	/**
+	 * Count a postings list decoded from the index
+	 * @param numBytes encoded length of the postings
+	 */
+	public void addPostingsBytes(long numBytes) {
+		postingsBytes += numBytes;
+	}
+
+
+	/**
+	 * Count a postings list copied from a postings cache
+	 */
+	public void addPostingsCacheHit() {
+		postingsCacheHits++;
+	}
+
+
+	/**
+	 * Count documents given a score by the query
+	 * @param numAccumulators
+	 */
+	public void addAccumulators(long numAccumulators) {
+		accumulators += numAccumulators;
+	}
+
+
+	/**
+	 * Note that the query was answered from the result cache
+	 */
+	public void setResultCacheHit() {
+		resultCacheHit = true;
+	}
+
+
+	/**
+	 * Stop the clock of the query and add its latency, stage times and counts to a registry
+	 * @param registry
+	 */
+	public void finish(MetricsRegistry registry) {
+		registry.getHistogram(LATENCY).record(System.nanoTime() - startTime);
+		registry.getCounter(QUERIES).incrementAndGet();
+		if (resultCacheHit) {
+			registry.getCounter(RESULT_CACHE_HITS).incrementAndGet();
+			return;
+		}
+		for (Stage stage : Stage.values()) {
+			registry.getHistogram(STAGE_PREFIX + stage.name().toLowerCase()).record(stageTimes[stage.ordinal()]);
+		}
+		registry.getCounter(POSTINGS_ENTRIES).addAndGet(postingsEntries);
+		registry.getCounter(POSTINGS_BYTES).addAndGet(postingsBytes);
+		registry.getCounter(POSTINGS_CACHE_HITS).addAndGet(postingsCacheHits);
+		registry.getCounter(ACCUMULATORS).addAndGet(accumulators);
+	}
+}
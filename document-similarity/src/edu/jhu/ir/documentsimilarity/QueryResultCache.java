@@ -0,0 +1,207 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches the top ranked documents of queries, so queries that repeat are not scored again
+ * Queries are keyed by their normalized form, built by the caller, such as their bag of words and settings
+ * Each result is the ranked document IDs and scores, held in primitive arrays
+ * The cache is bounded both by a number of entries and by a byte budget, the least recently used
+ * 		results are evicted first
+ *
+ * Every result is computed against one generation of an index
+ * 	The cache remembers the generation of its results, and looking up or adding a result for another
+ * 		generation first drops every cached result, so results of an index that was rebuilt are never served
+ * Hits, misses, evictions and invalidations are counted
+ *
+ * All methods are synchronized, so a cache can be shared by query threads
+ *
+ * @author Miranda Myers
+ *
+ */
+public class QueryResultCache {
+	public static final int DEFAULT_MAX_ENTRIES = 10000;  // Default number of results cached
+	public static final long DEFAULT_CAPACITY = 16L << 20;  // Default byte budget of the cache
+	private static final int ENTRY_OVERHEAD = 128;  // Heap bytes taken by an entry besides its key text and arrays
+	private int maxEntries; // Number of results cached at most
+	private long capacity; // Byte budget of the cache
+	private long size = 0; // Bytes taken by the cached results
+	private long generation = -1; // Index generation of the cached results
+	private Map<String, CachedResult> entries = new LinkedHashMap<>(16, 0.75f, true); // Query key to result, least recently used first
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	private long invalidationCount = 0; // Number of times the cached results were dropped for a new generation
+
+
+	/**
+	 * Ranked documents of a query
+	 * The arrays are shared with every lookup of the query, so they must not be modified
+	 */
+	public static class CachedResult {
+		private int[] documentIds;
+		private double[] scores;
+		private long size; // Bytes counted against the budget
+
+		private CachedResult(String key, int[] documentIds, double[] scores) {
+			this.documentIds = documentIds;
+			this.scores = scores;
+			this.size = ENTRY_OVERHEAD + 2L * key.length() + 12L * documentIds.length;
+		}
+
+		/**
+		 * Get the document IDs in rank order
+		 * @return
+		 */
+		public int[] getDocumentIds() {
+			return documentIds;
+		}
+
+		/**
+		 * Get the scores in rank order
+		 * @return
+		 */
+		public double[] getScores() {
+			return scores;
+		}
+	}
+
+
+	/**
+	 * @param maxEntries number of results cached at most, 0 disables caching
+	 * @param capacity byte budget of the cache
+	 */
+	public QueryResultCache(int maxEntries, long capacity) {
+		this.maxEntries = maxEntries;
+		this.capacity = capacity;
+	}
+
+
+	/**
+	 * Look up the result of a query
+	 * @param key normalized query
+	 * @param generation generation of the index the query is evaluated against
+	 * @return the cached result, or null if the query has no result for this generation
+	 */
+	public synchronized CachedResult get(String key, long generation) {
+		if (maxEntries == 0) {
+			return null;
+		}
+		checkGeneration(generation);
+
+		CachedResult result = entries.get(key);
+		if (result == null) {
+			missCount++;
+		}
+		else {
+			hitCount++;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Add the result of a query, evicting the least recently used results to stay within the bounds
+	 * The arrays are kept as they are, so the caller must not modify them afterwards
+	 * @param key normalized query
+	 * @param generation generation of the index the query was evaluated against
+	 * @param documentIds ranked document IDs
+	 * @param scores scores of the ranked documents
+	 */
+	public synchronized void put(String key, long generation, int[] documentIds, double[] scores) {
+		if (maxEntries == 0) {
+			return;
+		}
+		checkGeneration(generation);
+
+		CachedResult result = new CachedResult(key, documentIds, scores);
+		if (result.size > capacity) {
+			return;
+		}
+		CachedResult previous = entries.put(key, result);
+		if (previous != null) {
+			size -= previous.size;
+		}
+		size += result.size;
+
+		Iterator<CachedResult> iterator = entries.values().iterator();
+		while (entries.size() > maxEntries || size > capacity) {
+			CachedResult eldest = iterator.next();
+			iterator.remove();
+			size -= eldest.size;
+			evictionCount++;
+		}
+	}
+
+
+	/**
+	 * Get the number of results cached
+	 * @return
+	 */
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+
+	/**
+	 * Get the bytes taken by the cached results
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Get the number of lookups that found a result
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+
+	/**
+	 * Get the number of lookups that found no result
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+
+	/**
+	 * Get the number of results evicted to stay within the bounds
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+
+	/**
+	 * Get the number of times the cached results were dropped because the index generation changed
+	 * @return
+	 */
+	public synchronized long getInvalidationCount() {
+		return invalidationCount;
+	}
+
+
+	/**
+	 * Drop every cached result if they belong to another index generation
+	 * @param generation
+	 */
+	private void checkGeneration(long generation) {
+		if (generation != this.generation) {
+			if (!entries.isEmpty()) {
+				invalidationCount++;
+			}
+			entries.clear();
+			size = 0;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves queries over HTTP from an index that is loaded once and stays resident
+ * The dictionary, norms and postings stay mapped and the caches stay warm between requests,
+ * 		so the time of a request is spent scoring
+ * The server listens on the loopback interface only
+ *
+ * Requests:
+ * 	GET /search?q=query+text&k=10 ranks documents for a single query
+ * 	POST /search?k=10 ranks documents for a batch of queries, one query per line of the request body
+ * 		Blank lines are skipped
+ * 	k is the number of ranked documents returned per query, at most the number of ranked documents
+ * 		kept by DocumentSimilarity, 10 by default
+ * Responses are plain UTF-8 text in TREC run format, the same format as the ranked documents file:
+ * 	query number, Q0, document ID, rank, score, run tag
+ * 	Queries of a batch are numbered from 1 in the order of the request body
+ * 	GET /metrics returns the metrics report of the DocumentSimilarity: query latency histograms,
+ * 		time per scoring stage, and postings, accumulator and cache counts
+ * 		main also prints the report every REPORT_INTERVAL seconds
+ *
+ * Requests are handled in one of two execution models:
+ * 	FIXED_POOL handles requests on a fixed pool of threads, a request waits for a free thread
+ * 		before it is even read
+ * 	THREAD_PER_REQUEST handles every request on a thread of its own, a virtual thread when the Java runtime
+ * 		has them (Java 21 and later) and a platform thread from a cached pool otherwise
+ * 		Reading requests and writing responses, which block on the network, then never hold up
+ * 		other requests, so thousands of requests can be in flight at once
+ * In both models, scoring is CPU bound, so at most numScoringThreads requests are scored at once,
+ * 		the others wait on a semaphore until a scorer is free
+ * Each request is scored on the thread handling it
+ * stop shuts the server down gracefully: it stops accepting requests, lets requests in progress finish
+ * 		for a few seconds, then stops the threads
+ *
+ * @author Miranda Myers
+ *
+ */
+public class QueryServer {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_NUM_RANKED = 10;  // Ranked documents returned per query when the request gives no k
+	private final int SHUTDOWN_DELAY = 5;  // Seconds requests in progress are given to finish when stopping
+	private final int BACKLOG = 4096;  // Connections queued before they are accepted, covers bursts of concurrent requests
+	private static final int REPORT_INTERVAL = 60;  // Seconds between metrics reports printed by main
+	private DocumentSimilarity documentSimilarity;
+	private HttpServer server;
+	private ExecutorService executor; // Threads handling requests
+	private Semaphore scoringPermits; // Limits the number of requests scored at once
+	private boolean useVirtualThreads; // Whether requests are handled on virtual threads
+
+
+	/**
+	 * Ways of assigning threads to requests
+	 */
+	public enum ExecutionModel {
+		FIXED_POOL, // A fixed pool of numScoringThreads threads handles all requests
+		THREAD_PER_REQUEST // Every request gets its own thread, virtual when possible
+	}
+
+
+	/**
+	 * Create a server for an index that handles requests on a fixed pool of threads
+	 * It does not accept requests until it is started
+	 * @param documentSimilarity ranks the documents of the index
+	 * @param port port to listen on, 0 picks a free port
+	 * @param numThreads number of requests handled at once
+	 * @throws IOException if the port cannot be bound
+	 */
+	public QueryServer(DocumentSimilarity documentSimilarity, int port, int numThreads) throws IOException {
+		this(documentSimilarity, port, numThreads, ExecutionModel.FIXED_POOL);
+	}
+
+
+	/**
+	 * Create a server for an index, it does not accept requests until it is started
+	 * @param documentSimilarity ranks the documents of the index
+	 * @param port port to listen on, 0 picks a free port
+	 * @param numScoringThreads number of requests scored at once
+	 * @param executionModel how threads are assigned to requests
+	 * @throws IOException if the port cannot be bound
+	 */
+	public QueryServer(DocumentSimilarity documentSimilarity, int port, int numScoringThreads, ExecutionModel executionModel) throws IOException {
+		this.documentSimilarity = documentSimilarity;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+		server.createContext("/search", new SearchHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		if (executionModel == ExecutionModel.THREAD_PER_REQUEST) {
+			executor = newThreadPerRequestExecutor();
+		}
+		else {
+			executor = Executors.newFixedThreadPool(numScoringThreads);
+		}
+		scoringPermits = new Semaphore(numScoringThreads, true);
+		server.setExecutor(executor);
+	}
+
+
+	/**
+	 * Create an executor that runs every task on a new virtual thread, if the Java runtime has virtual threads
+	 * Otherwise fall back to a cached pool, which starts a platform thread whenever no idle thread is left
+	 * Virtual threads are looked up by reflection, so the server still compiles and runs before Java 21
+	 * @return
+	 */
+	private ExecutorService newThreadPerRequestExecutor() {
+		try {
+			ExecutorService virtualThreadExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			useVirtualThreads = true;
+			return virtualThreadExecutor;
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+
+	/**
+	 * Whether requests are handled on virtual threads
+	 * @return
+	 */
+	public boolean getUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+
+	/**
+	 * Start accepting requests
+	 */
+	public void start() {
+		server.start();
+	}
+
+
+	/**
+	 * Get the port the server listens on
+	 * @return
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+
+	/**
+	 * Stop accepting requests, wait for the requests in progress, and stop the request threads
+	 */
+	public void stop() {
+		server.stop(SHUTDOWN_DELAY);
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_DELAY, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Handles /search requests
+	 */
+	private class SearchHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String rawQuery = exchange.getRequestURI().getRawQuery();
+				List<String> queryTexts = new ArrayList<>();
+				if ("GET".equals(exchange.getRequestMethod())) {
+					String queryText = getParameter(rawQuery, "q");
+					if (queryText == null) {
+						sendResponse(exchange, 400, "Missing query parameter q\n");
+						return;
+					}
+					queryTexts.add(queryText);
+				}
+				else if ("POST".equals(exchange.getRequestMethod())) {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (!line.trim().isEmpty()) {
+							queryTexts.add(line);
+						}
+					}
+				}
+				else {
+					sendResponse(exchange, 405, "Only GET and POST are supported\n");
+					return;
+				}
+
+				int numRanked = DEFAULT_NUM_RANKED;
+				String k = getParameter(rawQuery, "k");
+				if (k != null) {
+					try {
+						numRanked = Integer.parseInt(k);
+					} catch (NumberFormatException e) {
+						sendResponse(exchange, 400, "k must be a number\n");
+						return;
+					}
+				}
+				numRanked = Math.max(0, Math.min(numRanked, documentSimilarity.getNumRankedDocuments()));
+
+				List<Map<Integer, Double>> results;
+				try {
+					scoringPermits.acquire();
+				} catch (InterruptedException e) {
+					sendResponse(exchange, 503, "Server is shutting down\n");
+					return;
+				}
+				try {
+					results = documentSimilarity.search(queryTexts);
+				}
+				finally {
+					scoringPermits.release();
+				}
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+				for (int i = 0; i < results.size(); i++) {
+					DocumentSimilarity.printRankedDocuments(writer, i + 1, results.get(i), numRanked);
+				}
+				writer.close();
+				sendResponse(exchange, 200, body.toByteArray());
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				sendResponse(exchange, 500, "Internal error\n");
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Handles /metrics requests
+	 */
+	private class MetricsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					sendResponse(exchange, 405, "Only GET is supported\n");
+					return;
+				}
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				PrintStream printStream = new PrintStream(body, false, "UTF-8");
+				documentSimilarity.getMetrics().printReport(printStream);
+				printStream.close();
+				sendResponse(exchange, 200, body.toByteArray());
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				sendResponse(exchange, 500, "Internal error\n");
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Get the decoded value of a parameter of a URL query string
+	 * @param rawQuery query string, still URL encoded, may be null
+	 * @param name
+	 * @return the value of the first parameter with that name, or null if there is none
+	 */
+	private static String getParameter(String rawQuery, String name) {
+		if (rawQuery == null) {
+			return null;
+		}
+		for (String parameter : rawQuery.split("&")) {
+			int equals = parameter.indexOf('=');
+			String parameterName = equals < 0 ? parameter : parameter.substring(0, equals);
+			if (parameterName.equals(name)) {
+				String value = equals < 0 ? "" : parameter.substring(equals + 1);
+				try {
+					return URLDecoder.decode(value, "UTF-8");
+				} catch (IOException e) {
+					e.printStackTrace();
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Send a plain text response
+	 * @param exchange
+	 * @param status
+	 * @param text
+	 * @throws IOException
+	 */
+	private static void sendResponse(HttpExchange exchange, int status, String text) throws IOException {
+		sendResponse(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	/**
+	 * Send a plain UTF-8 text response
+	 * @param exchange
+	 * @param status
+	 * @param body
+	 * @throws IOException
+	 */
+	private static void sendResponse(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream output = exchange.getResponseBody();
+		try {
+			output.write(body);
+		}
+		finally {
+			output.close();
+		}
+	}
+
+
+	/**
+	 * Serve the unstemmed index of a collection, building it first if it is not current
+	 * Arguments: input file name, port, number of scoring threads, whether queries are stemmed,
+	 * 		execution model (FIXED_POOL by default)
+	 * The server stops gracefully when the process is asked to exit
+	 * The metrics report is printed every REPORT_INTERVAL seconds while the server runs
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		String inputFileName = args.length > 0 ? args[0] : "fire10.en.utf8";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		boolean useStemming = args.length > 3 && Boolean.parseBoolean(args[3]);
+		ExecutionModel executionModel = args.length > 4 ? ExecutionModel.valueOf(args[4]) : ExecutionModel.FIXED_POOL;
+
+		InvertedFileAccessor index = new InvertedFileAccessor(DocumentSimilarity.UNSTEMMED_INDEX_DIRECTORY, inputFileName, false, 0,
+				PostingsCodec.PFOR_DELTA, InvertedFileAccessor.DEFAULT_MAX_SEGMENT_SIZE, 1);
+		DocumentSimilarity documentSimilarity = new DocumentSimilarity(index, useStemming, null, null, DocumentSimilarity.Evaluation.WAND, 1);
+
+		final QueryServer queryServer = new QueryServer(documentSimilarity, port, numThreads, executionModel);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				queryServer.stop();
+			}
+		});
+		queryServer.start();
+		documentSimilarity.getMetrics().startPeriodicReport(REPORT_INTERVAL, TimeUnit.SECONDS, System.out);
+		System.out.println("Serving " + index.getIndexDirectory() + " on port " + queryServer.getPort() + " with " + executionModel
+				+ (queryServer.getUseVirtualThreads() ? " on virtual threads" : ""));
+	}
+}
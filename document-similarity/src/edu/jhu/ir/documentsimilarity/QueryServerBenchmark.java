@@ -0,0 +1,232 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class compares the execution models of the QueryServer under many concurrent clients
+ * For each execution model it starts a server on a free port, then starts numClients client threads
+ * 		that all send their queries at the same moment, each waiting for a response before its next query
+ * The queries are the topics of a query file, taken in turn by the clients
+ * It prints the throughput and the median, 99th percentile and largest latency of each model,
+ * 		followed by the server side metrics report, which splits the scoring time between stages
+ *
+ * Each model is run against its own DocumentSimilarity with the result cache disabled, so every request
+ * 		is scored rather than answered from the results of the queries repeated by the clients
+ * Both models start from the same state: the postings cache of the index is emptied before each model,
+ * 		then every query is sent once, untimed, so each model is measured on a warm postings cache and
+ * 		compiled code, and the metrics report only counts the measured requests
+ *
+ * @author Miranda Myers
+ *
+ */
+public class QueryServerBenchmark {
+	private List<String> queryTexts; // Queries sent by the clients
+	private int numClients;
+	private int requestsPerClient;
+
+
+	public QueryServerBenchmark(List<String> queryTexts, int numClients, int requestsPerClient) {
+		this.queryTexts = queryTexts;
+		this.numClients = numClients;
+		this.requestsPerClient = requestsPerClient;
+	}
+
+
+	/**
+	 * Read the text of each topic of a query file, the lines between a topic's start and end tags joined by spaces
+	 * @param queryFileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<String> readQueryTexts(String queryFileName) throws IOException {
+		List<String> queryTexts = new ArrayList<>();
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(queryFileName));
+		try {
+			String currentLine;
+			StringBuilder queryText = null;
+			while ((currentLine = bufferedReader.readLine()) != null) {
+				if (currentLine.startsWith("<Q ID=")) {
+					queryText = new StringBuilder();
+				}
+				else if (currentLine.startsWith("</Q>")) {
+					if (queryText != null && queryText.toString().trim().length() > 0) {
+						queryTexts.add(queryText.toString());
+					}
+					queryText = null;
+				}
+				else if (queryText != null) {
+					queryText.append(currentLine).append(' ');
+				}
+			}
+		}
+		finally {
+			bufferedReader.close();
+		}
+		return queryTexts;
+	}
+
+
+	/**
+	 * Run the clients against a server and print its throughput and latencies
+	 * @param queryServer started server
+	 * @param label name of the run in the printed results
+	 * @throws InterruptedException
+	 */
+	public void run(final QueryServer queryServer, String label) throws InterruptedException {
+		final long[] latencies = new long[numClients * requestsPerClient];
+		final AtomicInteger numLatencies = new AtomicInteger();
+		final AtomicInteger numErrors = new AtomicInteger();
+		final AtomicInteger nextQuery = new AtomicInteger();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		List<Thread> clients = new ArrayList<>();
+		for (int i = 0; i < numClients; i++) {
+			Thread client = new Thread() {
+				@Override
+				public void run() {
+					try {
+						startSignal.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int request = 0; request < requestsPerClient; request++) {
+						String queryText = queryTexts.get(Math.floorMod(nextQuery.getAndIncrement(), queryTexts.size()));
+						long startTime = System.nanoTime();
+						if (sendQuery(queryServer.getPort(), queryText)) {
+							latencies[numLatencies.getAndIncrement()] = System.nanoTime() - startTime;
+						}
+						else {
+							numErrors.incrementAndGet();
+						}
+					}
+				}
+			};
+			client.start();
+			clients.add(client);
+		}
+
+		long startTime = System.nanoTime();
+		startSignal.countDown();
+		for (Thread client : clients) {
+			client.join();
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		long[] sortedLatencies = Arrays.copyOf(latencies, numLatencies.get());
+		Arrays.sort(sortedLatencies);
+		System.out.printf("%s: %d requests from %d clients in %.2f s, %.1f requests/s, latency p50 %.1f ms, p99 %.1f ms, max %.1f ms, %d errors%n",
+				label, sortedLatencies.length, numClients, seconds, sortedLatencies.length / seconds,
+				getPercentile(sortedLatencies, 0.5) / 1e6, getPercentile(sortedLatencies, 0.99) / 1e6,
+				getPercentile(sortedLatencies, 1.0) / 1e6, numErrors.get());
+	}
+
+
+	/**
+	 * Send every query once from a single client, untimed, to warm the caches and compiled code of a server
+	 * @param queryServer started server
+	 * @return number of queries that failed
+	 */
+	public int warmUp(QueryServer queryServer) {
+		int numErrors = 0;
+		for (String queryText : queryTexts) {
+			if (!sendQuery(queryServer.getPort(), queryText)) {
+				numErrors++;
+			}
+		}
+		return numErrors;
+	}
+
+
+	/**
+	 * Send a query to the server and read the whole response
+	 * @param port
+	 * @param queryText
+	 * @return whether the server answered with success
+	 */
+	private static boolean sendQuery(int port, String queryText) {
+		try {
+			URL url = new URL("http://127.0.0.1:" + port + "/search?k=10&q=" + URLEncoder.encode(queryText, "UTF-8"));
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			InputStream input = connection.getInputStream();
+			try {
+				byte[] buffer = new byte[8192];
+				while (input.read(buffer) >= 0) {
+					// Read the response to the end, so the connection can be reused
+				}
+			}
+			finally {
+				input.close();
+			}
+			return connection.getResponseCode() == 200;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Get a percentile of sorted values
+	 * @param sortedValues
+	 * @param fraction 0.5 for the median, 1 for the largest value
+	 * @return 0 if there are no values
+	 */
+	private static long getPercentile(long[] sortedValues, double fraction) {
+		if (sortedValues.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sortedValues.length) - 1;
+		return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+	}
+
+
+	/**
+	 * Compare the fixed pool and thread per request models on the unstemmed index of a collection
+	 * Arguments: input file name, query file name, number of clients, requests per client, number of scoring threads
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String inputFileName = args.length > 0 ? args[0] : "fire10.en.utf8";
+		String queryFileName = args.length > 1 ? args[1] : "fire10.topics.en.utf8";
+		int numClients = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int requestsPerClient = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int numScoringThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		InvertedFileAccessor index = new InvertedFileAccessor(DocumentSimilarity.UNSTEMMED_INDEX_DIRECTORY, inputFileName, false, 0,
+				PostingsCodec.PFOR_DELTA, InvertedFileAccessor.DEFAULT_MAX_SEGMENT_SIZE, 1);
+		long postingsCacheCapacity = index.getPostingsCache().getCapacity();
+		QueryServerBenchmark benchmark = new QueryServerBenchmark(readQueryTexts(queryFileName), numClients, requestsPerClient);
+
+		for (QueryServer.ExecutionModel executionModel : QueryServer.ExecutionModel.values()) {
+			index.setPostingsCacheCapacity(postingsCacheCapacity);  // Empty the postings cache warmed by the previous model
+			DocumentSimilarity documentSimilarity = new DocumentSimilarity(index, false, null, null, DocumentSimilarity.Evaluation.WAND, 1);
+			documentSimilarity.setResultCacheSize(0, 0);
+			QueryServer queryServer = new QueryServer(documentSimilarity, 0, numScoringThreads, executionModel);
+			queryServer.start();
+			try {
+				int numWarmUpErrors = benchmark.warmUp(queryServer);
+				if (numWarmUpErrors > 0) {
+					System.out.println(executionModel + ": " + numWarmUpErrors + " warm-up queries failed");
+				}
+				documentSimilarity.setMetrics(new MetricsRegistry());  // Report only the measured requests
+				benchmark.run(queryServer, executionModel + (queryServer.getUseVirtualThreads() ? " (virtual threads)" : "")
+						+ " with " + numScoringThreads + " scoring threads");
+				documentSimilarity.getMetrics().printReport(System.out);
+			}
+			finally {
+				queryServer.stop();
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.util.Arrays;
+
+/**
+ * This class accumulates partial scores of documents while a query is evaluated term at a time
+ * Scores live in a dense array indexed by document ID minus the smallest document ID of the index,
+ * 		so adding to a score is an array update with no boxing or hashing
+ * The documents whose score was touched by the current query are listed in the order they were first touched,
+ * 		so reading the scores back only visits those documents
+ * Implementation details:
+ * 	Each entry is stamped with the generation of the query that last touched it
+ * 	An entry whose stamp is not the current generation holds a stale score and counts as 0
+ * 	Starting a new query only increments the generation, so the arrays are reused without clearing
+ * 		They are only cleared when the generation wraps around
+ * 	An accumulator is meant for one thread at a time
+ *
+ * Usage:
+ * 	scoreAccumulator.reset();
+ * 	for each posting: scoreAccumulator.add(documentId, partialScore);
+ * 	for (int i = 0; i < scoreAccumulator.size(); i++) {
+ * 		use scoreAccumulator.getDocumentId(i) and scoreAccumulator.getScore(i)
+ * 	}
+ *
+ * @author Miranda Myers
+ *
+ */
+public class ScoreAccumulator {
+	private int minDocumentId; // Document ID of the first entry
+	private double[] scores; // Score of each document ID, valid only when stamped with the current generation
+	private int[] generations; // Generation that last touched each document ID
+	private int generation = 0; // Generation of the current query
+	private int[] touchedIndexes; // Entries touched by the current query, in order of first touch
+	private int numTouched = 0;
+
+
+	/**
+	 * @param minDocumentId smallest document ID that will be accumulated
+	 * @param numDocumentIds number of document IDs from the smallest to the largest
+	 */
+	public ScoreAccumulator(int minDocumentId, int numDocumentIds) {
+		this.minDocumentId = minDocumentId;
+		this.scores = new double[numDocumentIds];
+		this.generations = new int[numDocumentIds];
+		this.touchedIndexes = new int[numDocumentIds];
+		reset();
+	}
+
+
+	/**
+	 * Forget the scores of the previous query
+	 */
+	public void reset() {
+		generation++;
+		if (generation == 0) { // Wrapped around, stale stamps could look current
+			Arrays.fill(generations, 0);
+			generation = 1;
+		}
+		numTouched = 0;
+	}
+
+
+	/**
+	 * Add a partial score to a document's score
+	 * @param documentId
+	 * @param partialScore
+	 */
+	public void add(int documentId, double partialScore) {
+		int index = documentId - minDocumentId;
+		if (generations[index] != generation) {
+			generations[index] = generation;
+			scores[index] = partialScore;
+			touchedIndexes[numTouched++] = index;
+		}
+		else {
+			scores[index] = partialScore + scores[index];
+		}
+	}
+
+
+	/**
+	 * Whether a document already has a score for the current query
+	 * @param documentId
+	 * @return
+	 */
+	public boolean contains(int documentId) {
+		return generations[documentId - minDocumentId] == generation;
+	}
+
+
+	/**
+	 * Get the number of documents touched by the current query
+	 * @return
+	 */
+	public int size() {
+		return numTouched;
+	}
+
+
+	/**
+	 * Get the document ID of the i-th document touched
+	 * @param i
+	 * @return
+	 */
+	public int getDocumentId(int i) {
+		return minDocumentId + touchedIndexes[i];
+	}
+
+
+	/**
+	 * Get the score of the i-th document touched
+	 * @param i
+	 * @return
+	 */
+	public double getScore(int i) {
+		return scores[touchedIndexes[i]];
+	}
+}
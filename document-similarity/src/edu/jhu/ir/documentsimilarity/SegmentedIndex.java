@@ -0,0 +1,246 @@
+package edu.jhu.ir.documentsimilarity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.ir.documentsimilarity.IRUtil.InvertedFileRecord;
+
+/**
+ * This class is a read-only view of an index made of several index segments, as maintained by IndexWriter
+ * Each index segment is a complete index over its own documents, the segments are held in document order
+ * A term's document frequency is the sum over all segments, and its postings list is the concatenation
+ * 		of the segments' postings lists in segment order
+ *
+ * A view is a snapshot of the live segments at the time it was taken, later additions and merges
+ * 		do not change it, and its generation tells which snapshot it is
+ *
+ * search ranks documents across all segments by cosine similarity with collection-wide statistics
+ * Implementation details:
+ * 	The norms stored in each segment use the IDFs of that segment alone, so the view computes its own
+ * 		document norms with IDFs from the document frequencies summed over all segments
+ * 		They are computed the first time the view is searched, in one pass over the postings of every segment
+ * 	Each document belongs to one segment, whose terms are in the same order as in a single index,
+ * 		so the norms are identical to those of a single index of the same documents
+ * 	Queries are scored term at a time, like exhaustive evaluation in DocumentSimilarity, so the rankings
+ * 		and scores are identical to those of a single index
+ * A view can be searched from several threads at once
+ *
+ * @author Miranda Myers
+ *
+ */
+public class SegmentedIndex {
+	private final int STEM_LENGTH = 5;  // Query terms are truncated to this many characters against stemmed segments
+	private final List<InvertedFileAccessor> segments;  // Index segments, in document order
+	private final long generation;  // Generation of the index writer when this view was taken
+	private int minDocumentId;  // Smallest document ID of all segments
+	private double[] documentNorms;  // Collection-wide TF-IDF vector length of each document ID from minDocumentId, computed by the first search
+
+
+	public SegmentedIndex(List<InvertedFileAccessor> segments, long generation) {
+		this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+		this.generation = generation;
+	}
+
+
+	/**
+	 * Get the index segments, in document order
+	 * @return
+	 */
+	public List<InvertedFileAccessor> getSegments() {
+		return segments;
+	}
+
+
+	/**
+	 * Get the generation of the index writer when this view was taken
+	 * The generation changes whenever segments are added or merged
+	 * @return
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+
+	/**
+	 * Get the number of documents in all segments
+	 * @return
+	 */
+	public long getNumDocuments() {
+		long numDocuments = 0;
+		for (InvertedFileAccessor segment : segments) {
+			numDocuments += segment.getNumDocuments();
+		}
+		return numDocuments;
+	}
+
+
+	/**
+	 * Get the number of documents in all segments that contain the given term
+	 * @param token
+	 * @return
+	 */
+	public int getDocumentFrequency(String token) {
+		int documentFrequency = 0;
+		for (InvertedFileAccessor segment : segments) {
+			Dictionary dictionary = segment.getDictionary();
+			int termId = dictionary.getTermId(token);
+			if (termId >= 0) {
+				documentFrequency += dictionary.getDocumentFrequency(termId);
+			}
+		}
+		return documentFrequency;
+	}
+
+
+	/**
+	 * Given a token, access the corresponding records for that token in every segment
+	 * The records are returned in segment order, so they stay in document order
+	 * @param token
+	 * @return
+	 * @throws IOException
+	 */
+	public List<InvertedFileRecord> readInvertedIndex(String token) throws IOException {
+		List<InvertedFileRecord> invertedFileRecordList = new ArrayList<>();
+		for (InvertedFileAccessor segment : segments) {
+			invertedFileRecordList.addAll(segment.readInvertedIndex(token));
+		}
+		return invertedFileRecordList;
+	}
+
+
+	/**
+	 * Rank the documents of all segments for a query text by cosine similarity
+	 * The query is tokenized like the queries of DocumentSimilarity, and truncated when the segments are stemmed
+	 * @param queryText
+	 * @param numRanked number of ranked documents returned at most
+	 * @return map of document ID to score of the top ranked documents, in ranked order
+	 * @throws IOException
+	 */
+	public Map<Integer, Double> search(String queryText, int numRanked) throws IOException {
+		boolean useStemming = !segments.isEmpty() && segments.get(0).getUseStemming();
+		Map<String, Integer> bagOfWords = new HashMap<>();
+		for (String token : IRUtil.tokenize(queryText)) {
+			if (useStemming && token.length() > STEM_LENGTH) {
+				token = token.substring(0, STEM_LENGTH);
+			}
+			Integer count = bagOfWords.get(token);
+			bagOfWords.put(token, count == null ? 1 : count + 1);
+		}
+		return search(bagOfWords, numRanked);
+	}
+
+
+	/**
+	 * Rank the documents of all segments for a bag of words by cosine similarity, using TF-IDF weights
+	 * 		with IDFs over the whole collection
+	 * Implementation details:
+	 * 	For each query term, add the query tf-idf times the document tf-idf of every posting, from every
+	 * 		segment, into an accumulator of dot products
+	 * 	Divide each dot product by the query and document vector lengths, and select the top documents
+	 * @param bagOfWords term to count
+	 * @param numRanked number of ranked documents returned at most
+	 * @return map of document ID to score of the top ranked documents, in ranked order
+	 * @throws IOException
+	 */
+	public Map<Integer, Double> search(Map<String, Integer> bagOfWords, int numRanked) throws IOException {
+		double[] norms = getDocumentNorms();
+		long numDocuments = getNumDocuments();
+
+		double queryVectorLength = 0;
+		for (Map.Entry<String, Integer> entry : bagOfWords.entrySet()) {
+			double tfIdf = entry.getValue() * IRUtil.getIdf(numDocuments, getDocumentFrequency(entry.getKey()));
+			queryVectorLength += tfIdf * tfIdf;
+		}
+		queryVectorLength = Math.sqrt(queryVectorLength);
+
+		ScoreAccumulator scoreAccumulator = new ScoreAccumulator(minDocumentId, norms.length);
+		int[] documentIds = new int[1024];
+		int[] termFrequencies = new int[1024];
+		for (Map.Entry<String, Integer> entry : bagOfWords.entrySet()) {
+			double idf = IRUtil.getIdf(numDocuments, getDocumentFrequency(entry.getKey()));
+			double queryTfIdf = entry.getValue() * idf;
+			for (InvertedFileAccessor segment : segments) {
+				int termId = segment.getDictionary().getTermId(entry.getKey());
+				if (termId < 0) {
+					continue;
+				}
+				int documentFrequency = segment.getDictionary().getDocumentFrequency(termId);
+				if (documentFrequency > documentIds.length) {
+					documentIds = new int[documentFrequency];
+					termFrequencies = new int[documentFrequency];
+				}
+				int numPostings = segment.readPostings(termId, documentIds, termFrequencies);
+				for (int i = 0; i < numPostings; i++) {
+					scoreAccumulator.add(documentIds[i], queryTfIdf * (termFrequencies[i] * idf));
+				}
+			}
+		}
+
+		TopKHeap topDocuments = new TopKHeap(numRanked);
+		for (int i = 0; i < scoreAccumulator.size(); i++) {
+			int documentId = scoreAccumulator.getDocumentId(i);
+			double documentVectorLength = norms[documentId - minDocumentId];
+			double denominator = documentVectorLength * queryVectorLength;
+			topDocuments.offer(documentId, denominator == 0 ? 0 : scoreAccumulator.getScore(i) / denominator);
+		}
+		topDocuments.sort();
+		Map<Integer, Double> rankedScores = new LinkedHashMap<>();
+		for (int rank = 0; rank < topDocuments.size(); rank++) {
+			rankedScores.put(topDocuments.getId(rank), topDocuments.getScore(rank));
+		}
+		return rankedScores;
+	}
+
+
+	/**
+	 * Get the collection-wide document norms, computing them the first time
+	 * The squared weights of each term are added in the term order of each segment's dictionary
+	 * @return norm of each document ID from minDocumentId
+	 */
+	private synchronized double[] getDocumentNorms() {
+		if (documentNorms != null) {
+			return documentNorms;
+		}
+
+		long numDocuments = getNumDocuments();
+		int maxDocumentId = Integer.MIN_VALUE;
+		minDocumentId = Integer.MAX_VALUE;
+		for (InvertedFileAccessor segment : segments) {
+			if (segment.getNumDocuments() > 0) {
+				minDocumentId = Math.min(minDocumentId, segment.getMinDocumentId());
+				maxDocumentId = Math.max(maxDocumentId, segment.getMinDocumentId() + segment.getNumDocumentIds() - 1);
+			}
+		}
+		double[] squaredWeights = new double[numDocuments == 0 ? 0 : maxDocumentId - minDocumentId + 1];
+
+		int[] documentIds = new int[1024];
+		int[] termFrequencies = new int[1024];
+		for (InvertedFileAccessor segment : segments) {
+			Dictionary dictionary = segment.getDictionary();
+			for (int termId = 0; termId < dictionary.size(); termId++) {
+				int documentFrequency = dictionary.getDocumentFrequency(termId);
+				double idf = IRUtil.getIdf(numDocuments, getDocumentFrequency(dictionary.getTerm(termId)));
+				if (documentFrequency > documentIds.length) {
+					documentIds = new int[documentFrequency];
+					termFrequencies = new int[documentFrequency];
+				}
+				segment.decodePostings(termId, documentIds, termFrequencies);
+				for (int i = 0; i < documentFrequency; i++) {
+					double tfIdf = termFrequencies[i] * idf;
+					squaredWeights[documentIds[i] - minDocumentId] += tfIdf * tfIdf;
+				}
+			}
+		}
+
+		for (int i = 0; i < squaredWeights.length; i++) {
+			squaredWeights[i] = Math.sqrt(squaredWeights[i]);
+		}
+		documentNorms = squaredWeights;
+		return documentNorms;
+	}
+}
@@ -0,0 +1,206 @@
+package edu.jhu.ir.documentsimilarity;
+
+/**
+ * This class selects the k best of a stream of (ID, score) pairs without sorting them all
+ * The pairs are kept in a bounded min-heap of primitive arrays, so offering a pair allocates nothing
+ * 		and selecting the top k of n pairs takes O(n log k)
+ * A higher score is better, equal scores are broken by the lower ID, so the selection is deterministic
+ * 		whatever the order in which pairs are offered
+ * Implementation details:
+ * 	The root of the heap is the worst pair kept, the threshold a new pair must beat once the heap is full
+ * 	sort heap sorts the pairs in place into rank order, best first
+ *
+ * Usage:
+ * 	TopKHeap heap = new TopKHeap(k);
+ * 	for each pair: heap.offer(id, score);
+ * 	heap.sort();
+ * 	for (int rank = 0; rank < heap.size(); rank++) {
+ * 		use heap.getId(rank) and heap.getScore(rank)
+ * 	}
+ *
+ * @author Miranda Myers
+ *
+ */
+public class TopKHeap {
+	private int capacity; // Number of pairs to select, k
+	private int[] ids;
+	private double[] scores;
+	private int size = 0; // Number of pairs in the heap
+	private boolean sorted = false; // Whether the pairs have been sorted into rank order
+
+
+	/**
+	 * @param capacity number of pairs to select
+	 */
+	public TopKHeap(int capacity) {
+		this.capacity = capacity;
+		this.ids = new int[capacity];
+		this.scores = new double[capacity];
+	}
+
+
+	/**
+	 * Offer a pair to the heap
+	 * @param id
+	 * @param score
+	 * @return whether the pair is kept, it may still be pushed out by later pairs
+	 */
+	public boolean offer(int id, double score) {
+		if (sorted) {
+			throw new IllegalStateException("Heap was sorted, clear it before offering new pairs");
+		}
+		if (size < capacity) {
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		if (capacity == 0 || !isBetter(id, score, ids[0], scores[0])) {
+			return false;
+		}
+		ids[0] = id;
+		scores[0] = score;
+		siftDown(0, size);
+		return true;
+	}
+
+
+	/**
+	 * Whether the heap holds k pairs, so new pairs must beat the threshold to be kept
+	 * @return
+	 */
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+
+	/**
+	 * Get the score of the worst pair kept
+	 * Once the heap is full, a pair scoring less than this, or the same with a higher ID, is not kept
+	 * @return
+	 */
+	public double getThreshold() {
+		return scores[0];
+	}
+
+
+	/**
+	 * Get the number of pairs kept
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Sort the pairs kept into rank order, best first
+	 * No more pairs can be offered until the heap is cleared
+	 */
+	public void sort() {
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		sorted = true;
+	}
+
+
+	/**
+	 * Get the ID at the given rank, once sorted
+	 * @param rank
+	 * @return
+	 */
+	public int getId(int rank) {
+		return ids[rank];
+	}
+
+
+	/**
+	 * Get the score at the given rank, once sorted
+	 * @param rank
+	 * @return
+	 */
+	public double getScore(int rank) {
+		return scores[rank];
+	}
+
+
+	/**
+	 * Empty the heap so it can select from new pairs
+	 */
+	public void clear() {
+		size = 0;
+		sorted = false;
+	}
+
+
+	/**
+	 * Whether the first pair ranks above the second
+	 * @param id1
+	 * @param score1
+	 * @param id2
+	 * @param score2
+	 * @return
+	 */
+	private static boolean isBetter(int id1, double score1, int id2, double score2) {
+		int comparison = Double.compare(score1, score2);
+		return comparison != 0 ? comparison > 0 : id1 < id2;
+	}
+
+
+	/**
+	 * Move the pair at the given position up until its parent is worse
+	 * @param position
+	 */
+	private void siftUp(int position) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!isBetter(ids[parent], scores[parent], ids[position], scores[position])) {
+				break;
+			}
+			swap(parent, position);
+			position = parent;
+		}
+	}
+
+
+	/**
+	 * Move the pair at the given position down until its children are better
+	 * @param position
+	 * @param end number of positions that are part of the heap
+	 */
+	private void siftDown(int position, int end) {
+		while (true) {
+			int worst = position;
+			int left = 2 * position + 1;
+			int right = left + 1;
+			if (left < end && isBetter(ids[worst], scores[worst], ids[left], scores[left])) {
+				worst = left;
+			}
+			if (right < end && isBetter(ids[worst], scores[worst], ids[right], scores[right])) {
+				worst = right;
+			}
+			if (worst == position) {
+				return;
+			}
+			swap(position, worst);
+			position = worst;
+		}
+	}
+
+
+	/**
+	 * Swap the pairs at two positions
+	 * @param i
+	 * @param j
+	 */
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
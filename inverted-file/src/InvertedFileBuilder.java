@@ -1,60 +1,143 @@
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
-import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class builds an inverted file that contains a postings list for each dictionary term
  * The inverted file is a binary file
- * It also writes the dictionary to disk, which is in the form of a serialized object
+ * It is written as a sequence of segment files, each capped at a maximum size, and every postings
+ * 		list is addressed by its segment number and a 64-bit offset within that segment
+ * It also writes the dictionary to disk in the compact Dictionary format, which is mapped into memory
+ * 		when it is read back
  * For each word in the dictionary, a file offset to the corresponding on-disk posting list is stored
  *
- * This program follows the memory-based inversion algorithm (Algorithm A)
+ * By default this program follows the memory-based inversion algorithm (Algorithm A)
  * 		It writes out the postings after all documents have been read
+ * When a memory budget is given it follows single-pass in-memory inversion (SPIMI) instead
+ * 		Postings are buffered until the budget is reached, then flushed to disk as a sorted run
+ * 		After all documents have been read the runs are k-way merged into the inverted file
+ * When several threads are given the input is split at document boundaries into one shard per thread
+ * 		Each thread builds sorted runs for its shard, and all runs are merged in document order
  * @author Miranda Myers
  *
  */
 public class InvertedFileBuilder {
 	private final int INT_SIZE = 4;  // Number of bytes per int written to the inverted file
-	private final String INVERTED_FILENAME = "inverted-file.bin";
-	private final String DICTIONARY_FILENAME = "dictionary.ser";
+	private final long CHUNK_SIZE = 1L << 30;  // Number of bytes of the inverted file covered by each memory mapping
+	private final String INVERTED_FILENAME_PREFIX = "inverted-file-";
+	private final String INVERTED_FILENAME_SUFFIX = ".bin";
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 1L << 30;  // Default cap on the size of each inverted file segment
+	private final String DICTIONARY_FILENAME = "dictionary.bin";
+	private final String RUN_FILENAME_PREFIX = "inverted-file-run-";
+	private final int MAX_MERGE_FAN_IN = 64;  // Runs merged at once, bounds the open files and merge heap of the run merge
+	private final int ARRAY_HEADER_SIZE = 16;  // Heap bytes taken by an array object besides its elements
 	private String inputFileName; // Name of input file for which to create inverted file
-	private int numDocuments = 0; // Number of paragraphs processed
+	private long numDocuments = 0; // Number of paragraphs processed
 	private int vocabularySize = 0; // Number of unique words observed
-	private int collectionSize = 0; // Total number of words encountered
-	private Map<String, Term> lexicon = new HashMap<>();  // Lexicon that will hold all terms
-	private Map<String, List<InvertedFileRecord>> invertedFileRecords = new TreeMap<>();	// Map containing each inverted file record sorted by term, then docId
+	private long collectionSize = 0; // Total number of words encountered
+	private long memoryBudget; // Number of bytes of postings to buffer before flushing a run, 0 to keep all postings in memory
+	private int numThreads; // Number of threads that build the index, each over its own shard of the input
+	private List<String> runFileNames = new ArrayList<>(); // Sorted partial runs written to disk by all shards, in document order
+	private long maxSegmentSize; // Number of bytes after which the inverted file continues in a new segment
+	private int numSegments = 0; // Number of inverted file segments written
+	private DataOutputStream segmentOutput; // Segment of the inverted file currently being written
+	private long segmentFilePointer; // Offset in the current segment that the next postings are written to
+	private MappedByteBuffer[][] invertedFileChunks; // Memory mappings of each inverted file segment, null until first read
+	private Map<String, Term> lexicon = new HashMap<>();  // Lexicon that will hold all terms while the index is built
+	private Dictionary dictionary; // Memory-mapped dictionary read back from disk
+	private IndexShard bufferedShard; // Shard holding all postings in memory when no runs were written
 
 
 	public InvertedFileBuilder(String inputFileName) {
+		this(inputFileName, 0, DEFAULT_MAX_SEGMENT_SIZE, 1);
+	}
+
+
+	/**
+	 * Create a builder that holds at most memoryBudget bytes of postings in memory at once
+	 * A budget of 0 keeps all postings in memory until the inverted file is written
+	 * The inverted file continues in a new segment whenever the current one would grow past maxSegmentSize bytes
+	 * @param inputFileName
+	 * @param memoryBudget
+	 * @param maxSegmentSize
+	 */
+	public InvertedFileBuilder(String inputFileName, long memoryBudget, long maxSegmentSize) {
+		this(inputFileName, memoryBudget, maxSegmentSize, 1);
+	}
+
+
+	/**
+	 * Create a builder that reads the input with numThreads threads
+	 * The input is split at document boundaries into numThreads shards of about equal size,
+	 * 		and the memory budget is shared evenly between the threads
+	 * @param inputFileName
+	 * @param memoryBudget
+	 * @param maxSegmentSize
+	 * @param numThreads
+	 */
+	public InvertedFileBuilder(String inputFileName, long memoryBudget, long maxSegmentSize, int numThreads) {
 		this.inputFileName = inputFileName;
+		this.memoryBudget = memoryBudget;
+		this.maxSegmentSize = maxSegmentSize;
+		this.numThreads = numThreads;
 	}
 
 
 	/**
 	 * Class representing a term that is used to build the lexicon and list of terms
 	 */
-	private static class Term implements Serializable {
-		private static final long serialVersionUID = -1947264671039701464L;
+	static class Term {
 		private String text;	//Required in memory
-		private int invertedFileLocation;	//Required in memory
+		private int invertedFileSegment;	// Inverted file segment holding the postings	//Required in memory
+		private long invertedFileLocation;	// Offset of the postings within their segment	//Required in memory
+		private int invertedFileLength;	// Number of bytes of postings	//Required in memory
 
 		private int documentFrequency = 0; // Number of documents which the word occurs in	// Useful in memory
+		private long collectionFrequency = 0; // Number of times the word occurs in the collection
+
+		public int getDocumentFrequency() {
+			return documentFrequency;
+		}
+
+		public long getCollectionFrequency() {
+			return collectionFrequency;
+		}
+
+		public int getInvertedFileSegment() {
+			return invertedFileSegment;
+		}
+
+		public long getInvertedFileLocation() {
+			return invertedFileLocation;
+		}
+
+		public int getInvertedFileLength() {
+			return invertedFileLength;
+		}
 
 		@Override
 		public String toString() {
@@ -86,145 +169,752 @@ public class InvertedFileBuilder {
 
 
 	/**
-	 * Tokenize a given string using the following approaches
-	 * Split on spaces
-	 * Lower case only if not all upper case
-	 * Remove leading and trailing punctuation from each token
-	 *
-	 * @param line
-	 * @return list of tokens
+	 * Read the input file and build the corresponding lexicon
+	 * The input file is split at document boundaries into one shard per thread
+	 * With a single thread the whole file is one shard, built in the calling thread
+	 * With several threads each shard is built in its own thread over a disjoint range of documents
+	 * 		and written out as sorted runs, which createInvertedIndex merges into the inverted file
+	 * The shard lexicons are combined by summing document and collection frequencies
+	 * If any shard fails, the other shards are cancelled, the runs of every shard are deleted and the
+	 * 		failure of the shard is thrown, so the build fails the same way whatever the number of threads
+	 * @throws IOException
 	 */
-	private List<String> tokenize(String line) {
-		String[] tokens = line.split("\\s+"); // Split string on whitespace
-		List<String> normalizedTokens = new ArrayList<>();
-		for (String token : tokens) {
-			String normalizedToken = token.toLowerCase();
-
-			//Remove external punctuation
-			normalizedToken = normalizedToken.replaceFirst("^[^a-zA-Z]+", "");
-			normalizedToken = normalizedToken.replaceAll("[^a-zA-Z]+$", "");
+	public void buildLexicon() throws IOException {
+		long[] shardBoundaries = findShardBoundaries(numThreads);
+		List<IndexShard> shards = new ArrayList<>();
+		for (int i = 0; i < numThreads; i++) {
+			shards.add(new IndexShard(i, shardBoundaries[i], shardBoundaries[i + 1]));
+		}
 
-			if (!normalizedToken.equals("")) {
-				normalizedTokens.add(normalizedToken);
+		boolean finished = false;
+		try {
+			if (numThreads == 1) {
+				shards.get(0).call();
+			}
+			else {
+				buildShards(shards);
+			}
+			finished = true;
+		}
+		finally {
+			if (!finished) {
+				for (IndexShard shard : shards) {
+					shard.deleteRuns();
+				}
 			}
 		}
 
-		return normalizedTokens;
+		for (IndexShard shard : shards) {
+			addShard(shard);
+		}
+		vocabularySize = lexicon.keySet().size();
 	}
 
 
 	/**
-	 * Read the input file and build the corresponding lexicon
+	 * Build every shard in a thread of its own and wait for all of them
+	 * Once a shard fails, the shards still running are cancelled and waited for, then the shard's failure
+	 * 		is thrown as it was thrown in the shard's thread
+	 * @param shards
+	 * @throws IOException
 	 */
-	public void buildLexicon() {
-		FileReader fileReader = null;
-		BufferedReader bufferedReader = null;
+	private static void buildShards(List<IndexShard> shards) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+		List<Future<Void>> futures = new ArrayList<>();
 		try {
-			fileReader = new FileReader(inputFileName);
-			bufferedReader = new BufferedReader(fileReader);
+			for (IndexShard shard : shards) {
+				futures.add(executor.submit(shard));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading the input file");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		finally {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			executor.shutdownNow();
+			try {
+				//Let cancelled shards stop before their runs are deleted
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-			buildLexicon(bufferedReader);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (bufferedReader != null) {
-					bufferedReader.close();
+	/**
+	 * Split the input file into numShards byte ranges that each start at a document boundary
+	 * Implementation details:
+	 * 	Divide the file into ranges of equal size
+	 * 	Move the start of every range but the first forward to the next line that starts a document
+	 * 	Ranges may be empty when there are fewer documents than shards
+	 * @param numShards
+	 * @return numShards + 1 offsets, shard i covers the bytes from entry i up to entry i + 1
+	 * @throws IOException
+	 */
+	private long[] findShardBoundaries(int numShards) throws IOException {
+		long[] shardBoundaries = new long[numShards + 1];
+		RandomAccessFile inputFile = new RandomAccessFile(inputFileName, "r");
+		try {
+			long fileSize = inputFile.length();
+			shardBoundaries[numShards] = fileSize;
+			for (int i = 1; i < numShards; i++) {
+				long position = Math.max(shardBoundaries[i - 1], fileSize / numShards * i);
+				shardBoundaries[i] = findDocumentStart(inputFile, position);
+			}
+		}
+		finally {
+			inputFile.close();
+		}
+		return shardBoundaries;
+	}
+
+
+	/**
+	 * Find the offset of the first line at or after position that starts a document
+	 * Lines end at \n, \r or \r\n like in DocumentSource, so a document start is <P ID= after either byte
+	 * @param inputFile
+	 * @param position
+	 * @return offset of the document start, or the file size if there is none
+	 * @throws IOException
+	 */
+	private static long findDocumentStart(RandomAccessFile inputFile, long position) throws IOException {
+		if (position == 0) {
+			return 0;
+		}
+
+		byte[] pattern = "\n<P ID=".getBytes(StandardCharsets.US_ASCII);
+		byte[] buffer = new byte[64 * 1024];
+		long bufferStart = position - 1;  // Include the byte before position, a document may start right at position
+		int matched = 0;
+		int bytesRead;
+
+		inputFile.seek(bufferStart);
+		while ((bytesRead = inputFile.read(buffer)) > 0) {
+			for (int i = 0; i < bytesRead; i++) {
+				boolean lineEnd = buffer[i] == '\n' || buffer[i] == '\r';
+				if (matched == 0 ? lineEnd : buffer[i] == pattern[matched]) {
+					matched++;
 				}
-				if (fileReader != null) {
-					fileReader.close();
+				else {
+					matched = lineEnd ? 1 : 0;
+				}
+
+				if (matched == pattern.length) {
+					return bufferStart + i - pattern.length + 2;  // Skip the line end
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
+			bufferStart += bytesRead;
 		}
+		return inputFile.length();
 	}
 
 
 	/**
-	 * Build lexicon helper
-	 * Build the lexicon
-	 * Calculate collection size and total number of documents
-	 * Calculate document frequency for each term
-	 * Build a TreeMap containing inverted file records sorted by term then by docID
-	 * @param bufferedReader
-	 * @throws IOException
+	 * Add the lexicon, postings and runs built by a shard to the index
+	 * Shards must be added in document order, so that their runs are merged in document order
+	 * @param shard
+	 */
+	private void addShard(IndexShard shard) {
+		numDocuments += shard.numDocuments;
+		collectionSize += shard.collectionSize;
+		runFileNames.addAll(shard.runFileNames);
+		if (shard.bufferedPostingsSize > 0) {
+			bufferedShard = shard;  // Only a single shard keeps its postings in memory
+		}
+
+		for (Term shardTerm : shard.terms) {
+			Term term = lexicon.get(shardTerm.text);
+			if (term == null) {
+				lexicon.put(shardTerm.text, shardTerm);
+			}
+			else {
+				term.documentFrequency += shardTerm.documentFrequency;
+				term.collectionFrequency += shardTerm.collectionFrequency;
+			}
+		}
+	}
+
+
+	/**
+	 * Class building the lexicon and postings for a range of documents of the input file
+	 * When the index is built by a single shard, it follows Algorithm A unless the memory budget
+	 * 		is reached, in which case it follows SPIMI
+	 * When there are several shards, each gets an equal part of the memory budget and always
+	 * 		writes its postings out as runs, since they have to be merged with those of the other shards
+	 *
+	 * Terms are numbered in the order they are first seen, and everything per term is kept in arrays
+	 * 		indexed by that term ID, so building allocates per term rather than per token or posting
+	 * 	The postings of each term are buffered in a growable int array of (document ID, count) pairs
+	 * 	The term counts of the current document are kept in a table indexed by term ID, together with the list
+	 * 		of term IDs seen in the document, which is used to clear the table for the next document
+	 * 	Tokens are looked up straight from the tokenizer's buffer in an open addressing hash table of term IDs,
+	 * 		so a String is only created for the first occurrence of each term
 	 */
-	private void buildLexicon(BufferedReader bufferedReader) throws IOException {
-		String currentLine;
+	private class IndexShard implements Callable<Void> {
+		private int shardNumber;
+		private long start; // Offset of the first byte of the shard in the input file
+		private long end; // Offset just past the last byte of the shard
+		private long memoryBudget; // Number of bytes of postings to buffer before flushing a run, 0 to keep all postings in memory
+		private boolean writeFinalRun; // Whether postings still buffered at the end are written to a run
+		private long numDocuments = 0; // Number of paragraphs processed
+		private long collectionSize = 0; // Total number of words encountered
+		private long bufferedPostingsSize = 0; // Number of bytes allocated for the postings currently buffered
+		private List<String> runFileNames = new ArrayList<>(); // Sorted partial runs written to disk, in document order
+		private Tokenizer tokenizer = new Tokenizer();
+		private int[] termIdTable = new int[2048]; // Hash table holding term ID + 1 of each term in the shard, 0 for empty slots
+		private List<Term> terms = new ArrayList<>(); // Lexicon of the terms in the shard, indexed by term ID
+		private int[][] bufferedPostings = new int[1024][]; // Buffered postings of each term ID, null when there are none
+		private int[] numBufferedPostings = new int[1024]; // Number of postings buffered for each term ID
+		private int[] documentTermCounts = new int[1024]; // Count of each term ID in the current document, 0 between documents
+		private int[] documentTermIds = new int[1024]; // Term IDs seen in the current document
+		private int numDocumentTerms = 0; // Number of distinct terms seen in the current document
+
+		public IndexShard(int shardNumber, long start, long end) {
+			this.shardNumber = shardNumber;
+			this.start = start;
+			this.end = end;
+			this.writeFinalRun = numThreads > 1;
+			this.memoryBudget = InvertedFileBuilder.this.memoryBudget;
+			if (memoryBudget > 0 && numThreads > 1) {
+				this.memoryBudget = Math.max(1, memoryBudget / numThreads);
+			}
+		}
+
+
+		/**
+		 * Read the documents of the shard and build its lexicon
+		 * Stops between documents when the thread is interrupted, such as when another shard failed
+		 */
+		@Override
+		public Void call() throws IOException {
+			DocumentSource documentSource = new DocumentSource(inputFileName, start, end);
+			try {
+				buildLexicon(documentSource);
+			}
+			finally {
+				documentSource.close();
+			}
+			return null;
+		}
+
 
-		while ((currentLine = bufferedReader.readLine()) != null) {
-			if (currentLine.startsWith("<P ID=")) { // The start of a new document (paragraph)
+		/**
+		 * Build lexicon helper
+		 * Build the lexicon
+		 * Calculate collection size and total number of documents
+		 * Calculate document frequency and collection frequency for each term
+		 * Buffer the postings of each term in document order
+		 * If a memory budget is set, flush the buffered postings to a sorted run whenever they grow past the budget
+		 * @param documentSource
+		 * @throws IOException
+		 */
+		private void buildLexicon(DocumentSource documentSource) throws IOException {
+			while (documentSource.nextDocument()) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Shard building was cancelled");
+				}
 				numDocuments++;
-				int documentId = Integer.parseInt(currentLine.replace("<P ID=", "").replace(">", ""));
+				int documentId = documentSource.getDocumentId();
 
-				currentLine = bufferedReader.readLine();
-				Map<String, Integer> tokensInDocument = new HashMap<>();
+				tokenizer.reset(documentSource.getBuffer(), documentSource.getTextStart(), documentSource.getTextEnd());
+				while (tokenizer.next()) {
+					collectionSize++;
+					countToken(tokenizer.getBuffer(), tokenizer.getLength());
+				}
 
-				while (currentLine != null && !currentLine.startsWith("</P>")) {
-					List<String> tokens = tokenize(currentLine);
+				addDocumentPostings(documentId);
 
-					for (String token : tokens) {
-						collectionSize++;
+				if (memoryBudget > 0 && bufferedPostingsSize >= memoryBudget) {
+					flushRun();
+				}
+			}
 
-						if (tokensInDocument.containsKey(token)) {
-							int count = tokensInDocument.get(token).intValue();
-							tokensInDocument.put(token, ++count);
-						}
-						else {
-							tokensInDocument.put(token, 1);
-						}
+			if ((writeFinalRun || !runFileNames.isEmpty()) && bufferedPostingsSize > 0) {
+				flushRun();
+			}
+		}
+
+
+		/**
+		 * Count an occurrence of a token in the current document, assigning it a term ID if it is new
+		 * @param token buffer holding the characters of the token
+		 * @param length number of characters of the token
+		 */
+		private void countToken(char[] token, int length) {
+			int hash = 0;
+			for (int i = 0; i < length; i++) {
+				hash = 31 * hash + token[i]; // Same hash as String.hashCode, which the term texts cache
+			}
+
+			int mask = termIdTable.length - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			int termId;
+			while (true) {
+				termId = termIdTable[slot] - 1;
+				if (termId < 0) {
+					termId = terms.size();
+					Term term = new Term();
+					term.text = new String(token, 0, length);
+					terms.add(term);
+					termIdTable[slot] = termId + 1;
+					ensureTermCapacity(terms.size());
+					break;
+				}
+				String text = terms.get(termId).text;
+				if (text.hashCode() == hash && textEquals(text, token, length)) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if (documentTermCounts[termId]++ == 0) {
+				documentTermIds[numDocumentTerms++] = termId;
+			}
+		}
+
+
+		/**
+		 * Add a posting to every term seen in the current document, update the term statistics,
+		 * 		and clear the term counts for the next document
+		 * @param documentId
+		 */
+		private void addDocumentPostings(int documentId) {
+			for (int i = 0; i < numDocumentTerms; i++) {
+				int termId = documentTermIds[i];
+				int count = documentTermCounts[termId];
+				documentTermCounts[termId] = 0;
+
+				Term term = terms.get(termId);
+				term.documentFrequency++; // Increment number of documents each token occurs in
+				term.collectionFrequency += count;
+
+				int[] postings = bufferedPostings[termId];
+				int position = 2 * numBufferedPostings[termId];
+				if (postings == null) {
+					postings = new int[2];
+					bufferedPostings[termId] = postings;
+					bufferedPostingsSize += ARRAY_HEADER_SIZE + 4 * postings.length;
+				}
+				else if (position == postings.length) {
+					postings = Arrays.copyOf(postings, 2 * postings.length);
+					bufferedPostings[termId] = postings;
+					bufferedPostingsSize += 4 * (postings.length / 2);
+				}
+				postings[position] = documentId;
+				postings[position + 1] = count;
+				numBufferedPostings[termId]++;
+			}
+			numDocumentTerms = 0;
+		}
+
+
+		/**
+		 * Whether a term text has the same characters as a token
+		 * @param text
+		 * @param token
+		 * @param length
+		 * @return
+		 */
+		private boolean textEquals(String text, char[] token, int length) {
+			if (text.length() != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (text.charAt(i) != token[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+
+		/**
+		 * Grow the arrays indexed by term ID to hold at least numTerms terms
+		 * The term ID hash table is kept at most half full
+		 * @param numTerms
+		 */
+		private void ensureTermCapacity(int numTerms) {
+			if (2 * numTerms > termIdTable.length) {
+				termIdTable = new int[2 * termIdTable.length];
+				int mask = termIdTable.length - 1;
+				for (int termId = 0; termId < terms.size(); termId++) {
+					int hash = terms.get(termId).text.hashCode();
+					int slot = (hash ^ (hash >>> 16)) & mask;
+					while (termIdTable[slot] != 0) {
+						slot = (slot + 1) & mask;
 					}
+					termIdTable[slot] = termId + 1;
+				}
+			}
+
+			if (numTerms > bufferedPostings.length) {
+				int capacity = Math.max(numTerms, bufferedPostings.length * 2);
+				bufferedPostings = Arrays.copyOf(bufferedPostings, capacity);
+				numBufferedPostings = Arrays.copyOf(numBufferedPostings, capacity);
+				documentTermCounts = Arrays.copyOf(documentTermCounts, capacity);
+				documentTermIds = Arrays.copyOf(documentTermIds, capacity);
+			}
+		}
 
-					currentLine = bufferedReader.readLine();
+
+		/**
+		 * Get the IDs of the terms that have buffered postings, sorted by term
+		 * @return
+		 */
+		private List<Integer> getBufferedTermIds() {
+			List<Integer> bufferedTermIds = new ArrayList<>();
+			for (int termId = 0; termId < terms.size(); termId++) {
+				if (numBufferedPostings[termId] > 0) {
+					bufferedTermIds.add(termId);
+				}
+			}
+
+			Collections.sort(bufferedTermIds, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer termId1, Integer termId2) {
+					return terms.get(termId1).text.compareTo(terms.get(termId2).text);
 				}
+			});
+			return bufferedTermIds;
+		}
+
 
-				for (String token : tokensInDocument.keySet()) {
-					if (lexicon.containsKey(token)) {
-						lexicon.get(token).documentFrequency++; // Increment number of documents each token occurs in
+		/**
+		 * Write the buffered postings to a new run file and clear the buffer
+		 * Run file format: number of terms, then for each term in sorted order the term text,
+		 * 		the number of postings, and a (document ID, count) pair per posting
+		 * @throws IOException
+		 */
+		private void flushRun() throws IOException {
+			List<Integer> bufferedTermIds = getBufferedTermIds();
+			String runFileName = RUN_FILENAME_PREFIX + shardNumber + "-" + runFileNames.size() + ".tmp";
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFileName)));
+			runFileNames.add(runFileName);  // Listed before it is written, so a run cut short is still deleted
+			try {
+				output.writeInt(bufferedTermIds.size());
+				for (int termId : bufferedTermIds) {
+					int[] postings = bufferedPostings[termId];
+					output.writeUTF(terms.get(termId).text);
+					output.writeInt(numBufferedPostings[termId]);
+
+					for (int i = 0; i < 2 * numBufferedPostings[termId]; i++) {
+						output.writeInt(postings[i]);
 					}
-					else {
-						Term term = new Term();
-						term.text = token;
-						term.documentFrequency++;
-						lexicon.put(token, term);
+
+					bufferedPostings[termId] = null;
+					numBufferedPostings[termId] = 0;
+				}
+			}
+			finally {
+				output.close();
+			}
+
+			bufferedPostingsSize = 0;
+		}
+
+
+		/**
+		 * Delete the run files written by the shard, after the build failed
+		 */
+		private void deleteRuns() {
+			for (String runFileName : runFileNames) {
+				new File(runFileName).delete();
+			}
+			runFileNames.clear();
+		}
+	}
+
+
+	/**
+	 * Class representing an open run file positioned at the start of a term's postings
+	 * Runs are ordered by current term, then by run number so that postings for the same term
+	 * 		are merged in document order
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+		private DataInputStream input;
+		private int runNumber;
+		private int termsRemaining;
+		private String currentTerm;
+
+		public RunReader(String runFileName, int runNumber) throws IOException {
+			this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(runFileName)));
+			this.runNumber = runNumber;
+			this.termsRemaining = input.readInt();
+		}
+
+		/**
+		 * Read the next term in the run
+		 * @return false if the run is exhausted
+		 * @throws IOException
+		 */
+		public boolean nextTerm() throws IOException {
+			if (termsRemaining == 0) {
+				input.close();
+				return false;
+			}
+			termsRemaining--;
+			currentTerm = input.readUTF();
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			int comparison = currentTerm.compareTo(other.currentTerm);
+			return comparison != 0 ? comparison : Integer.compare(runNumber, other.runNumber);
+		}
+	}
+
+
+	/**
+	 * Merge the sorted runs into the inverted file
+	 * At most MAX_MERGE_FAN_IN runs are open at once, so the number of open files and the size of the
+	 * 		merge heap stay bounded whatever the number of runs
+	 * Implementation details:
+	 * 	While there are more than MAX_MERGE_FAN_IN runs, merge consecutive groups of MAX_MERGE_FAN_IN runs
+	 * 		into longer runs, in the same run format, deleting each group once it is merged
+	 * 		Groups are consecutive, so the runs stay in document order from one pass to the next
+	 * 	Then merge the remaining runs into the inverted file
+	 * 	All run files are deleted once the merge finishes or fails
+	 * @throws IOException
+	 */
+	private void mergeRuns() throws IOException {
+		List<String> mergedRunFileNames = new ArrayList<>(); // Runs written by the current pass
+		try {
+			int pass = 0;
+			while (runFileNames.size() > MAX_MERGE_FAN_IN) {
+				for (int start = 0; start < runFileNames.size(); start += MAX_MERGE_FAN_IN) {
+					List<String> group = runFileNames.subList(start, Math.min(start + MAX_MERGE_FAN_IN, runFileNames.size()));
+					String mergedRunFileName = RUN_FILENAME_PREFIX + "pass-" + pass + "-" + mergedRunFileNames.size() + ".tmp";
+					mergedRunFileNames.add(mergedRunFileName);  // Listed before it is written, so a run cut short is still deleted
+					mergeRunGroup(group, mergedRunFileName);
+					for (String runFileName : group) {
+						new File(runFileName).delete();
 					}
+				}
+				runFileNames = mergedRunFileNames;
+				mergedRunFileNames = new ArrayList<>();
+				pass++;
+			}
+
+			try {
+				startSegment();
+				mergeRunGroup(runFileNames, null);
+			}
+			finally {
+				finishSegments();
+			}
+		}
+		finally {
+			for (String runFileName : runFileNames) {
+				new File(runFileName).delete();
+			}
+			for (String runFileName : mergedRunFileNames) {
+				new File(runFileName).delete();
+			}
+			runFileNames = new ArrayList<>();
+		}
+	}
 
-					int count = tokensInDocument.get(token);
 
-					if (!invertedFileRecords.containsKey(token)) {
-						invertedFileRecords.put(token, new ArrayList<InvertedFileRecord>());
+	/**
+	 * K-way merge a group of sorted runs, either into a new run or into the inverted file
+	 * Implementation details:
+	 * 	Keep a priority queue holding one reader per run, ordered by the reader's current term
+	 * 	Repeatedly take the smallest term and copy its postings from every run that contains it,
+	 * 		lowest run first, so the merged postings list stays sorted by docID
+	 * 	A new run needs the number of postings of the term before them, so the readers holding the term
+	 * 		are taken off the queue together and their counts read first
+	 * 	Only one term header per run is held in memory, so the merge runs in constant heap
+	 * 	The number of terms of a new run is only known at the end, so it is written into the run's header last
+	 * @param groupRunFileNames runs to merge, in document order
+	 * @param mergedRunFileName run to write, or null to write the inverted file
+	 * @throws IOException
+	 */
+	private void mergeRunGroup(List<String> groupRunFileNames, String mergedRunFileName) throws IOException {
+		List<RunReader> openRunReaders = new ArrayList<>();
+		DataOutputStream output = segmentOutput;
+		boolean writeRun = mergedRunFileName != null;
+		int numTerms = 0;
+		try {
+			PriorityQueue<RunReader> runReaders = new PriorityQueue<>();
+			for (int i = 0; i < groupRunFileNames.size(); i++) {
+				RunReader runReader = new RunReader(groupRunFileNames.get(i), i);
+				openRunReaders.add(runReader);
+				if (runReader.nextTerm()) {
+					runReaders.add(runReader);
+				}
+			}
+			if (writeRun) {
+				output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRunFileName)));
+				output.writeInt(0);  // Number of terms, filled in once the run is written
+			}
+
+			List<RunReader> termReaders = new ArrayList<>(); // Readers positioned at the current term, lowest run first
+			int[] termNumPostings = new int[groupRunFileNames.size()];
+			while (!runReaders.isEmpty()) {
+				String token = runReaders.peek().currentTerm;
+				termReaders.clear();
+				int numPostings = 0;
+				while (!runReaders.isEmpty() && runReaders.peek().currentTerm.equals(token)) {
+					RunReader runReader = runReaders.poll();
+					termNumPostings[termReaders.size()] = runReader.input.readInt();
+					numPostings += termNumPostings[termReaders.size()];
+					termReaders.add(runReader);
+				}
+
+				if (writeRun) {
+					output.writeUTF(token);
+					output.writeInt(numPostings);
+				}
+				else {
+					assignPostingsLocation(lexicon.get(token));
+					output = segmentOutput;  // A new segment may have been started
+				}
+
+				for (int r = 0; r < termReaders.size(); r++) {
+					RunReader runReader = termReaders.get(r);
+					for (int i = 0; i < termNumPostings[r]; i++) {
+						output.writeInt(runReader.input.readInt()); // Document ID
+						output.writeInt(runReader.input.readInt()); // Count
+					}
+
+					if (runReader.nextTerm()) {
+						runReaders.add(runReader);
 					}
-					invertedFileRecords.get(token).add(new InvertedFileRecord(documentId, count));
 				}
+				numTerms++;
 			}
 		}
-		vocabularySize = lexicon.keySet().size();
+		finally {
+			if (writeRun && output != null) {
+				output.close();
+			}
+			for (RunReader runReader : openRunReaders) {
+				runReader.input.close();
+			}
+		}
+
+		if (writeRun) {
+			RandomAccessFile mergedRun = new RandomAccessFile(mergedRunFileName, "rw");
+			try {
+				mergedRun.writeInt(numTerms);
+			}
+			finally {
+				mergedRun.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Get the file name of an inverted file segment
+	 * @param segment
+	 * @return
+	 */
+	private String getInvertedFileName(int segment) {
+		return INVERTED_FILENAME_PREFIX + segment + INVERTED_FILENAME_SUFFIX;
+	}
+
+
+	/**
+	 * Close the segment being written, if any, and start the next segment
+	 * @throws IOException
+	 */
+	private void startSegment() throws IOException {
+		if (segmentOutput != null) {
+			segmentOutput.close();
+		}
+
+		segmentOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getInvertedFileName(numSegments))));
+		segmentFilePointer = 0;
+		numSegments++;
+	}
+
+
+	/**
+	 * Close the segment being written and delete any segments left over from an earlier, larger index
+	 * @throws IOException
+	 */
+	private void finishSegments() throws IOException {
+		if (segmentOutput != null) {
+			segmentOutput.close();
+			segmentOutput = null;
+		}
+
+		for (int segment = numSegments; new File(getInvertedFileName(segment)).exists(); segment++) {
+			new File(getInvertedFileName(segment)).delete();
+		}
 	}
 
 
 	/**
-	 * Write to a binary file using 4-byte integers for document ids
+	 * Record the segment and offset the postings of a term are about to be written to
+	 * Each posting takes two ints, so the size of the postings list is known from the document frequency
+	 * If the postings would push the current segment past the maximum segment size, start a new segment first
+	 * 		A postings list is never split, so a single list larger than the cap gets a segment of its own
+	 * @param term
+	 * @throws IOException
+	 */
+	private void assignPostingsLocation(Term term) throws IOException {
+		long postingsSize = 2L * INT_SIZE * term.documentFrequency;
+		if (segmentFilePointer > 0 && segmentFilePointer + postingsSize > maxSegmentSize) {
+			startSegment();
+		}
+
+		term.invertedFileSegment = numSegments - 1;
+		term.invertedFileLocation = segmentFilePointer;
+		term.invertedFileLength = (int) postingsSize;
+		segmentFilePointer += postingsSize;
+	}
+
+
+	/**
+	 * Write to a sequence of binary segment files using 4-byte integers for document ids
 	 * and 4-byte integers for document term frequency
+	 * If runs were flushed during the build, merge them instead of writing the buffered records
 	 */
 	public void createInvertedIndex() {
-		RandomAccessFile randomAccessFile = null;
-		try {
-			randomAccessFile = new RandomAccessFile(INVERTED_FILENAME, "rw"); // Open inverted binary file for writing
-			int filePointer = 0;
-			for (Entry<String, List<InvertedFileRecord>> invertedFileRecordsEntry: invertedFileRecords.entrySet()) {
-				String token = invertedFileRecordsEntry.getKey();
-				List<InvertedFileRecord> invertedFileRecordList = invertedFileRecordsEntry.getValue();
-
-				lexicon.get(token).invertedFileLocation = filePointer;
+		invertedFileChunks = null;  // Any earlier mapping no longer matches the file
+		numSegments = 0;
 
-				for (InvertedFileRecord invertedFileRecord : invertedFileRecordList) {
-					randomAccessFile.writeInt(invertedFileRecord.documentId);
-					filePointer += INT_SIZE;
+		if (!runFileNames.isEmpty()) {
+			try {
+				mergeRuns();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
 
-					randomAccessFile.writeInt(invertedFileRecord.count);
-					filePointer += INT_SIZE;
+		try {
+			startSegment(); // Open the first inverted file segment for writing
+			if (bufferedShard != null) {
+				for (int termId : bufferedShard.getBufferedTermIds()) {
+					int[] postings = bufferedShard.bufferedPostings[termId];
+					assignPostingsLocation(lexicon.get(bufferedShard.terms.get(termId).text));
+
+					for (int i = 0; i < 2 * bufferedShard.numBufferedPostings[termId]; i++) {
+						segmentOutput.writeInt(postings[i]);
+					}
+					bufferedShard.bufferedPostings[termId] = null;  // Release each term's postings once written
 				}
 			}
 		} catch (Exception e) {
@@ -232,9 +922,7 @@ public class InvertedFileBuilder {
 		}
 		finally {
 			try {
-				if (randomAccessFile != null) {
-					randomAccessFile.close();
-				}
+				finishSegments();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -243,29 +931,54 @@ public class InvertedFileBuilder {
 
 
 	/**
-	 * Write the dictionary to a file as a serialized object
+	 * Write the dictionary to a file in the compact Dictionary format
 	 * @throws IOException
 	 */
 	public void writeDictionaryToFile() throws IOException {
-		FileOutputStream fos = new FileOutputStream(DICTIONARY_FILENAME);
-		ObjectOutputStream oos = new ObjectOutputStream(fos);
-		oos.writeObject(lexicon);
-		oos.close();
+		Dictionary.write(DICTIONARY_FILENAME, lexicon);
 	}
 
 
 	/**
-	 * Read in the serialized dictionary from disk
+	 * Map the dictionary from disk, replacing the in-memory lexicon
 	 * @throws IOException
-	 * @throws ClassNotFoundException
 	 */
-	@SuppressWarnings("unchecked")
-	public void readDictionaryFromFile() throws IOException, ClassNotFoundException {
-		InputStream file = new FileInputStream(DICTIONARY_FILENAME);
-		InputStream buffer = new BufferedInputStream(file);
-		ObjectInput input = new ObjectInputStream (buffer);
-		lexicon = (Map<String, Term>) input.readObject();
-		input.close();
+	public void readDictionaryFromFile() throws IOException {
+		dictionary = new Dictionary(DICTIONARY_FILENAME);
+		lexicon = new HashMap<>();
+	}
+
+
+	/**
+	 * Map the inverted file segments into memory the first time they are read
+	 * Each segment is mapped in chunks, since a single mapping cannot address more than 2 GB
+	 * Chunks are a multiple of INT_SIZE, so no int in a segment is split across two chunks
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized MappedByteBuffer[][] getInvertedFileChunks() throws IOException {
+		if (invertedFileChunks == null) {
+			MappedByteBuffer[][] segmentChunks = new MappedByteBuffer[numSegments][];
+			for (int segment = 0; segment < numSegments; segment++) {
+				RandomAccessFile randomAccessFile = new RandomAccessFile(getInvertedFileName(segment), "r");
+				try {
+					FileChannel fileChannel = randomAccessFile.getChannel();
+					long fileSize = fileChannel.size();
+
+					MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+					for (int i = 0; i < chunks.length; i++) {
+						long chunkStart = i * CHUNK_SIZE;
+						chunks[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(CHUNK_SIZE, fileSize - chunkStart));
+					}
+					segmentChunks[segment] = chunks;
+				}
+				finally {
+					randomAccessFile.close();  // The mappings stay valid after the file is closed
+				}
+			}
+			invertedFileChunks = segmentChunks;
+		}
+		return invertedFileChunks;
 	}
 
 
@@ -273,32 +986,29 @@ public class InvertedFileBuilder {
 	 * Given a token, access the corresponding records for that token in the inverted file
 	 * Return a list of InvertedFileRecord objects that contain the postings list and
 	 * document counts for the token
+	 * The inverted file segments are memory-mapped once and read with absolute gets, so this is safe
+	 * to call from several threads at once
 	 * @throws IOException
 	 */
 	public List<InvertedFileRecord> readInvertedIndex(String token) throws IOException {
 		List<InvertedFileRecord> invertedFileRecordList = new ArrayList<>();
-		RandomAccessFile randomAccessFile = new RandomAccessFile(INVERTED_FILENAME, "r");
-
-		Term term = lexicon.get(token);
 
-		if (term != null) {
-			int documentFrequency = term.documentFrequency * 2;  // The number of integers stored for the token
+		int termId = dictionary.getTermId(token);
 
-			int filePointer = term.invertedFileLocation;
+		if (termId >= 0) {
+			MappedByteBuffer[] chunks = getInvertedFileChunks()[dictionary.getPostingsSegment(termId)];
+			long filePointer = dictionary.getPostingsLocation(termId);
 
-			for (int i = 0; i < documentFrequency; i+=2) {
-				randomAccessFile.seek(filePointer);
-				int documentId = randomAccessFile.readInt();
+			for (int i = 0; i < dictionary.getDocumentFrequency(termId); i++) {
+				int documentId = chunks[(int) (filePointer / CHUNK_SIZE)].getInt((int) (filePointer % CHUNK_SIZE));
 				filePointer += INT_SIZE;
 
-				randomAccessFile.seek(filePointer);
-				int count = randomAccessFile.readInt();
+				int count = chunks[(int) (filePointer / CHUNK_SIZE)].getInt((int) (filePointer % CHUNK_SIZE));
 				filePointer += INT_SIZE;
 
 				invertedFileRecordList.add(new InvertedFileRecord(documentId, count));
 			}
 		}
-		randomAccessFile.close();
 		return invertedFileRecordList;
 	}
 
@@ -330,8 +1040,10 @@ public class InvertedFileBuilder {
 		long dictionaryFileSize = dictionaryFile.length();
 		System.out.println("Dictionary file size in bytes: " + dictionaryFileSize);
 
-		File invertedFile = new File(INVERTED_FILENAME);
-		long invertedFileSize = invertedFile.length();
+		long invertedFileSize = 0;
+		for (int segment = 0; segment < numSegments; segment++) {
+			invertedFileSize += new File(getInvertedFileName(segment)).length();
+		}
 		System.out.println("\nInverted file size in bytes: " + invertedFileSize);
 
 		File inputFile = new File(inputFileName);
@@ -383,19 +1095,18 @@ public class InvertedFileBuilder {
 		prettyPrintList(readInvertedIndex("feasts"));
 
 		System.out.println("\nExample document frequencies:");
-		System.out.println("  horse\n\t" + lexicon.get("horse").documentFrequency);
-		System.out.println("  lovingkindness\n\t" + lexicon.get("lovingkindness").documentFrequency);
-		System.out.println("  mary\n\t" + lexicon.get("mary").documentFrequency);
-		System.out.println("  dance\n\t" + lexicon.get("dance").documentFrequency + "\n");
+		System.out.println("  horse\n\t" + dictionary.getDocumentFrequency(dictionary.getTermId("horse")));
+		System.out.println("  lovingkindness\n\t" + dictionary.getDocumentFrequency(dictionary.getTermId("lovingkindness")));
+		System.out.println("  mary\n\t" + dictionary.getDocumentFrequency(dictionary.getTermId("mary")));
+		System.out.println("  dance\n\t" + dictionary.getDocumentFrequency(dictionary.getTermId("dance")) + "\n");
 	}
 
 
 	/**
 	 * Test InvertedFileBuilder
-	 * @throws ClassNotFoundException
 	 * @throws IOException
 	 */
-	public void testInvertedFileBuilder() throws ClassNotFoundException, IOException {
+	public void testInvertedFileBuilder() throws IOException {
 		//Build the dictionary
 		buildLexicon();
 
@@ -416,7 +1127,7 @@ public class InvertedFileBuilder {
 	}
 
 
-	public static void main(String[] args) throws IOException, ClassNotFoundException {
+	public static void main(String[] args) throws IOException {
 		InvertedFileBuilder invertedFileBuilder = new InvertedFileBuilder("bible-asv.txt");
 		invertedFileBuilder.testInvertedFileBuilder();;
 	}
@@ -29,18 +29,11 @@ public class IRUtil {
 	 * @return list of tokens
 	 */
 	public static List<String> tokenize(String line) {
-		String[] tokens = line.split("\\s+"); // Split string on whitespace
+		Tokenizer tokenizer = new Tokenizer();
+		tokenizer.reset(line);
 		List<String> normalizedTokens = new ArrayList<>();
-		for (String token : tokens) {
-			String normalizedToken = token.toLowerCase();
-
-			//Remove external punctuation
-			//normalizedToken = normalizedToken.replaceFirst("^[^a-zA-Z]+", "");
-			//normalizedToken = normalizedToken.replaceAll("[^a-zA-Z]+$", "");
-
-			if (!normalizedToken.equals("")) {
-				normalizedTokens.add(normalizedToken);
-			}
+		while (tokenizer.next()) {
+			normalizedTokens.add(tokenizer.getToken());
 		}
 
 		return normalizedTokens;
@@ -93,6 +86,33 @@ public class IRUtil {
 	}
 
 
+	/**
+	 * Select the k entries with the highest counts, in descending order of count
+	 * Uses a bounded heap, so only the top k entries are ever sorted
+	 * Entries with equal counts keep the iteration order of the given map, as in sortMapByValueDescending
+	 * @param counts
+	 * @param k
+	 * @return map of the top k entries in ranked order
+	 */
+	public static Map<String, Integer> getTopCounts(Map<String, Integer> counts, int k) {
+		String[] keys = new String[counts.size()];
+		TopKHeap topCounts = new TopKHeap(Math.min(k, keys.length));
+		int index = 0;
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			keys[index] = entry.getKey();
+			topCounts.offer(index, entry.getValue());
+			index++;
+		}
+
+		topCounts.sort();
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (int rank = 0; rank < topCounts.size(); rank++) {
+			result.put(keys[topCounts.getId(rank)], (int) topCounts.getScore(rank));
+		}
+		return result;
+	}
+
+
 	/**
 	 * Check whether a query contains query syntax
 	 * @param query
@@ -0,0 +1,130 @@
+package edu.jhu.ir.webqueryloganalysis;
+
+/**
+ * This class splits lines of text into tokens in a single pass over their characters
+ * It produces exactly the tokens of the original regular expression tokenizer:
+ * 	Split on whitespace (space, tab, newline, vertical tab, form feed, carriage return)
+ * 	Lower case
+ * Punctuation is kept, so that URLs and phrases such as "johns hopkins?" survive tokenizing
+ *
+ * A tokenizer is reused across lines, each token is written into a reusable character buffer,
+ * 		so no objects are allocated per token unless the caller asks for the token as a String
+ * Implementation details:
+ * 	Tokens made only of ASCII characters are lower cased in place
+ * 	Tokens containing other characters fall back to String.toLowerCase, since lower casing
+ * 		them may change their length
+ *
+ * Usage:
+ * 	tokenizer.reset(line);
+ * 	while (tokenizer.next()) {
+ * 		use tokenizer.getBuffer() from 0 to tokenizer.getLength()
+ * 	}
+ *
+ * @author Miranda Myers
+ *
+ */
+public class Tokenizer {
+	private String line = ""; // Line being tokenized
+	private int position = 0; // Position in the line just past the last token read
+	private char[] buffer = new char[64]; // Characters of the current token
+	private int length = 0; // Number of characters of the current token
+
+
+	/**
+	 * Start tokenizing a new line
+	 * @param line
+	 */
+	public void reset(String line) {
+		this.line = line;
+		this.position = 0;
+		this.length = 0;
+	}
+
+
+	/**
+	 * Advance to the next token of the line
+	 * @return false if there are no more tokens in the line
+	 */
+	public boolean next() {
+		int lineLength = line.length();
+		while (position < lineLength && isWhitespace(line.charAt(position))) {
+			position++;
+		}
+		int start = position;
+		boolean ascii = true;
+		while (position < lineLength && !isWhitespace(line.charAt(position))) {
+			ascii &= line.charAt(position) < 128;
+			position++;
+		}
+
+		if (start == position) {
+			length = 0;
+			return false;
+		}
+
+		if (ascii) {
+			length = position - start;
+			ensureCapacity(length);
+			for (int i = 0; i < length; i++) {
+				char c = line.charAt(start + i);
+				buffer[i] = c <= 'Z' && c >= 'A' ? (char) (c + ('a' - 'A')) : c;
+			}
+		}
+		else {
+			String token = line.substring(start, position).toLowerCase();
+			length = token.length();
+			ensureCapacity(length);
+			token.getChars(0, length, buffer, 0);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Get the buffer holding the characters of the current token
+	 * The buffer is reused for later tokens
+	 * @return
+	 */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+
+	/**
+	 * Get the number of characters of the current token
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+
+	/**
+	 * Get the current token as a String
+	 * @return
+	 */
+	public String getToken() {
+		return new String(buffer, 0, length);
+	}
+
+
+	/**
+	 * Grow the buffer to hold at least the given number of characters
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = new char[Math.max(capacity, 2 * buffer.length)];
+		}
+	}
+
+
+	/**
+	 * Whether a character is matched by \s in a regular expression
+	 * @param c
+	 * @return
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || (c >= '\t' && c <= '\r');
+	}
+}
@@ -189,7 +189,7 @@ public class WebQueryLogAnalysis {
 			}
 		}
 
-		Map<String, Integer> sortedQueryCounts = IRUtil.sortMapByValueDescending(queryCounts);
+		Map<String, Integer> sortedQueryCounts = IRUtil.getTopCounts(queryCounts, 20);
 		Iterator<Entry<String, Integer>> it = sortedQueryCounts.entrySet().iterator();
 		int count = 1;
 		while(it.hasNext() && count <= 20) {
@@ -221,7 +221,7 @@ public class WebQueryLogAnalysis {
 			}
 		}
 
-		Map<String, Integer> sortedNonStopwordCounts = IRUtil.sortMapByValueDescending(nonStopwordCounts);
+		Map<String, Integer> sortedNonStopwordCounts = IRUtil.getTopCounts(nonStopwordCounts, 20);
 		Iterator<Entry<String, Integer>> it = sortedNonStopwordCounts.entrySet().iterator();
 		int count = 1;
 		while(it.hasNext() && count <= 20) {
@@ -270,7 +270,7 @@ public class WebQueryLogAnalysis {
 			}
 		}
 
-		Map<String, Integer> sortedTermCounts = IRUtil.sortMapByValueDescending(termCounts);
+		Map<String, Integer> sortedTermCounts = IRUtil.getTopCounts(termCounts, 1);
 		String mostCommon = sortedTermCounts.entrySet().iterator().next().getKey();
 
 		System.out.println("Which occurs in queries more often \"Al Gore\" or \"Johns Hopkins?\" \"Johns Hopkins\" or \"John Hopkins\"?\n\t" + mostCommon + "\n\n");
@@ -297,7 +297,7 @@ public class WebQueryLogAnalysis {
 			}
 		}
 
-		Map<String, Integer> sortedWebsiteCounts = IRUtil.sortMapByValueDescending(websiteCounts);
+		Map<String, Integer> sortedWebsiteCounts = IRUtil.getTopCounts(websiteCounts, 20);
 		Iterator<Entry<String, Integer>> it = sortedWebsiteCounts.entrySet().iterator();
 		int count = 1;
 		while(it.hasNext() && count <= 20) {